@@ -0,0 +1,117 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Trees of different shapes for the benchmarks, created in memory or on the disk.
+ */
+public final class BenchmarkTrees {
+    private BenchmarkTrees() {
+    }
+
+    public enum Shape {
+        /**
+         * A chain of 64 nested directories with 8 files in each.
+         */
+        DEEP {
+            @Override
+            void create(@NotNull Path root) throws IOException {
+                Path directory = root;
+                for (int level = 0; level < 64; level++) {
+                    directory = Files.createDirectory(directory.resolve("level" + level));
+                    createFiles(directory, 8, level);
+                }
+            }
+        },
+        /**
+         * A directory of 10 000 files and 16 subdirectories of 100 files.
+         */
+        WIDE {
+            @Override
+            void create(@NotNull Path root) throws IOException {
+                createFiles(root, 10_000, 0);
+                for (int i = 0; i < 16; i++) {
+                    createFiles(Files.createDirectory(root.resolve("dir" + i)), 100, i);
+                }
+            }
+        },
+        /**
+         * 256 symlinks to the same tree of 8 directories of 32 files, and a symlink back to the root.
+         */
+        SYMLINK_HEAVY {
+            @Override
+            void create(@NotNull Path root) throws IOException {
+                Path shared = Files.createDirectory(root.resolve("shared"));
+                for (int i = 0; i < 8; i++) {
+                    createFiles(Files.createDirectory(shared.resolve("dir" + i)), 32, i);
+                }
+                Path links = Files.createDirectory(root.resolve("links"));
+                for (int i = 0; i < 256; i++) {
+                    Files.createSymbolicLink(links.resolve("link" + i), shared.toAbsolutePath());
+                }
+                Files.createSymbolicLink(shared.resolve("root"), root.toAbsolutePath());
+            }
+        };
+
+        abstract void create(@NotNull Path root) throws IOException;
+    }
+
+    public enum Storage {
+        JIMFS {
+            @Override
+            @NotNull
+            Path createRoot() throws IOException {
+                FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix());
+                return Files.createDirectory(fileSystem.getPath("/root"));
+            }
+
+            @Override
+            void delete(@NotNull Path root) throws IOException {
+                root.getFileSystem().close();
+            }
+        },
+        DISK {
+            @Override
+            @NotNull
+            Path createRoot() throws IOException {
+                return Files.createTempDirectory("jdu-benchmark");
+            }
+
+            @Override
+            void delete(@NotNull Path root) throws IOException {
+                try (Stream<Path> paths = Files.walk(root)) {
+                    for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(path);
+                    }
+                }
+            }
+        };
+
+        @NotNull
+        abstract Path createRoot() throws IOException;
+
+        abstract void delete(@NotNull Path root) throws IOException;
+    }
+
+    @NotNull
+    static Path create(@NotNull Storage storage, @NotNull Shape shape) throws IOException {
+        Path root = storage.createRoot();
+        shape.create(root);
+        return root.toAbsolutePath();
+    }
+
+    private static void createFiles(@NotNull Path directory, int count, int seed) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.write(directory.resolve("file" + i), new byte[(i * 31 + seed * 17) % 4096]);
+        }
+    }
+}
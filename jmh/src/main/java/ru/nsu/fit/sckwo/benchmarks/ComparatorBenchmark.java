@@ -0,0 +1,65 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.nsu.fit.sckwo.comparators.DuFileLexicographicalComparator;
+import ru.nsu.fit.sckwo.comparators.DuFileSizeComparator;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting of the children of a directory, as the walker orders them, by each comparator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparatorBenchmark {
+    @Param({"1000", "100000"})
+    public int countOfFiles;
+
+    private final Comparator<DuFile> sizeComparator = new DuFileSizeComparator().reversed();
+    private final Comparator<DuFile> lexicographicalComparator = new DuFileLexicographicalComparator();
+    private DuFile[] files;
+
+    @Setup
+    public void createFiles() {
+        SplittableRandom random = new SplittableRandom(42);
+        files = new DuFile[countOfFiles];
+        for (int i = 0; i < countOfFiles; i++) {
+            files[i] = new DuFile(Path.of("/benchmark", "file" + random.nextInt()), DuFileType.REGULAR_FILE);
+            files[i].setSize(random.nextLong(1L << 40));
+        }
+    }
+
+    @Benchmark
+    public DuFile[] sortBySize() {
+        DuFile[] sortedFiles = files.clone();
+        Arrays.sort(sortedFiles, sizeComparator);
+        return sortedFiles;
+    }
+
+    @Benchmark
+    public DuFile[] sortLexicographically() {
+        DuFile[] sortedFiles = files.clone();
+        Arrays.sort(sortedFiles, lexicographicalComparator);
+        return sortedFiles;
+    }
+}
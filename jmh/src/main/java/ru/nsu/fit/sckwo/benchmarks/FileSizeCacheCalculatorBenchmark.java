@@ -0,0 +1,64 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.nsu.fit.sckwo.utils.FileSizeCacheCalculator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizing of a whole tree by a new calculator (cold) and by a calculator that has sized the tree before (hot),
+ * so only the root is listed again and the sizes of its subdirectories are taken from the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class FileSizeCacheCalculatorBenchmark {
+    private static final int DEPTH_LIMIT = 8;
+
+    @Param({"DEEP", "WIDE"})
+    public BenchmarkTrees.Shape shape;
+    @Param
+    public BenchmarkTrees.Storage storage;
+
+    private Path root;
+    private FileSizeCacheCalculator hotCalculator;
+
+    @Setup
+    public void createTree() throws IOException {
+        root = BenchmarkTrees.create(storage, shape);
+        hotCalculator = new FileSizeCacheCalculator(DEPTH_LIMIT);
+        hotCalculator.size(root, 0);
+    }
+
+    @TearDown
+    public void deleteTree() throws IOException {
+        storage.delete(root);
+    }
+
+    @Benchmark
+    public long cold() {
+        return new FileSizeCacheCalculator(DEPTH_LIMIT).size(root, 0);
+    }
+
+    @Benchmark
+    public long hot() {
+        hotCalculator.removeCacheEntry(root);
+        return hotCalculator.size(root, 0);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.nsu.fit.sckwo.Printer;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.utils.FileSizeUnit;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Printing of a tree of 4 681 files (8 children per directory, 5 levels) to a discarding stream,
+ * and formatting of file sizes of all magnitudes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrinterBenchmark {
+    private static final int CHILDREN_PER_DIRECTORY = 8;
+    private static final int DEPTH = 4;
+    private static final int COUNT_OF_SIZES = 1024;
+
+    private final List<DuFile> files = new ArrayList<>();
+    private final List<Integer> depths = new ArrayList<>();
+    private long[] sizes;
+    private PrintStream output;
+
+    @Setup
+    public void createFiles() {
+        addFiles(Path.of("/benchmark"), 0);
+        SplittableRandom random = new SplittableRandom(42);
+        sizes = new long[COUNT_OF_SIZES];
+        for (int i = 0; i < COUNT_OF_SIZES; i++) {
+            sizes[i] = random.nextLong() >>> random.nextInt(64);
+        }
+        output = new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 1 << 16),
+                false, StandardCharsets.UTF_8);
+    }
+
+    private void addFiles(Path path, int depth) {
+        boolean isDirectory = depth < DEPTH;
+        DuFile file = new DuFile(path, isDirectory ? DuFileType.DIRECTORY : DuFileType.REGULAR_FILE);
+        file.setSize((long) path.hashCode() & 0xFFFFFFFFL);
+        files.add(file);
+        depths.add(depth);
+        if (isDirectory) {
+            file.setActualCountOfChildren(CHILDREN_PER_DIRECTORY);
+            for (int i = 0; i < CHILDREN_PER_DIRECTORY; i++) {
+                addFiles(path.resolve("file" + i), depth + 1);
+            }
+        }
+    }
+
+    @Benchmark
+    public void visitFile() {
+        Printer printer = new Printer(output, DEPTH, false);
+        for (int i = 0; i < files.size(); i++) {
+            printer.visitFile(files.get(i), depths.get(i));
+        }
+        printer.flush();
+    }
+
+    @Benchmark
+    public void bytesToHumanReadableFormat(Blackhole blackhole) {
+        for (long size : sizes) {
+            blackhole.consume(FileSizeUnit.bytesToHumanReadableFormat(size));
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end scale test: generates synthetic trees of the given numbers of entries, runs the whole <code>jdu</code>
+ * over each of them in a new JVM and reports entries per second, peak RSS, heap allocation, GC time
+ * and system call counts, as a table and as JSON.
+ * <p/>
+ * Usage: <code>java -cp benchmarks.jar ru.nsu.fit.sckwo.benchmarks.ScaleHarness [options] [-- jdu options]</code>
+ * <p/>
+ * Every run takes a new JVM, so its RSS and its GC are not affected by the generator or the other runs.
+ * Read and write system calls are counted by the kernel for the process (<code>/proc/self/io</code>);
+ * with <code>-strace</code> all the system calls are counted by <code>strace -c</code>, which slows the run down.
+ */
+public final class ScaleHarness {
+    private static final String DEFAULT_ENTRIES = "10000,100000,1000000";
+    private static final String DEFAULT_RESULT_FILE = "scale-result.json";
+    private static final Options options;
+
+    static {
+        options = new Options();
+        options.addOption("entries", true, "Comma-separated numbers of entries of the generated trees (default " + DEFAULT_ENTRIES + ").");
+        options.addOption("dir", true, "Directory to generate the trees in, e.g. /dev/shm for tmpfs (default the temporary directory).");
+        options.addOption("fanout", true, "Subdirectories per directory (default 10).");
+        options.addOption("files", true, "Files per directory (default 20).");
+        options.addOption("depth", true, "Depth of the tree (default the smallest one fitting the entries).");
+        options.addOption("size", true, "Mean file size in bytes (default 65536).");
+        options.addOption("distribution", true, "File size distribution: constant, exponential or pareto (default pareto).");
+        options.addOption("symlinks", true, "Ratio of symlinks among the files (default 0.01).");
+        options.addOption("hugeEvery", true, "Every n-th directory is huge (default 0 - none).");
+        options.addOption("hugeSize", true, "Additional files of a huge directory (default 100000).");
+        options.addOption("seed", true, "Seed of the generator (default 42).");
+        options.addOption("jvm", true, "Additional options of the JVM running jdu, e.g. \"-Xmx8g\".");
+        options.addOption("strace", false, "Count all system calls with strace -f -c.");
+        options.addOption("keep", false, "Keep the generated trees.");
+        options.addOption("result", true, "JSON file for the results (default " + DEFAULT_RESULT_FILE + ").");
+    }
+
+    private ScaleHarness() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        int fanOut = Integer.parseInt(cmd.getOptionValue("fanout", "10"));
+        int filesPerDirectory = Integer.parseInt(cmd.getOptionValue("files", "20"));
+        Path directory = Path.of(cmd.getOptionValue("dir", System.getProperty("java.io.tmpdir")));
+        List<String> jduArgs = cmd.getArgList();
+        List<Result> results = new ArrayList<>();
+        for (String entriesValue : cmd.getOptionValue("entries", DEFAULT_ENTRIES).split(",")) {
+            long entries = Long.parseLong(entriesValue.trim());
+            int depth = cmd.hasOption("depth")
+                    ? Integer.parseInt(cmd.getOptionValue("depth"))
+                    : TreeGenerator.depthFor(fanOut, filesPerDirectory, entries);
+            TreeGenerator.TreeShape shape = new TreeGenerator.TreeShape(
+                    fanOut,
+                    depth,
+                    filesPerDirectory,
+                    Long.parseLong(cmd.getOptionValue("size", "65536")),
+                    TreeGenerator.SizeDistribution.valueOf(cmd.getOptionValue("distribution", "pareto").toUpperCase(Locale.ROOT)),
+                    Double.parseDouble(cmd.getOptionValue("symlinks", "0.01")),
+                    Integer.parseInt(cmd.getOptionValue("hugeEvery", "0")),
+                    Integer.parseInt(cmd.getOptionValue("hugeSize", "100000")),
+                    Long.parseLong(cmd.getOptionValue("seed", "42")));
+            Path root = directory.resolve("jdu-scale-" + entries);
+            System.err.println("Generating " + entries + " entries in " + root + "...");
+            long generatedEntries = new TreeGenerator(shape).generate(root, entries);
+            try {
+                Result result = run(root, generatedEntries, shape, jduArgs, cmd.getOptionValue("jvm"), cmd.hasOption("strace"));
+                results.add(result);
+                System.err.println(result.toRow());
+            } finally {
+                if (!cmd.hasOption("keep")) {
+                    delete(root);
+                }
+            }
+        }
+        System.out.println(Result.HEADER);
+        for (Result result : results) {
+            System.out.println(result.toRow());
+        }
+        Path resultFile = Path.of(cmd.getOptionValue("result", DEFAULT_RESULT_FILE));
+        try (Writer writer = Files.newBufferedWriter(resultFile)) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                writer.write(results.get(i).toJson());
+                writer.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        }
+        System.out.println("The results are saved to " + resultFile.toAbsolutePath());
+    }
+
+    @NotNull
+    private static Result run(@NotNull Path root, long entries, @NotNull TreeGenerator.TreeShape shape,
+                              @NotNull List<String> jduArgs, @Nullable String jvmOptions, boolean strace)
+            throws IOException, InterruptedException {
+        Path reportFile = Files.createTempFile("jdu-scale", ".properties");
+        Path straceFile = Files.createTempFile("jdu-scale", ".strace");
+        try {
+            List<String> command = new ArrayList<>();
+            if (strace) {
+                command.addAll(List.of("strace", "-f", "-c", "-o", straceFile.toString()));
+            }
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(List.of("--enable-preview", "--enable-native-access=ALL-UNNAMED"));
+            if (jvmOptions != null) {
+                command.addAll(List.of(jvmOptions.trim().split("\\s+")));
+            }
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), ScaleProbe.class.getName(), reportFile.toString()));
+            command.addAll(jduArgs);
+            command.add(root.toString());
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IOException("jdu exited with " + process.exitValue() + ": " + command);
+            }
+            Properties report = new Properties();
+            try (Reader reader = Files.newBufferedReader(reportFile)) {
+                report.load(reader);
+            }
+            return new Result(entries, shape, jduArgs,
+                    Long.parseLong(report.getProperty(ScaleProbe.ELAPSED_NANOS)),
+                    Long.parseLong(report.getProperty(ScaleProbe.PEAK_RSS_BYTES)),
+                    Long.parseLong(report.getProperty(ScaleProbe.ALLOCATED_BYTES)),
+                    Long.parseLong(report.getProperty(ScaleProbe.GC_MILLIS)),
+                    Long.parseLong(report.getProperty(ScaleProbe.GC_COUNT)),
+                    Long.parseLong(report.getProperty(ScaleProbe.READ_SYSCALLS)),
+                    Long.parseLong(report.getProperty(ScaleProbe.WRITE_SYSCALLS)),
+                    strace ? totalSyscalls(straceFile) : -1);
+        } finally {
+            Files.deleteIfExists(reportFile);
+            Files.deleteIfExists(straceFile);
+        }
+    }
+
+    /**
+     * Reads the total number of calls from the summary of <code>strace -c</code>:
+     * <pre>
+     * % time     seconds  usecs/call     calls    errors syscall
+     * ------ ----------- ----------- --------- --------- ----------------
+     * 100.00    0.012345           2      5678        12 total
+     * </pre>
+     */
+    private static long totalSyscalls(@NotNull Path straceFile) throws IOException {
+        for (String line : Files.readAllLines(straceFile)) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 5 && columns[columns.length - 1].equals("total")) {
+                return Long.parseLong(columns[3]);
+            }
+        }
+        return -1;
+    }
+
+    private static void delete(@NotNull Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private record Result(long entries,
+                          @NotNull TreeGenerator.TreeShape shape,
+                          @NotNull List<String> jduArgs,
+                          long elapsedNanos,
+                          long peakRssBytes,
+                          long allocatedBytes,
+                          long gcMillis,
+                          long gcCount,
+                          long readSyscalls,
+                          long writeSyscalls,
+                          long syscalls) {
+        private static final String HEADER = String.format("%12s %10s %14s %12s %14s %10s %8s %12s %12s %12s",
+                "entries", "seconds", "entries/s", "peak RSS MB", "allocated MB", "GC ms", "GCs", "read calls", "write calls", "all calls");
+
+        private double seconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        private long entriesPerSecond() {
+            return (long) (entries / seconds());
+        }
+
+        @NotNull
+        private String toRow() {
+            return String.format(Locale.ROOT, "%12d %10.2f %14d %12d %14d %10d %8d %12d %12d %12d",
+                    entries, seconds(), entriesPerSecond(), peakRssBytes >> 20, allocatedBytes >> 20,
+                    gcMillis, gcCount, readSyscalls, writeSyscalls, syscalls);
+        }
+
+        @NotNull
+        private String toJson() {
+            StringBuilder args = new StringBuilder();
+            for (String arg : jduArgs) {
+                args.append(args.isEmpty() ? "" : ", ").append('"').append(arg.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            return String.format(Locale.ROOT, """
+                              {
+                                "entries": %d,
+                                "shape": {"fanOut": %d, "depth": %d, "filesPerDirectory": %d, "meanFileSize": %d, "sizeDistribution": "%s", \
+                            "symlinkRatio": %s, "hugeDirectoryInterval": %d, "hugeDirectorySize": %d, "seed": %d},
+                                "jduArgs": [%s],
+                                "seconds": %.3f,
+                                "entriesPerSecond": %d,
+                                "peakRssBytes": %d,
+                                "allocatedBytes": %d,
+                                "gcMillis": %d,
+                                "gcCount": %d,
+                                "readSyscalls": %d,
+                                "writeSyscalls": %d,
+                                "syscalls": %d
+                              }""",
+                    entries, shape.fanOut(), shape.depth(), shape.filesPerDirectory(), shape.meanFileSize(), shape.sizeDistribution(),
+                    shape.symlinkRatio(), shape.hugeDirectoryInterval(), shape.hugeDirectorySize(), shape.seed(),
+                    args, seconds(), entriesPerSecond(), peakRssBytes, allocatedBytes, gcMillis, gcCount,
+                    readSyscalls, writeSyscalls, syscalls);
+        }
+    }
+}
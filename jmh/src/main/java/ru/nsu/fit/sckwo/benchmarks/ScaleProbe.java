@@ -0,0 +1,84 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import com.sun.management.ThreadMXBean;
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.Main;
+import ru.nsu.fit.sckwo.exception.JduException;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs <code>jdu</code> in the JVM started by {@link ScaleHarness} and writes what the run took
+ * to the properties file given as the first argument. The other arguments are passed to <code>jdu</code>.
+ * If <code>jdu</code> fails, the probe exits with 1 and writes no report.
+ * <p/>
+ * The peak RSS and the counts of read and write system calls are taken from <code>/proc/self</code>,
+ * so they are reported on Linux only (as -1 elsewhere).
+ */
+public final class ScaleProbe {
+    static final String ELAPSED_NANOS = "elapsedNanos";
+    static final String ALLOCATED_BYTES = "allocatedBytes";
+    static final String GC_MILLIS = "gcMillis";
+    static final String GC_COUNT = "gcCount";
+    static final String PEAK_RSS_BYTES = "peakRssBytes";
+    static final String READ_SYSCALLS = "readSyscalls";
+    static final String WRITE_SYSCALLS = "writeSyscalls";
+
+    private ScaleProbe() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path reportFile = Path.of(args[0]);
+        long start = System.nanoTime();
+        try {
+            Main.run(Arrays.copyOfRange(args, 1, args.length));
+        } catch (JduException e) {
+            // a failed run is not a result
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        Properties report = new Properties();
+        report.setProperty(ELAPSED_NANOS, Long.toString(elapsedNanos));
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        report.setProperty(ALLOCATED_BYTES, Long.toString(threads.getTotalThreadAllocatedBytes()));
+        long gcMillis = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, collector.getCollectionTime());
+            gcCount += Math.max(0, collector.getCollectionCount());
+        }
+        report.setProperty(GC_MILLIS, Long.toString(gcMillis));
+        report.setProperty(GC_COUNT, Long.toString(gcCount));
+        // VmHWM is the peak resident set size in kB
+        report.setProperty(PEAK_RSS_BYTES, Long.toString(readProcField("/proc/self/status", "VmHWM:") * 1024));
+        report.setProperty(READ_SYSCALLS, Long.toString(readProcField("/proc/self/io", "syscr:")));
+        report.setProperty(WRITE_SYSCALLS, Long.toString(readProcField("/proc/self/io", "syscw:")));
+        try (Writer writer = Files.newBufferedWriter(reportFile)) {
+            report.store(writer, null);
+        }
+    }
+
+    private static long readProcField(@NotNull String file, @NotNull String field) {
+        try {
+            List<String> lines = Files.readAllLines(Path.of(file));
+            for (String line : lines) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,131 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a reproducible synthetic file tree of the given shape.
+ * <p/>
+ * The tree is created depth-first until the number of entries reaches the limit, so only the last branches
+ * of a tree larger than the limit are cut. Files are sparse: their sizes follow the distribution,
+ * but they take no space except their inodes, so trees of tens of millions of entries fit on a tmpfs.
+ * Symlinks point to random directories created earlier, which may be their ancestors, so they may form cycles.
+ */
+public final class TreeGenerator {
+    private static final long MAX_FILE_SIZE = 1L << 40;
+    // the directories the symlinks can point to, a sample of all the created ones
+    private static final int SYMLINK_TARGETS = 1024;
+
+    private final TreeShape shape;
+    private final SplittableRandom random;
+    private final List<Path> symlinkTargets = new ArrayList<>();
+    private long maxEntries;
+    private long countOfEntries;
+    private long countOfDirectories;
+
+    public TreeGenerator(@NotNull TreeShape shape) {
+        this.shape = shape;
+        random = new SplittableRandom(shape.seed());
+    }
+
+    /**
+     * Creates the tree in the new directory <code>root</code> and returns the number of its entries,
+     * the root included.
+     */
+    public long generate(@NotNull Path root, long maxEntries) throws IOException {
+        this.maxEntries = maxEntries;
+        countOfEntries = 0;
+        countOfDirectories = 0;
+        generateDirectory(root, 0);
+        return countOfEntries;
+    }
+
+    /**
+     * Returns the smallest depth, at which the tree of the shape has at least <code>entries</code> entries.
+     */
+    public static int depthFor(int fanOut, int filesPerDirectory, long entries) {
+        long countOfDirectories = 1;
+        long total = 1 + filesPerDirectory;
+        int depth = 0;
+        while (total < entries && fanOut > 0) {
+            countOfDirectories *= fanOut;
+            total += countOfDirectories * (1 + filesPerDirectory);
+            depth++;
+        }
+        return depth;
+    }
+
+    private void generateDirectory(@NotNull Path directory, int level) throws IOException {
+        Files.createDirectory(directory);
+        countOfEntries++;
+        countOfDirectories++;
+        if (symlinkTargets.size() < SYMLINK_TARGETS) {
+            symlinkTargets.add(directory);
+        } else {
+            symlinkTargets.set(random.nextInt(SYMLINK_TARGETS), directory);
+        }
+        int countOfFiles = shape.filesPerDirectory();
+        if (shape.hugeDirectoryInterval() > 0 && countOfDirectories % shape.hugeDirectoryInterval() == 0) {
+            countOfFiles += shape.hugeDirectorySize();
+        }
+        for (int i = 0; i < countOfFiles && countOfEntries < maxEntries; i++) {
+            Path file = directory.resolve("file" + i);
+            if (random.nextDouble() < shape.symlinkRatio()) {
+                Files.createSymbolicLink(file, symlinkTargets.get(random.nextInt(symlinkTargets.size())));
+            } else {
+                try (RandomAccessFile sparseFile = new RandomAccessFile(file.toFile(), "rw")) {
+                    sparseFile.setLength(nextFileSize());
+                }
+            }
+            countOfEntries++;
+        }
+        if (level < shape.depth()) {
+            for (int i = 0; i < shape.fanOut() && countOfEntries < maxEntries; i++) {
+                generateDirectory(directory.resolve("dir" + i), level + 1);
+            }
+        }
+    }
+
+    private long nextFileSize() {
+        double meanSize = shape.meanFileSize();
+        double size = switch (shape.sizeDistribution()) {
+            case CONSTANT -> meanSize;
+            case EXPONENTIAL -> -meanSize * Math.log(1 - random.nextDouble());
+            case PARETO -> {
+                // the shape 1.5 gives a heavy tail with a finite mean
+                double alpha = 1.5;
+                yield meanSize * (alpha - 1) / alpha / Math.pow(1 - random.nextDouble(), 1 / alpha);
+            }
+        };
+        return Math.min(MAX_FILE_SIZE, (long) size);
+    }
+
+    public enum SizeDistribution {
+        CONSTANT,
+        EXPONENTIAL,
+        PARETO
+    }
+
+    /**
+     * @param depth                 the depth of the deepest directories, the root is at 0
+     * @param symlinkRatio          the probability that an entry of a directory is a symlink instead of a file
+     * @param hugeDirectoryInterval every this directory gets <code>hugeDirectorySize</code> more files (0 - none)
+     */
+    public record TreeShape(int fanOut,
+                            int depth,
+                            int filesPerDirectory,
+                            long meanFileSize,
+                            @NotNull SizeDistribution sizeDistribution,
+                            double symlinkRatio,
+                            int hugeDirectoryInterval,
+                            int hugeDirectorySize,
+                            long seed) {
+    }
+}
@@ -0,0 +1,63 @@
+package ru.nsu.fit.sckwo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.nsu.fit.sckwo.JduOptions;
+import ru.nsu.fit.sckwo.TreeWalker;
+import ru.nsu.fit.sckwo.comparators.ComparatorType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole walk of a tree, as the <code>jdu</code> command does it, with a visitor that only consumes the files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class TreeWalkerBenchmark {
+    @Param
+    public BenchmarkTrees.Shape shape;
+    @Param
+    public BenchmarkTrees.Storage storage;
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path root;
+    private JduOptions options;
+
+    @Setup
+    public void createTree() throws IOException {
+        root = BenchmarkTrees.create(storage, shape);
+        options = new JduOptions(shape == BenchmarkTrees.Shape.SYMLINK_HEAVY, 8, 32,
+                ComparatorType.SIZE_COMPARATOR, root).withThreads(threads);
+    }
+
+    @TearDown
+    public void deleteTree() throws IOException {
+        storage.delete(root);
+    }
+
+    @Benchmark
+    public void walk(Blackhole blackhole) {
+        // a walker per invocation, like a run of jdu, which does not leave its threads behind
+        try (TreeWalker walker = new TreeWalker(options, (curFile, depthLevel) -> blackhole.consume(curFile))) {
+            walker.walk(root);
+        }
+    }
+}
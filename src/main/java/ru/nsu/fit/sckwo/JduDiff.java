@@ -0,0 +1,20 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+/**
+ * Arguments of <code>jdu diff</code>, which prints the files whose sizes have changed since a tree
+ * was saved with <code>-save</code>.
+ *
+ * @param oldTreePath        the file the earlier tree has been saved to
+ * @param newPath            the file the later tree has been saved to, or the directory to scan instead,
+ *                           or null to scan the root of the earlier tree again
+ * @param depth              the depth of the printed changes
+ * @param limit              the number of the most changed files printed in a directory
+ * @param thresholdMegabytes the change of the size a file has to exceed to be printed
+ */
+public record JduDiff(@NotNull Path oldTreePath, @Nullable Path newPath, int depth, int limit, int thresholdMegabytes) {
+}
@@ -1,14 +1,47 @@
 package ru.nsu.fit.sckwo;
 
+import lombok.With;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.nsu.fit.sckwo.comparators.ComparatorType;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
+@With
 public record JduOptions(boolean followSymlinks,
                          int depth, int limit,
                          @NotNull ComparatorType comparatorType,
-                         @NotNull Path rootAbsolutePath) {
+                         @NotNull Path rootAbsolutePath,
+                         int threads,
+                         int ioConcurrency,
+                         boolean nativeBackend,
+                         @Nullable Path snapshotPath,
+                         int watchInterval,
+                         boolean stats,
+                         int slowestDirectories,
+                         int cacheMemory,
+                         @NotNull List<String> excludes,
+                         @NotNull List<String> includes,
+                         boolean excludedTotal,
+                         boolean oneFileSystem,
+                         int directoryTimeout,
+                         int approxSamples,
+                         int topFiles,
+                         @NotNull OutputFormat outputFormat,
+                         @Nullable Path savePath,
+                         @NotNull List<Path> otherRootPaths,
+                         boolean aggregateRoots) {
+
+    public JduOptions(boolean followSymlinks,
+                      int depth, int limit,
+                      @NotNull ComparatorType comparatorType,
+                      @NotNull Path rootAbsolutePath) {
+        this(followSymlinks, depth, limit, comparatorType, rootAbsolutePath, 1, 0, false, null, -1, false, 0,
+                JduOptionsParser.DEFAULT_CACHE_MEMORY, List.of(), List.of(), false, false, 0, 0, 0,
+                OutputFormat.TREE, null, List.of(), false);
+    }
 
     @Override
     public boolean followSymlinks() {
@@ -35,4 +68,167 @@ public record JduOptions(boolean followSymlinks,
     public Path rootAbsolutePath() {
         return rootAbsolutePath;
     }
+
+    @Override
+    public int threads() {
+        return threads;
+    }
+
+    @Override
+    public int ioConcurrency() {
+        return ioConcurrency;
+    }
+
+    @Override
+    public boolean nativeBackend() {
+        return nativeBackend;
+    }
+
+    @Override
+    @Nullable
+    public Path snapshotPath() {
+        return snapshotPath;
+    }
+
+    /**
+     * Returns the number of seconds between the renders of the watched tree,
+     * 0 if the tree is rendered only on request, or -1 if the tree is not watched.
+     */
+    @Override
+    public int watchInterval() {
+        return watchInterval;
+    }
+
+    /**
+     * Returns whether the statistics of the walk are printed to the standard error and exposed through JMX.
+     */
+    @Override
+    public boolean stats() {
+        return stats;
+    }
+
+    /**
+     * Returns the number of the directories that have taken the longest to read printed after the tree
+     * (0 - none are printed).
+     */
+    @Override
+    public int slowestDirectories() {
+        return slowestDirectories;
+    }
+
+    /**
+     * Returns the number of megabytes the cache of the sizes of the directories may take.
+     */
+    @Override
+    public int cacheMemory() {
+        return cacheMemory;
+    }
+
+    /**
+     * Returns the ignore rules of the walk: the lines of the ignore files followed by the excluded patterns.
+     */
+    @Override
+    @NotNull
+    public List<String> excludes() {
+        return excludes;
+    }
+
+    /**
+     * Returns the patterns of the files kept in the walk, or an empty list if all the files are kept.
+     */
+    @Override
+    @NotNull
+    public List<String> includes() {
+        return includes;
+    }
+
+    /**
+     * Returns whether the number and the total size of the excluded files are printed after the tree.
+     */
+    @Override
+    public boolean excludedTotal() {
+        return excludedTotal;
+    }
+
+    /**
+     * Returns whether the walk stays on the file system of the root and does not descend into other mounts.
+     */
+    @Override
+    public boolean oneFileSystem() {
+        return oneFileSystem;
+    }
+
+    /**
+     * Returns the number of milliseconds the reading of a directory may take before it is given up
+     * (0 - the directories are read without a deadline).
+     */
+    @Override
+    public int directoryTimeout() {
+        return directoryTimeout;
+    }
+
+    /**
+     * Returns the number of the subdirectories sampled in every directory below the depth limit
+     * to estimate its size (0 - the sizes are calculated exactly).
+     */
+    @Override
+    public int approxSamples() {
+        return approxSamples;
+    }
+
+    /**
+     * Returns the number of the largest regular files of the whole tree printed instead of the tree
+     * (0 - the tree is printed).
+     */
+    @Override
+    public int topFiles() {
+        return topFiles;
+    }
+
+    /**
+     * Returns the format the visited files are printed in.
+     */
+    @Override
+    @NotNull
+    public OutputFormat outputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Returns the file the whole scanned tree is saved to for <code>jdu query</code>, or null if it is not saved.
+     */
+    @Override
+    @Nullable
+    public Path savePath() {
+        return savePath;
+    }
+
+    /**
+     * Returns the absolute paths of the roots walked after the first one, {@link #rootAbsolutePath()}.
+     */
+    @Override
+    @NotNull
+    public List<Path> otherRootPaths() {
+        return otherRootPaths;
+    }
+
+    /**
+     * Returns whether the trees of the roots are printed under one virtual root with their total size
+     * rather than one after another.
+     */
+    @Override
+    public boolean aggregateRoots() {
+        return aggregateRoots;
+    }
+
+    /**
+     * Returns the absolute paths of all roots to walk, the first root first.
+     */
+    @NotNull
+    public List<Path> rootAbsolutePaths() {
+        List<Path> roots = new ArrayList<>(otherRootPaths.size() + 1);
+        roots.add(rootAbsolutePath);
+        roots.addAll(otherRootPaths);
+        return roots;
+    }
 }
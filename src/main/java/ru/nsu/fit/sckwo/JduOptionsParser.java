@@ -5,51 +5,243 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ru.nsu.fit.sckwo.comparators.ComparatorType;
 import ru.nsu.fit.sckwo.exception.JduInvalidArgumentsException;
+import ru.nsu.fit.sckwo.utils.PathFilter;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 
 import static java.lang.Integer.parseInt;
 
 public class JduOptionsParser {
     final static Options options;
+    final static Options queryOptions;
+    final static Options diffOptions;
     static final int DEFAULT_DEPTH = 8;
     static final int DEFAULT_LIMIT = 32;
     static final int MAX_DEPTH = 2048;
     static final int MAX_LIMIT = 2048;
+    static final int DEFAULT_THREADS = 1;
+    static final int MAX_THREADS = 1024;
+    static final int DEFAULT_IO_CONCURRENCY = 0;
+    static final int MAX_IO_CONCURRENCY = 65536;
+    static final int NOT_WATCHING = -1;
+    static final int MAX_WATCH_INTERVAL = 24 * 60 * 60;
+    static final int MAX_SLOWEST_DIRECTORIES = 2048;
+    static final int DEFAULT_CACHE_MEMORY = 64;
+    static final int MAX_CACHE_MEMORY = 1 << 20;
+    static final int MAX_DIRECTORY_TIMEOUT = 24 * 60 * 60 * 1000;
+    static final int DEFAULT_APPROX_SAMPLES = 32;
+    static final int MAX_APPROX_SAMPLES = 65536;
+    static final int MAX_TOP_FILES = 1 << 20;
+    static final int MAX_DIFF_THRESHOLD = 1 << 30;
+    // the whole tree is read into memory by a single thread to be saved without following symlinks,
+    // so the other options do not apply
+    private static final Set<String> SAVE_OPTIONS = Set.of("save", "depth", "limit", "stats", "format");
 
     static {
         options = new Options();
         options.addOption("depth", true, "Recursion depth.");
         options.addOption("limit", true, "Show n heaviest files.");
         options.addOption("L", false, "Follow symlinks.");
+        options.addOption("threads", true, "Number of threads calculating sizes (0 - number of processors).");
+        options.addOption("vthreads", true, "Use virtual threads with at most n file system calls in flight.");
+        options.addOption("native", false, "Size deep directories with Linux system calls instead of java.nio.file.");
+        options.addOption("snapshot", true, "Reuse the sizes of directories unchanged since the previous run stored in the file.");
+        options.addOption("watch", true, "Keep watching the tree and print it every n seconds and on each input line (0 - only on input).");
+        options.addOption("stats", false, "Print the statistics of the scan to the standard error and expose them through JMX.");
+        options.addOption("slowest", true, "Print n directories that have taken the longest to list and read after the tree.");
+        options.addOption("cacheMemory", true, "Megabytes of memory for the cache of directory sizes (default " + DEFAULT_CACHE_MEMORY + ").");
+        options.addOption("exclude", true, "Skip the files matching the .gitignore-style pattern (can be repeated).");
+        options.addOption("include", true, "Count only the files matching the glob pattern (can be repeated).");
+        options.addOption("ignoreFile", true, "Skip the files matching the patterns of the .gitignore-style file (can be repeated).");
+        options.addOption("x", false, "Stay on the file system of the root, do not descend into other mounts.");
+        options.addOption("excludedTotal", false, "Print the number and the total size of the skipped files after the tree.");
+        options.addOption("approx", false, "Estimate the sizes of the directories below the depth by sampling their subdirectories.");
+        options.addOption("samples", true, "Number of the subdirectories sampled in each directory with -approx (default " + DEFAULT_APPROX_SAMPLES + ").");
+        options.addOption("top", true, "Print n largest regular files of the whole tree with their full paths instead of the tree.");
+        options.addOption("format", "format", true, "Print the tree as a box-drawing tree (tree, the default) or as a JSON object per line (ndjson).");
+        options.addOption("timeout", true, "Give up reading a directory after n milliseconds and mark it as timed out (0 - never).");
+        options.addOption("save", true, "Save the whole scanned tree to the file for jdu query.");
+        options.addOption("aggregate", false, "Print the trees of many paths under one root with their total size.");
+
+        queryOptions = new Options();
+        queryOptions.addOption("top", true, "Print n largest regular files under the path instead of its size.");
+
+        diffOptions = new Options();
+        diffOptions.addOption("depth", true, "Recursion depth.");
+        diffOptions.addOption("limit", true, "Show n most changed files.");
+        diffOptions.addOption("threshold", true, "Show only the files whose size has changed by more than n megabytes.");
     }
 
     public JduOptions parseOptions(@NotNull String[] args) {
         try {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
-            if (cmd.getArgList().size() > 1) {
+            List<String> filePaths = cmd.getArgList().isEmpty() ? List.of(System.getProperty("user.dir")) : cmd.getArgList();
+            List<Path> absolutePaths = new ArrayList<>(filePaths.size());
+            for (String filePath : filePaths) {
+                Path absolutePath = Path.of(filePath).toAbsolutePath();
+                if (!Files.exists(absolutePath)) {
+                    throw error(absolutePath + " does not exist.");
+                }
+                if (!Files.isDirectory(absolutePath) && !Files.isRegularFile(absolutePath) && !Files.isSymbolicLink(absolutePath)) {
+                    throw error(absolutePath + " is not a file or a directory.");
+                }
+                absolutePaths.add(absolutePath);
+            }
+            Path absolutePath = absolutePaths.get(0);
+            boolean multipleRoots = absolutePaths.size() > 1;
+            if (multipleRoots && (cmd.hasOption("exclude") || cmd.hasOption("include") || cmd.hasOption("ignoreFile")
+                    || cmd.hasOption("x") || cmd.hasOption("save") || cmd.hasOption("watch"))) {
+                throw error("Many paths cannot be used with exclude, include, ignoreFile, x, save or watch.");
+            }
+            if (cmd.hasOption("aggregate") && !multipleRoots) {
+                throw error("Option aggregate requires many paths.");
+            }
+            int depth = parseNumericOption(cmd, "depth", MAX_DEPTH, DEFAULT_DEPTH);
+            int limit = parseNumericOption(cmd, "limit", MAX_LIMIT, DEFAULT_LIMIT);
+            int threads = parseNumericOption(cmd, "threads", MAX_THREADS, DEFAULT_THREADS);
+            if (threads == 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            int ioConcurrency = parseNumericOption(cmd, "vthreads", MAX_IO_CONCURRENCY, DEFAULT_IO_CONCURRENCY);
+            if (cmd.hasOption("threads") && cmd.hasOption("vthreads")) {
+                throw error("Options threads and vthreads cannot be used together.");
+            }
+            if (cmd.hasOption("native") && (cmd.hasOption("threads") || cmd.hasOption("vthreads"))) {
+                throw error("Option native cannot be used with threads or vthreads.");
+            }
+            if (cmd.hasOption("native") && cmd.hasOption("snapshot")) {
+                throw error("Options native and snapshot cannot be used together.");
+            }
+            int watchInterval = parseNumericOption(cmd, "watch", MAX_WATCH_INTERVAL, NOT_WATCHING);
+            if (cmd.hasOption("watch") && (cmd.hasOption("native") || cmd.hasOption("snapshot"))) {
+                throw error("Option watch cannot be used with native or snapshot.");
+            }
+            int slowestDirectories = parseNumericOption(cmd, "slowest", MAX_SLOWEST_DIRECTORIES, 0);
+            if (cmd.hasOption("watch") && cmd.hasOption("slowest")) {
+                throw error("Options watch and slowest cannot be used together.");
+            }
+            int cacheMemory = parseNumericOption(cmd, "cacheMemory", MAX_CACHE_MEMORY, DEFAULT_CACHE_MEMORY);
+            List<String> excludes = parseExcludes(cmd);
+            List<String> includes = optionValues(cmd, "include");
+            boolean filtered = !excludes.isEmpty() || !includes.isEmpty();
+            if (filtered && (cmd.hasOption("native") || cmd.hasOption("snapshot") || cmd.hasOption("watch"))) {
+                throw error("Options exclude, include and ignoreFile cannot be used with native, snapshot or watch.");
+            }
+            try {
+                PathFilter.compile(absolutePath, excludes, includes, false);
+            } catch (IllegalArgumentException e) {
+                throw error("Invalid pattern:\n" + e.getMessage());
+            }
+            if (cmd.hasOption("excludedTotal") && !filtered) {
+                throw error("Option excludedTotal requires exclude, include or ignoreFile.");
+            }
+            int directoryTimeout = parseNumericOption(cmd, "timeout", MAX_DIRECTORY_TIMEOUT, 0);
+            if (cmd.hasOption("timeout") && (cmd.hasOption("native") || cmd.hasOption("watch"))) {
+                throw error("Option timeout cannot be used with native or watch.");
+            }
+            int approxSamples = parseNumericOption(cmd, "samples", MAX_APPROX_SAMPLES, DEFAULT_APPROX_SAMPLES);
+            if (cmd.hasOption("samples") && !cmd.hasOption("approx")) {
+                throw error("Option samples requires approx.");
+            }
+            if (approxSamples < 2) {
+                throw error("\"" + approxSamples + "\" is too small number in option: samples");
+            }
+            if (cmd.hasOption("approx") && (cmd.hasOption("native") || cmd.hasOption("snapshot") || cmd.hasOption("watch"))) {
+                throw error("Option approx cannot be used with native, snapshot or watch.");
+            }
+            int topFiles = parseNumericOption(cmd, "top", MAX_TOP_FILES, 0);
+            if (cmd.hasOption("top") && (cmd.hasOption("L") || cmd.hasOption("approx") || cmd.hasOption("native")
+                    || cmd.hasOption("snapshot") || cmd.hasOption("watch"))) {
+                throw error("Option top cannot be used with L, approx, native, snapshot or watch.");
+            }
+            OutputFormat outputFormat = parseOutputFormat(cmd);
+            if (outputFormat == OutputFormat.NDJSON && (cmd.hasOption("watch") || cmd.hasOption("top")
+                    || cmd.hasOption("slowest") || cmd.hasOption("excludedTotal"))) {
+                throw error("Format ndjson cannot be used with watch, top, slowest or excludedTotal.");
+            }
+            if (cmd.hasOption("save") && Arrays.stream(cmd.getOptions()).anyMatch(option -> !SAVE_OPTIONS.contains(option.getOpt()))) {
+                throw error("Option save can be used only with depth, limit, stats and format.");
+            }
+            Path savePath = cmd.hasOption("save") ? Path.of(cmd.getOptionValue("save")).toAbsolutePath() : null;
+            Path snapshotPath = cmd.hasOption("snapshot") ? Path.of(cmd.getOptionValue("snapshot")).toAbsolutePath() : null;
+            return new JduOptions(cmd.hasOption("L"), depth, limit, ComparatorType.SIZE_COMPARATOR, absolutePath,
+                    threads, ioConcurrency, cmd.hasOption("native"), snapshotPath, watchInterval,
+                    cmd.hasOption("stats"), slowestDirectories, cacheMemory, excludes, includes,
+                    cmd.hasOption("excludedTotal"), cmd.hasOption("x"), directoryTimeout,
+                    cmd.hasOption("approx") ? approxSamples : 0, topFiles, outputFormat, savePath,
+                    List.copyOf(absolutePaths.subList(1, absolutePaths.size())), cmd.hasOption("aggregate"));
+        } catch (InvalidPathException e) {
+            throw error("Invalid file path:\n" + e.getMessage());
+        } catch (ParseException e) {
+            throw new JduInvalidArgumentsException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses the arguments of <code>jdu query</code> following the word <code>query</code>:
+     * <code>[-top n] file [path]</code>.
+     */
+    public JduQuery parseQuery(@NotNull String[] args) {
+        try {
+            CommandLineParser parser = new DefaultParser();
+            CommandLine cmd = parser.parse(queryOptions, args);
+            if (cmd.getArgList().isEmpty()) {
+                throw error("The file of the saved tree is required.");
+            }
+            if (cmd.getArgList().size() > 2) {
                 throw error("Too many path parameters.");
             }
-            String filePath = "";
-            if (cmd.getArgList().size() == 1) {
-                filePath = cmd.getArgList().get(0);
+            Path savedTreePath = Path.of(cmd.getArgList().get(0)).toAbsolutePath();
+            if (!Files.isRegularFile(savedTreePath)) {
+                throw error(savedTreePath + " does not exist.");
             }
-            if (cmd.getArgList().size() == 0) {
-                filePath = System.getProperty("user.dir");
+            Path path = cmd.getArgList().size() == 2 ? Path.of(cmd.getArgList().get(1)).toAbsolutePath() : null;
+            int topFiles = parseNumericOption(cmd, "top", MAX_TOP_FILES, 0);
+            return new JduQuery(savedTreePath, path, topFiles);
+        } catch (InvalidPathException e) {
+            throw error("Invalid file path:\n" + e.getMessage());
+        } catch (ParseException e) {
+            throw new JduInvalidArgumentsException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses the arguments of <code>jdu diff</code> following the word <code>diff</code>:
+     * <code>[-depth n] [-limit n] [-threshold n] file [file | directory]</code>.
+     */
+    public JduDiff parseDiff(@NotNull String[] args) {
+        try {
+            CommandLineParser parser = new DefaultParser();
+            CommandLine cmd = parser.parse(diffOptions, args);
+            if (cmd.getArgList().isEmpty()) {
+                throw error("The file of the saved tree is required.");
+            }
+            if (cmd.getArgList().size() > 2) {
+                throw error("Too many path parameters.");
             }
-            Path absolutePath = Path.of(filePath).toAbsolutePath();
-            if (!Files.exists(absolutePath)) {
-                throw error(absolutePath + " does not exist.");
+            Path oldTreePath = Path.of(cmd.getArgList().get(0)).toAbsolutePath();
+            if (!Files.isRegularFile(oldTreePath)) {
+                throw error(oldTreePath + " does not exist.");
             }
-            if (!Files.isDirectory(absolutePath) && !Files.isRegularFile(absolutePath) && !Files.isSymbolicLink(absolutePath)) {
-                throw error(absolutePath + " is not a file or a directory.");
+            Path newPath = null;
+            if (cmd.getArgList().size() == 2) {
+                newPath = Path.of(cmd.getArgList().get(1)).toAbsolutePath();
+                if (!Files.exists(newPath)) {
+                    throw error(newPath + " does not exist.");
+                }
             }
             int depth = parseNumericOption(cmd, "depth", MAX_DEPTH, DEFAULT_DEPTH);
             int limit = parseNumericOption(cmd, "limit", MAX_LIMIT, DEFAULT_LIMIT);
-            return new JduOptions(cmd.hasOption("L"), depth, limit, ComparatorType.SIZE_COMPARATOR, absolutePath);
+            int threshold = parseNumericOption(cmd, "threshold", MAX_DIFF_THRESHOLD, 0);
+            return new JduDiff(oldTreePath, newPath, depth, limit, threshold);
         } catch (InvalidPathException e) {
             throw error("Invalid file path:\n" + e.getMessage());
         } catch (ParseException e) {
@@ -57,6 +249,42 @@ public class JduOptionsParser {
         }
     }
 
+    /**
+     * Returns the lines of the ignore files followed by the excluded patterns, so the patterns
+     * given on the command line override the ignore files.
+     */
+    @NotNull
+    private List<String> parseExcludes(@NotNull CommandLine cmd) {
+        List<String> excludes = new ArrayList<>();
+        for (String ignoreFile : optionValues(cmd, "ignoreFile")) {
+            try {
+                excludes.addAll(Files.readAllLines(Path.of(ignoreFile)));
+            } catch (IOException e) {
+                throw error("Unable to read the ignore file " + ignoreFile + ": " + e.getMessage());
+            }
+        }
+        excludes.addAll(optionValues(cmd, "exclude"));
+        return List.copyOf(excludes);
+    }
+
+    @NotNull
+    private static List<String> optionValues(@NotNull CommandLine cmd, @NotNull String optionType) {
+        String[] values = cmd.getOptionValues(optionType);
+        return values == null ? List.of() : List.of(values);
+    }
+
+    @NotNull
+    private static OutputFormat parseOutputFormat(@NotNull CommandLine cmd) throws JduInvalidArgumentsException {
+        if (!cmd.hasOption("format")) {
+            return OutputFormat.TREE;
+        }
+        return switch (cmd.getOptionValue("format")) {
+            case "tree" -> OutputFormat.TREE;
+            case "ndjson" -> OutputFormat.NDJSON;
+            default -> throw error("\"" + cmd.getOptionValue("format") + "\" is not a format, tree or ndjson expected.");
+        };
+    }
+
     private int parseNumericOption(@NotNull CommandLine cmd, @NotNull String optionType, int limitValue, int defaultValue) throws JduInvalidArgumentsException {
         int optionValue = defaultValue;
         if (cmd.hasOption(optionType)) {
@@ -0,0 +1,17 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+/**
+ * Arguments of <code>jdu query</code>, which answers from a tree saved with <code>-save</code>
+ * without reading the file system.
+ *
+ * @param savedTreePath the file the tree has been saved to
+ * @param path          the absolute path asked about, or null for the root of the saved tree
+ * @param topFiles      the number of the largest files under the path to print, or 0 to print the size of the path
+ */
+public record JduQuery(@NotNull Path savedTreePath, @Nullable Path path, int topFiles) {
+}
@@ -1,17 +1,193 @@
 package ru.nsu.fit.sckwo;
 
 import ru.nsu.fit.sckwo.exception.JduException;
+import ru.nsu.fit.sckwo.exception.JduInvalidArgumentsException;
+import ru.nsu.fit.sckwo.exception.JduRuntimeException;
+import ru.nsu.fit.sckwo.metrics.DirectoryProfile;
+import ru.nsu.fit.sckwo.tree.CompactFileTree;
+import ru.nsu.fit.sckwo.tree.CompactTreeScanner;
+import ru.nsu.fit.sckwo.tree.MappedFileTree;
+import ru.nsu.fit.sckwo.utils.FileSizeUnit;
+import ru.nsu.fit.sckwo.utils.LargestFiles;
+import ru.nsu.fit.sckwo.utils.PathFilter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 public class Main {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
     public static void main(String[] args) {
         try {
-            JduOptionsParser jduOptionsParser = new JduOptionsParser();
-            JduOptions jduOptions = jduOptionsParser.parseOptions(args);
-            FileVisitor printer = new Printer(System.out, jduOptions.depth(), jduOptions.followSymlinks());
-            TreeWalker treeWalker = new TreeWalker(jduOptions, printer);
-            treeWalker.walk(jduOptions.rootAbsolutePath());
+            run(args);
         } catch (JduException e) {
             System.err.println(e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs <code>jdu</code> with the command line arguments.
+     *
+     * @throws JduException if the arguments are invalid or the tree cannot be read
+     */
+    public static void run(String[] args) {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        if (args.length > 0 && args[0].equals("query")) {
+            query(jduOptionsParser.parseQuery(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("diff")) {
+            diff(jduOptionsParser.parseDiff(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        if (jduOptions.watchInterval() >= 0) {
+            watch(jduOptions);
+            return;
+        }
+        PrintStream output = bufferedStandardOutput();
+        NdjsonPrinter ndjsonPrinter = jduOptions.outputFormat() == OutputFormat.NDJSON
+                ? new NdjsonPrinter(Channels.newChannel(new FileOutputStream(FileDescriptor.out)))
+                : null;
+        // the largest files are printed instead of the tree
+        FileVisitor visitor = jduOptions.topFiles() > 0
+                ? (curFile, depthLevel) -> {}
+                : ndjsonPrinter != null ? ndjsonPrinter : new Printer(output, jduOptions.depth(), jduOptions.followSymlinks());
+        try (TreeWalker treeWalker = new TreeWalker(jduOptions, visitor)) {
+            if (jduOptions.stats()) {
+                treeWalker.getMetrics().register();
+            }
+            try {
+                if (jduOptions.savePath() != null) {
+                    // the whole tree is read to be saved, and the part of it within the depth is printed
+                    CompactFileTree tree = new CompactTreeScanner(false, jduOptions.stats() ? treeWalker.getMetrics() : null)
+                            .scan(jduOptions.rootAbsolutePath());
+                    treeWalker.walk(tree);
+                    save(tree, jduOptions.savePath());
+                } else {
+                    treeWalker.walk(jduOptions.rootAbsolutePaths());
+                }
+                LargestFiles largestFiles = treeWalker.getLargestFiles();
+                if (largestFiles != null) {
+                    largestFiles.print(output);
+                }
+                DirectoryProfile profile = treeWalker.getMetrics().getProfile();
+                if (profile != null) {
+                    profile.print(output);
+                }
+                PathFilter.ExcludedTotal excludedTotal = treeWalker.getExcludedTotal();
+                if (excludedTotal != null) {
+                    excludedTotal.print(output);
+                }
+            } finally {
+                if (ndjsonPrinter != null) {
+                    ndjsonPrinter.flush();
+                }
+                output.flush();
+            }
+            if (jduOptions.stats()) {
+                System.err.println(treeWalker.getMetrics().summary());
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over the standard output in its charset, which is flushed only when its large buffer is full
+     * (<code>System.out</code> flushes every line).
+     */
+    private static PrintStream bufferedStandardOutput() {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_SIZE),
+                false, System.out.charset());
+    }
+
+    private static void save(CompactFileTree tree, Path savePath) {
+        try {
+            MappedFileTree.write(tree, savePath);
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    /**
+     * Prints the size of the path or the largest files under it from the saved tree.
+     */
+    private static void query(JduQuery query) {
+        PrintStream output = bufferedStandardOutput();
+        try {
+            MappedFileTree tree = MappedFileTree.open(query.savedTreePath());
+            Path path = query.path() != null ? query.path() : tree.getRootPath();
+            int entry = tree.find(path);
+            if (entry == MappedFileTree.NO_ENTRY) {
+                throw new JduInvalidArgumentsException(path + " is not in the tree of " + tree.getRootPath() + " saved to " + query.savedTreePath() + ".");
+            }
+            if (query.topFiles() > 0) {
+                tree.largestFiles(entry, query.topFiles()).print(output);
+            } else {
+                long size = tree.getSize(entry);
+                output.printf("%12s  %s%n", size < 0 ? "unknown" : FileSizeUnit.bytesToHumanReadableFormat(size), path);
+            }
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        } finally {
+            output.flush();
+        }
+    }
+
+    /**
+     * Prints the changed files of the saved trees, or of the saved tree and the tree scanned now.
+     */
+    private static void diff(JduDiff diff) {
+        PrintStream output = bufferedStandardOutput();
+        try {
+            MappedFileTree oldTree = MappedFileTree.open(diff.oldTreePath());
+            MappedFileTree newTree;
+            if (diff.newPath() == null || Files.isDirectory(diff.newPath())) {
+                // the scanned tree is saved to a temporary file to be compared the same way as a saved one
+                Path root = diff.newPath() != null ? diff.newPath() : oldTree.getRootPath();
+                Path scannedTreePath = Files.createTempFile("jdu", ".tree");
+                scannedTreePath.toFile().deleteOnExit();
+                MappedFileTree.write(new CompactTreeScanner(false).scan(root), scannedTreePath);
+                newTree = MappedFileTree.open(scannedTreePath);
+            } else {
+                newTree = MappedFileTree.open(diff.newPath());
+            }
+            new TreeDiff(oldTree, newTree, diff.depth(), diff.limit(), (long) diff.thresholdMegabytes() << 20)
+                    .walk(new Printer(output, diff.depth(), false));
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        } finally {
+            output.flush();
+        }
+    }
+
+    private static void watch(JduOptions jduOptions) {
+        PrintStream output = bufferedStandardOutput();
+        try (TreeWatcher treeWatcher = new TreeWatcher(jduOptions,
+                () -> new Printer(output, jduOptions.depth(), jduOptions.followSymlinks()), output)) {
+            Thread inputReader = new Thread(() -> requestRenderOnInput(treeWatcher), "jdu-input");
+            inputReader.setDaemon(true);
+            inputReader.start();
+            treeWatcher.run();
+        }
+    }
+
+    private static void requestRenderOnInput(TreeWatcher treeWatcher) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            while (reader.readLine() != null) {
+                treeWatcher.requestRender();
+            }
+        } catch (IOException ignored) {
+            // the tree is still rendered on the interval
+        }
+    }
+}
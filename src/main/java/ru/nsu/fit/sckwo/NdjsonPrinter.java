@@ -0,0 +1,168 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.exception.JduRuntimeException;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static ru.nsu.fit.sckwo.dufile.DuFileType.isFileSizeCountable;
+
+/**
+ * Writes every visited file as a JSON object on a line of its own (newline-delimited JSON),
+ * in the order of the visits:
+ * <pre>
+ * {"path":"/home/user","size":75,"type":"directory","depth":0,"children":2}
+ * {"path":"/home/user/file","size":75,"type":"regular","depth":1,"children":0}
+ * </pre>
+ * The size is <code>null</code> if it is unknown or not shown for the type of the file,
+ * and an estimated size is followed by its <code>"margin"</code> of error.
+ * <p/>
+ * The lines are encoded in UTF-8 straight into one reusable buffer, which is written to the channel
+ * whenever it is full, so nothing is allocated per line except the path of the file, and the memory
+ * does not depend on the size of the tree. The channel is written only when the buffer is full
+ * and on {@link #flush()}.
+ */
+public class NdjsonPrinter implements FileVisitor, Flushable {
+    private static final int BUFFER_CAPACITY = 1 << 16;
+    // the longest encoding of a char: a control character escaped with its hexadecimal code
+    private static final int MAX_CHAR_BYTES = 6;
+    // the longest encoding of a number: the sign and 19 digits
+    private static final int MAX_NUMBER_BYTES = 20;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PATH = ascii("{\"path\":\"");
+    private static final byte[] SIZE = ascii("\",\"size\":");
+    private static final byte[] MARGIN = ascii(",\"margin\":");
+    private static final byte[] TYPE = ascii(",\"type\":\"");
+    private static final byte[] DEPTH = ascii("\",\"depth\":");
+    private static final byte[] CHILDREN = ascii(",\"children\":");
+    private static final byte[] NULL = ascii("null");
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_CAPACITY);
+    private final byte[] digits = new byte[MAX_NUMBER_BYTES];
+
+    public NdjsonPrinter(@NotNull WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void visitFile(@NotNull DuFile curFile, int depthLevel) {
+        try {
+            put(PATH);
+            putString(curFile.getAbsolutePath().toString());
+            put(SIZE);
+            if (isFileSizeCountable(curFile.getType()) && curFile.getSize() >= 0) {
+                putNumber(curFile.getSize());
+                if (curFile.isSizeApproximate()) {
+                    put(MARGIN);
+                    putNumber(curFile.getSizeMargin());
+                }
+            } else {
+                put(NULL);
+            }
+            put(TYPE);
+            putString(curFile.getType().getName());
+            put(DEPTH);
+            putNumber(depthLevel);
+            put(CHILDREN);
+            putNumber(curFile.getActualCountOfChildren());
+            ensureRemaining(2);
+            buffer.put((byte) '}').put((byte) '\n');
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the buffered lines to the channel.
+     */
+    @Override
+    public void flush() {
+        try {
+            drain();
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    private void put(byte @NotNull [] bytes) throws IOException {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putNumber(long number) throws IOException {
+        ensureRemaining(MAX_NUMBER_BYTES);
+        if (number < 0) {
+            buffer.put((byte) '-');
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + Math.abs(number % 10));
+            number /= 10;
+        } while (number != 0);
+        buffer.put(digits, position, digits.length - position);
+    }
+
+    /**
+     * Puts the contents of a JSON string: the quote, the backslash and the control characters are escaped,
+     * the rest is encoded in UTF-8. An unpaired surrogate cannot be encoded, so it is escaped as well.
+     */
+    private void putString(@NotNull String string) throws IOException {
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            ensureRemaining(MAX_CHAR_BYTES);
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                putEscaped(c);
+            } else if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xf0 | codePoint >> 18))
+                        .put((byte) (0x80 | codePoint >> 12 & 0x3f))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3f))
+                        .put((byte) (0x80 | codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                putEscaped(c);
+            } else {
+                buffer.put((byte) (0xe0 | c >> 12))
+                        .put((byte) (0x80 | c >> 6 & 0x3f))
+                        .put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    private void putEscaped(char c) {
+        buffer.put((byte) '\\').put((byte) 'u')
+                .put(HEX_DIGITS[c >> 12 & 0xf])
+                .put(HEX_DIGITS[c >> 8 & 0xf])
+                .put(HEX_DIGITS[c >> 4 & 0xf])
+                .put(HEX_DIGITS[c & 0xf]);
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte @NotNull [] ascii(@NotNull String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,8 @@
+package ru.nsu.fit.sckwo;
+
+public enum OutputFormat {
+    // the box-drawing tree of Printer
+    TREE,
+    // a JSON object per line of NdjsonPrinter
+    NDJSON
+}
@@ -4,25 +4,54 @@ import org.jetbrains.annotations.NotNull;
 import ru.nsu.fit.sckwo.dufile.DuFile;
 import ru.nsu.fit.sckwo.dufile.DuFileType;
 
+import java.io.Flushable;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 import static ru.nsu.fit.sckwo.dufile.DuFileType.isFileSizeCountable;
-import static ru.nsu.fit.sckwo.utils.FileSizeUnit.bytesToHumanReadableFormat;
+import static ru.nsu.fit.sckwo.utils.FileSizeUnit.appendHumanReadableFormat;
 
-public class Printer implements FileVisitor {
+/**
+ * Prints the tree line by line.
+ * <p/>
+ * Nothing is allocated per line except the name of the file: the indent of the ancestors is kept
+ * in a buffer and changed only at the levels that change, and the line is built and encoded in reusable buffers
+ * and written to the stream at once. The stream is flushed only if it flushes itself,
+ * so a large buffered stream should be passed for large trees (see {@link #flush()}).
+ */
+public class Printer implements FileVisitor, Flushable {
     private static final String INDENT_TAB = "   ";
+    private static final String INDENT_CONTINUED = "│" + INDENT_TAB;
+    private static final String INDENT_FINISHED = " " + INDENT_TAB;
+    private static final int INDENT_WIDTH = INDENT_TAB.length() + 1;
+    private static final int INITIAL_LINE_CAPACITY = 256;
     private final PrintStream printStream;
-    private String currentCompoundIndent = "";
-    private final List<Integer> countsOfChildren;
+    private final CharsetEncoder encoder;
+    private final String lineSeparator = System.lineSeparator();
+    // the indent of the levels above the current one, INDENT_WIDTH characters per level
+    private char[] ancestorsIndent;
+    private int[] countsOfChildren;
+    private final StringBuilder line = new StringBuilder(INITIAL_LINE_CAPACITY);
+    private CharBuffer lineChars = CharBuffer.allocate(INITIAL_LINE_CAPACITY);
+    private ByteBuffer lineBytes = ByteBuffer.allocate(INITIAL_LINE_CAPACITY * 4);
     private boolean isParentSymlink = false;
     private int previousDepthLevel = -1;
     private final boolean followSymlinks;
 
     public Printer(@NotNull PrintStream printStream, int depthLimit, boolean followSymlinks) {
         this.printStream = printStream;
-        countsOfChildren = new ArrayList<>(depthLimit);
+        // replaces what cannot be encoded, like the stream does
+        encoder = printStream.charset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int levels = Math.max(1, Math.min(depthLimit, 1024) + 2);
+        countsOfChildren = new int[levels];
+        ancestorsIndent = new char[levels * INDENT_WIDTH];
         this.followSymlinks = followSymlinks;
     }
 
@@ -38,6 +67,7 @@ public class Printer implements FileVisitor {
      *     <li>dangling symlink</li>
      *     <li>broken symlink</li>
      *     <li>unknown file (none of the above types)</li>
+     *     <li>timed out directory (not read within the deadline, so its size is not shown)</li>
      * </ul>
      * <p/>
      * Possible corner cases:
@@ -45,6 +75,10 @@ public class Printer implements FileVisitor {
      *     <li>file size is negative (cases when the size of the file cannot be calculated, but its name exists) <br/>
      *     - do not show the size</li>
      *     <li>file is a direct child of a symlink - the indentation is marked with a special arrow</li>
+     *     <li>file size is estimated - the size is marked with a tilde and followed by its margin of error,
+     *     e.g. <code>[~1.2 TB ±3%]</code></li>
+     *     <li>file is compared with an earlier scan - the size is followed by its change,
+     *     e.g. <code>[1.2 TB +20 GB]</code></li>
      * </ul>
      * <p/>
      * Example of output:
@@ -69,75 +103,104 @@ public class Printer implements FileVisitor {
             decrementCountOfChildrenOnRecursionLevel(depthLevel - 1);
         }
         if (curFile.getType() == DuFileType.SYMLINK) {
-            addCountOfChildrenOnRecursionLevel(depthLevel, 1);
-            updateCurrentCompoundIndent(depthLevel);
+            setCountOfChildrenOnRecursionLevel(depthLevel, 1);
+            appendCompoundIndent(depthLevel);
             isParentSymlink = followSymlinks;
         } else {
-            addCountOfChildrenOnRecursionLevel(depthLevel, curFile.getActualCountOfChildren());
-            updateCurrentCompoundIndent(depthLevel);
+            setCountOfChildrenOnRecursionLevel(depthLevel, curFile.getActualCountOfChildren());
+            appendCompoundIndent(depthLevel);
             isParentSymlink = false;
         }
         printFileInfo(curFile);
         previousDepthLevel = depthLevel;
     }
 
-    private void printFileInfo(@NotNull DuFile curFile) {
-        printStream.println(
-                currentCompoundIndent
-                        + curFile.getAbsolutePath().getFileName().toString()
-                        + " "
-                        + getHumanReadableSizeOf(curFile)
-                        + "["
-                        + curFile.getType().getName()
-                        + "]");
-
+    /**
+     * Flushes the stream, so everything visited so far is shown.
+     */
+    @Override
+    public void flush() {
+        printStream.flush();
     }
 
-    private void addCountOfChildrenOnRecursionLevel(int depthLevel, int countOfChildren) {
-        countsOfChildren.add(depthLevel, countOfChildren);
+    private void printFileInfo(@NotNull DuFile curFile) {
+        line.append(curFile.getAbsolutePath().getFileName().toString()).append(' ');
+        if (isFileSizeCountable(curFile.getType())) {
+            line.append('[');
+            if (curFile.isSizeApproximate()) {
+                line.append('~');
+                appendHumanReadableFormat(curFile.getSize(), line);
+                line.append(" ±").append(marginPercent(curFile)).append('%');
+            } else {
+                appendHumanReadableFormat(curFile.getSize(), line);
+            }
+            if (curFile.isSizeCompared()) {
+                line.append(curFile.getSizeDelta() < 0 ? " -" : " +");
+                appendHumanReadableFormat(Math.abs(curFile.getSizeDelta()), line);
+            }
+            line.append("] ");
+        }
+        line.append('[').append(curFile.getType().getName()).append(']').append(lineSeparator);
+        writeLine();
     }
 
-    private void decrementCountOfChildrenOnRecursionLevel(int depthLevel) {
-        countsOfChildren.set(depthLevel, countsOfChildren.get(depthLevel) - 1);
+    /**
+     * Returns the margin of error of the estimated size in percent of the size, rounded up.
+     */
+    private static long marginPercent(@NotNull DuFile file) {
+        if (file.getSize() <= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(100.0 * file.getSizeMargin() / file.getSize());
     }
 
-    private void updateCurrentCompoundIndent(int curDepth) {
-        currentCompoundIndent = getCompoundIndent(curDepth, countsOfChildren, isParentSymlink);
+    /**
+     * Encodes the line with the charset of the stream and writes it with a single call.
+     */
+    private void writeLine() {
+        int length = line.length();
+        if (lineChars.capacity() < length) {
+            lineChars = CharBuffer.allocate(Math.max(length, lineChars.capacity() * 2));
+        }
+        line.getChars(0, length, lineChars.array(), 0);
+        line.setLength(0);
+        lineChars.clear().limit(length);
+        lineBytes.clear();
+        while (true) {
+            CoderResult result = encoder.encode(lineChars, lineBytes, false);
+            if (!result.isOverflow()) {
+                break;
+            }
+            lineBytes = ByteBuffer.allocate(lineBytes.capacity() * 2).put(lineBytes.flip());
+        }
+        printStream.write(lineBytes.array(), 0, lineBytes.position());
     }
 
-    private static String getHumanReadableSizeOf(@NotNull DuFile file) {
-        String formattedFileByteSize = "";
-        if (isFileSizeCountable(file.getType())) {
-            formattedFileByteSize = "[" + bytesToHumanReadableFormat(file.getSize()) + "] ";
+    private void setCountOfChildrenOnRecursionLevel(int depthLevel, int countOfChildren) {
+        if (depthLevel >= countsOfChildren.length) {
+            countsOfChildren = Arrays.copyOf(countsOfChildren, Math.max(depthLevel + 1, countsOfChildren.length * 2));
+            ancestorsIndent = Arrays.copyOf(ancestorsIndent, countsOfChildren.length * INDENT_WIDTH);
         }
-        return formattedFileByteSize;
+        countsOfChildren[depthLevel] = countOfChildren;
     }
 
-    private static String getCompoundIndent(int currentDepth, @NotNull List<Integer> countsOfChildren, boolean isParentSymlink) {
-        StringBuilder builder = new StringBuilder();
-        String INDENT_HORIZONTAL = "─";
-        if (isParentSymlink) {
-            INDENT_HORIZONTAL = "▷";
-        }
-        for (int i = 0; i < countsOfChildren.size(); i++) {
-            if (currentDepth == 0) {
-                break;
-            }
-            if (i == currentDepth - 1) {
-                if (countsOfChildren.get(i) == 0) {
-                    builder.append("╰").append(INDENT_HORIZONTAL).append(" ");
-                } else {
-                    builder.append("├").append(INDENT_HORIZONTAL).append(" ");
-                }
-                break;
-            }
-            if (countsOfChildren.get(i) == 0) {
-                builder.append(" " + INDENT_TAB);
-            } else {
-                builder.append("│" + INDENT_TAB);
-            }
+    /**
+     * Decrements the count of the children left to visit on the level and updates the indent of the level
+     * for the lines below the visited child.
+     */
+    private void decrementCountOfChildrenOnRecursionLevel(int depthLevel) {
+        countsOfChildren[depthLevel]--;
+        String indent = countsOfChildren[depthLevel] == 0 ? INDENT_FINISHED : INDENT_CONTINUED;
+        indent.getChars(0, INDENT_WIDTH, ancestorsIndent, depthLevel * INDENT_WIDTH);
+    }
 
+    private void appendCompoundIndent(int currentDepth) {
+        if (currentDepth == 0) {
+            return;
         }
-        return String.valueOf(builder);
+        line.append(ancestorsIndent, 0, (currentDepth - 1) * INDENT_WIDTH)
+                .append(countsOfChildren[currentDepth - 1] == 0 ? '╰' : '├')
+                .append(isParentSymlink ? '▷' : '─')
+                .append(' ');
     }
-}
\ No newline at end of file
+}
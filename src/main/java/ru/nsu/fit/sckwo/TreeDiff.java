@@ -0,0 +1,136 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.tree.MappedFileTree;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static ru.nsu.fit.sckwo.tree.MappedFileTree.NO_ENTRY;
+
+/**
+ * Compares two saved trees and passes the files whose sizes have changed to <code>FileVisitor</code>,
+ * the way <code>TreeWalker</code> passes a tree: every file with its new size and the change of it
+ * ({@link DuFile#getSizeDelta()}), the children of a directory sorted by the absolute change, the largest first,
+ * cut down to the limit and to the depth.
+ * <p/>
+ * The children of the matching directories are merged by name, which both trees keep sorted. A file whose
+ * size (the total size for a directory) has not changed by more than the threshold is skipped with its subtree
+ * without reading it, so the comparison reads only the parts of the trees that have changed. A file that exists
+ * in one of the trees only is compared with nothing: its size is 0 in the other tree.
+ */
+public final class TreeDiff {
+    private static final Comparator<ChangedPair> BY_DELTA = Comparator.comparingLong((ChangedPair pair) -> Math.abs(pair.delta)).reversed();
+    private final MappedFileTree oldTree;
+    private final MappedFileTree newTree;
+    private final int depth;
+    private final int limit;
+    private final long threshold;
+
+    /**
+     * @param threshold the change of the size in bytes a file has to exceed to be shown
+     */
+    public TreeDiff(@NotNull MappedFileTree oldTree, @NotNull MappedFileTree newTree, int depth, int limit, long threshold) {
+        this.oldTree = oldTree;
+        this.newTree = newTree;
+        this.depth = depth;
+        this.limit = limit;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Passes the root of the new tree and the changed files under it to the visitor.
+     */
+    public void walk(@NotNull FileVisitor visitor) {
+        visit(compare(newTree.getRootPath(), MappedFileTree.ROOT, MappedFileTree.ROOT, 0), 0, visitor);
+    }
+
+    private static void visit(@NotNull Change change, int curDepth, @NotNull FileVisitor visitor) {
+        visitor.visitFile(change.file, curDepth);
+        for (Change child : change.children) {
+            visit(child, curDepth + 1, visitor);
+        }
+    }
+
+    @NotNull
+    private Change compare(@NotNull Path path, int oldEntry, int newEntry, int curDepth) {
+        long delta = sizeOf(newTree, newEntry) - sizeOf(oldTree, oldEntry);
+        DuFileType type = newEntry != NO_ENTRY ? newTree.getType(newEntry) : oldTree.getType(oldEntry);
+        DuFile file = new DuFile(path, type);
+        file.setSize(sizeOf(newTree, newEntry));
+        file.setSizeDelta(delta);
+        List<Change> children = new ArrayList<>();
+        if (curDepth < depth) {
+            for (ChangedPair pair : changedChildren(oldEntry, newEntry)) {
+                String name = pair.newEntry != NO_ENTRY ? newTree.getName(pair.newEntry) : oldTree.getName(pair.oldEntry);
+                children.add(compare(path.resolve(name), pair.oldEntry, pair.newEntry, curDepth + 1));
+            }
+        }
+        file.setActualCountOfChildren(children.size());
+        return new Change(file, children);
+    }
+
+    /**
+     * Merges the sorted children of the entries by name and returns the most changed ones within the limit.
+     */
+    @NotNull
+    private List<ChangedPair> changedChildren(int oldEntry, int newEntry) {
+        List<ChangedPair> children = new ArrayList<>();
+        int oldChild = firstChild(oldEntry);
+        int oldEnd = subtreeEnd(oldTree, oldEntry);
+        int newChild = firstChild(newEntry);
+        int newEnd = subtreeEnd(newTree, newEntry);
+        while (oldChild < oldEnd || newChild < newEnd) {
+            int order;
+            if (oldChild >= oldEnd) {
+                order = 1;
+            } else if (newChild >= newEnd) {
+                order = -1;
+            } else {
+                order = oldTree.getName(oldChild).compareTo(newTree.getName(newChild));
+            }
+            int matchedOld = order <= 0 ? oldChild : NO_ENTRY;
+            int matchedNew = order >= 0 ? newChild : NO_ENTRY;
+            long delta = sizeOf(newTree, matchedNew) - sizeOf(oldTree, matchedOld);
+            if (Math.abs(delta) > threshold) {
+                children.add(new ChangedPair(matchedOld, matchedNew, delta));
+            }
+            if (matchedOld != NO_ENTRY) {
+                oldChild += oldTree.getSubtreeLength(oldChild);
+            }
+            if (matchedNew != NO_ENTRY) {
+                newChild += newTree.getSubtreeLength(newChild);
+            }
+        }
+        children.sort(BY_DELTA);
+        return children.size() > limit ? children.subList(0, limit) : children;
+    }
+
+    /**
+     * Returns the size of the entry, 0 if it is not in the tree or its size is unknown.
+     */
+    private static long sizeOf(@NotNull MappedFileTree tree, int entry) {
+        return entry == NO_ENTRY ? 0 : Math.max(tree.getSize(entry), 0);
+    }
+
+    private static int firstChild(int entry) {
+        return entry == NO_ENTRY ? NO_ENTRY : entry + 1;
+    }
+
+    private static int subtreeEnd(@NotNull MappedFileTree tree, int entry) {
+        return entry == NO_ENTRY ? NO_ENTRY : entry + tree.getSubtreeLength(entry);
+    }
+
+    private record Change(@NotNull DuFile file, @NotNull List<Change> children) {
+    }
+
+    /**
+     * The entries of a file in the old and the new trees, one of them may be {@link MappedFileTree#NO_ENTRY}.
+     */
+    private record ChangedPair(int oldEntry, int newEntry, long delta) {
+    }
+}
@@ -2,42 +2,195 @@ package ru.nsu.fit.sckwo;
 
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.nsu.fit.sckwo.comparators.DuFileLexicographicalComparator;
 import ru.nsu.fit.sckwo.comparators.DuFileSizeComparator;
 import ru.nsu.fit.sckwo.dufile.DuFile;
 import ru.nsu.fit.sckwo.dufile.DuFileType;
 import ru.nsu.fit.sckwo.exception.JduRuntimeException;
+import ru.nsu.fit.sckwo.metrics.AttributeReadEvent;
+import ru.nsu.fit.sckwo.metrics.DirectoryListingEvent;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
+import ru.nsu.fit.sckwo.metrics.VisitorCallbackEvent;
+import ru.nsu.fit.sckwo.tree.CompactFileTree;
+import ru.nsu.fit.sckwo.utils.DirectorySizer;
 import ru.nsu.fit.sckwo.utils.FileSizeCacheCalculator;
+import ru.nsu.fit.sckwo.utils.IoCall;
+import ru.nsu.fit.sckwo.utils.IoDeadline;
+import ru.nsu.fit.sckwo.utils.IoTimeoutException;
+import ru.nsu.fit.sckwo.utils.LargestFiles;
+import ru.nsu.fit.sckwo.utils.MountBoundary;
+import ru.nsu.fit.sckwo.utils.PathFilter;
+import ru.nsu.fit.sckwo.utils.ScanSnapshot;
+import ru.nsu.fit.sckwo.utils.StructuredTaskRunner;
 
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntBinaryOperator;
 
+import static java.lang.Integer.max;
 import static java.lang.Integer.min;
 import static ru.nsu.fit.sckwo.dufile.DuFileType.isFileSizeCountable;
-import static ru.nsu.fit.sckwo.dufile.DuFileType.recognizeFileType;
 
 @Slf4j
-public class TreeWalker {
+public class TreeWalker implements AutoCloseable {
+    private static final int MIN_CONCURRENT_BATCH_SIZE = 1024;
     private final JduOptions options;
     private final Comparator<DuFile> comparator;
     private final FileSizeCacheCalculator fileSizeCacheCalculator;
     private final FileVisitor visitor;
-    private final List<Path> visited;
+    // the file keys of the symlinks being followed, from the outermost to the current one
+    private final Set<Object> followedSymlinks = new HashSet<>();
+    private final Map<SymlinkTarget, ScannedFile> scannedSymlinkTargets = new HashMap<>();
+    // the roots of a walk of many roots scanned so far by their normalized paths, which are reused inside the other roots
+    private final Map<Path, ScannedFile> scannedRoots = new ConcurrentHashMap<>();
+    @Nullable
+    private final StructuredTaskRunner taskRunner;
+    @Nullable
+    private final ScanSnapshot snapshot;
+    private final Comparator<RankedChild> childOrder;
+    private final ScanMetrics metrics;
+    private final PathFilter filter;
+    private final MountBoundary boundary;
+    @Nullable
+    private final IoDeadline deadline;
+    @Nullable
+    private final LargestFiles largestFiles;
 
     public TreeWalker(@NotNull JduOptions options, @NotNull FileVisitor visitor) {
+        this(options, visitor, options.nativeBackend() ? loadDirectorySizer() : null);
+    }
+
+    /**
+     * Creates a walker that takes the sizes of the directories below the depth limit from <code>directorySizer</code>,
+     * if it supports them.
+     */
+    TreeWalker(@NotNull JduOptions options, @NotNull FileVisitor visitor, @Nullable DirectorySizer directorySizer) {
+        this(options, visitor, directorySizer, MountBoundary.of(options.rootAbsolutePaths(), options.oneFileSystem()));
+    }
+
+    /**
+     * Creates a walker that does not descend into the directories beyond <code>boundary</code>.
+     */
+    TreeWalker(@NotNull JduOptions options, @NotNull FileVisitor visitor, @Nullable DirectorySizer directorySizer,
+               @NotNull MountBoundary boundary) {
+        if (options.topFiles() > 0) {
+            // the whole tree is read by the walker itself, without keeping any children
+            options = options.withDepth(JduOptionsParser.MAX_DEPTH).withLimit(0);
+        }
+        largestFiles = options.topFiles() > 0 ? new LargestFiles(options.topFiles()) : null;
         this.visitor = visitor;
+        this.boundary = boundary;
         this.options = options;
-        fileSizeCacheCalculator = new FileSizeCacheCalculator(options.depth());
-        visited = new ArrayList<>();
+        // without the statistics or the profile, the calls of the walk are not timed for the metrics
+        metrics = options.stats() || options.slowestDirectories() > 0
+                ? new ScanMetrics(options.slowestDirectories(), boundary::fileSystemTypeOf)
+                : ScanMetrics.none();
+        taskRunner = options.ioConcurrency() > 0 ? loadTaskRunner(options.ioConcurrency()) : null;
+        snapshot = options.snapshotPath() != null ? loadSnapshot(options.snapshotPath()) : null;
+        filter = options.excludes().isEmpty() && options.includes().isEmpty()
+                ? PathFilter.none()
+                : PathFilter.compile(options.rootAbsolutePath(), options.excludes(), options.includes(), options.excludedTotal());
+        deadline = options.directoryTimeout() > 0 ? new IoDeadline(options.directoryTimeout()) : null;
+        fileSizeCacheCalculator = new FileSizeCacheCalculator(new FileSizeCacheCalculator.Settings(options.depth())
+                .withThreads(options.threads())
+                .withTaskRunner(taskRunner)
+                .withDirectorySizer(directorySizer)
+                .withSnapshot(snapshot)
+                .withMetrics(metrics)
+                .withCacheBytes((long) options.cacheMemory() << 20)
+                .withFilter(filter)
+                .withBoundary(boundary)
+                .withDeadline(deadline)
+                .withSampleSize(options.approxSamples()));
         comparator = switch (options.comparatorType()) {
             case SIZE_COMPARATOR -> new DuFileSizeComparator().reversed();
             case LEXICOGRAPHICAL_COMPARATOR -> new DuFileLexicographicalComparator();
         };
+        childOrder = Comparator.comparing((RankedChild child) -> child.child.file, comparator)
+                .thenComparingInt(RankedChild::position);
+    }
+
+    @Nullable
+    private static DirectorySizer loadDirectorySizer() {
+        DirectorySizer directorySizer = DirectorySizer.linux();
+        if (directorySizer == null) {
+            log.warn("Native directory sizing is unavailable, java.nio.file is used instead.");
+        }
+        return directorySizer;
+    }
+
+    /**
+     * Returns the runner of the tasks on virtual threads, or null if structured concurrency is unavailable
+     * because the JVM is started without <code>--enable-preview</code>.
+     */
+    @Nullable
+    private static StructuredTaskRunner loadTaskRunner(int ioConcurrency) {
+        try {
+            return new StructuredTaskRunner(ioConcurrency);
+        } catch (LinkageError e) {
+            log.warn("Virtual threads require java --enable-preview, the tree is read without them.");
+            return null;
+        }
+    }
+
+    @NotNull
+    private static ScanSnapshot loadSnapshot(@NotNull Path snapshotPath) {
+        try {
+            return ScanSnapshot.load(snapshotPath);
+        } catch (IOException e) {
+            log.warn("Unable to read the snapshot, all directories are listed again: {}", e.getMessage());
+            return ScanSnapshot.empty();
+        }
+    }
+
+    /**
+     * Returns the counters of the walks of this walker, which are updated while it walks.
+     */
+    @NotNull
+    public ScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number and the total size of the files left out of the walks of this walker,
+     * or null if they are not reported.
+     */
+    @Nullable
+    public PathFilter.ExcludedTotal getExcludedTotal() {
+        return filter.getExcludedTotal();
+    }
+
+    /**
+     * Returns the largest regular files of the walks of this walker, or null if they are not ranked.
+     */
+    @Nullable
+    public LargestFiles getLargestFiles() {
+        return largestFiles;
+    }
+
+    /**
+     * Shuts down the threads the walker sizes the directories on, so the walker cannot walk anymore.
+     */
+    @Override
+    public void close() {
+        fileSizeCacheCalculator.close();
     }
 
     /**
@@ -55,6 +208,7 @@ public class TreeWalker {
      *     <li>dangling symlink (symlink that points to a non-existent file)</li>
      *     <li>broken symlink (symlink whose path is no longer valid while the program is running)</li>
      *     <li>unknown file (none of the above types)</li>
+     *     <li>timed out directory (directory not read within the deadline of the options)</li>
      * </ul>
      * <p/>
      * Possible corner cases:
@@ -65,7 +219,8 @@ public class TreeWalker {
      * In all of this cases error is logged (but tree is still traversing).
      * <p/>
      * Cyclic symlinks are processed until the actual cycle occurs.
-     * That is, the cycle will be detected when the same symlink gets processed twice by <code>FileVisitor</code>.
+     * That is, the cycle will be detected when the same symlink (the same file key, not only the same path)
+     * gets processed twice by <code>FileVisitor</code> while it is being followed.
      * <br/>
      * For example, for this case:
      * <pre>
@@ -76,80 +231,812 @@ public class TreeWalker {
      * </pre>
      * <code>FileVisitor</code> will receive for processing twice the first of the symlinks,
      * which will go in cycles in itself (<code>symlinkRoot</code>).
+     * <p/>
+     * The tree is walked in two passes: first the part of the tree that will be visited is read
+     * and the sizes are summed up from the leaves to the root, so every directory is listed once,
+     * then the sorted and limited result is passed to <code>FileVisitor</code>.
+     * <p/>
+     * If the options set a positive I/O concurrency, the children of each directory are recognized
+     * and sized in their own virtual threads, but <code>FileVisitor</code> is still called
+     * from the calling thread in the same depth-first order.
+     * <p/>
+     * If the options set a snapshot file, the directories below the depth limit that have not changed
+     * since the previous walk are not listed again, and the snapshot is updated after the walk.
+     * <p/>
+     * A directory reached through many symlinks is read once at each depth: the scanned subtree of the target
+     * is kept for the rest of the walk and passed to <code>FileVisitor</code> again for the other symlinks.
+     * <p/>
+     * The files excluded by the options are left out together with their subtrees: they are neither visited
+     * nor counted in the sizes, and the excluded directories are not listed.
+     * <p/>
+     * The mount points of the pseudo file systems (<code>/proc</code>, <code>/sys</code>, ...) are skipped the same way,
+     * and so are the mount points of the other file systems if the options keep the walk on the file system of the root.
+     * <p/>
+     * If the options set a directory timeout, each directory is listed and its entries are read in a thread
+     * of their own, which is abandoned if it does not finish in time. The directory is then visited
+     * as a timed out directory of unknown size without children, and the rest of the tree is walked as usual.
+     * <p/>
+     * If the options set a number of samples, the visited directories are still read in full, but the sizes
+     * of the directories below the depth limit are estimated by sampling their subdirectories.
+     * The sizes that depend on an estimate have a margin of error ({@link DuFile#getSizeMargin()}),
+     * which is summed up from the margins of the children like the standard deviations of independent estimates.
+     * <p/>
+     * If the options set a number of top files, the whole tree is read (up to the maximal depth) in the same way,
+     * but no children are kept: every regular file is offered to {@link #getLargestFiles()} as soon as
+     * its attributes are read, and only the root is passed to <code>FileVisitor</code>.
+     * <p/>
+     * The listings, attribute reads, cache loads and visitor callbacks are counted in {@link #getMetrics()},
+     * if the options ask for the statistics or the slowest directories, and recorded as JDK Flight Recorder events
+     * of the <code>jdu</code> category.
      */
     public void walk(@NotNull Path root) throws JduRuntimeException {
         try {
-            DuFile rootFile = new DuFile(root, DuFileType.recognizeFileType(root));
+            DuFile rootFile = IoDeadline.within(deadline, root, () -> readFile(root, null));
             walk(rootFile, 0);
+            if (snapshot != null) {
+                snapshot.save(options.snapshotPath());
+            }
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    /**
+     * Traverses the file trees at the given paths like {@link #walk(Path)}: one tree after another in the given order,
+     * or, if the options aggregate the roots, all of them under one virtual directory at their common parent,
+     * whose size is their total size.
+     * <p/>
+     * The roots are scanned concurrently, on the threads of the walker if the options set any,
+     * or each in a virtual thread of its own otherwise, and they share one cache of sizes.
+     * A root nested in another one is scanned before it and only once: its scanned subtree is reused where
+     * the outer root reaches it, and its size is cached for the directories of the outer root sized
+     * below the depth limit. The same root given twice is walked once. The roots are compared by their
+     * normalized paths, so a root reached through a symlink from another root is scanned on its own.
+     * In the aggregated tree, the nested roots are shown only inside their outer roots, so every file
+     * is counted once in the total size.
+     */
+    public void walk(@NotNull List<Path> roots) throws JduRuntimeException {
+        if (roots.size() == 1 && !options.aggregateRoots()) {
+            walk(roots.get(0));
+            return;
+        }
+        List<Path> distinctRoots = roots.stream().map(Path::normalize).distinct().toList();
+        try {
+            for (List<Path> wave : nestingWaves(distinctRoots)) {
+                List<Callable<ScannedFile>> rootTasks = new ArrayList<>(wave.size());
+                for (Path root : wave) {
+                    rootTasks.add(() -> scanRoot(root));
+                }
+                fileSizeCacheCalculator.invokeAll(rootTasks);
+            }
+            if (options.aggregateRoots()) {
+                visit(aggregate(distinctRoots), 0);
+            } else {
+                for (Path root : distinctRoots) {
+                    visit(scannedRoots.get(root), 0);
+                }
+            }
+            if (snapshot != null) {
+                snapshot.save(options.snapshotPath());
+            }
         } catch (IOException e) {
             throw new JduRuntimeException(e);
+        } finally {
+            scannedRoots.clear();
         }
     }
 
+    /**
+     * Groups the roots into waves that can be scanned concurrently: every root is in a later wave
+     * than all the roots nested in it.
+     */
+    @NotNull
+    private static List<List<Path>> nestingWaves(@NotNull List<Path> roots) {
+        List<Path> innerRootsFirst = new ArrayList<>(roots);
+        innerRootsFirst.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        // the number of the levels of the roots nested in a root
+        Map<Path, Integer> heights = new HashMap<>();
+        List<List<Path>> waves = new ArrayList<>();
+        for (Path root : innerRootsFirst) {
+            int height = 0;
+            for (Map.Entry<Path, Integer> innerRoot : heights.entrySet()) {
+                if (isNested(innerRoot.getKey(), root)) {
+                    height = max(height, innerRoot.getValue() + 1);
+                }
+            }
+            heights.put(root, height);
+            while (waves.size() <= height) {
+                waves.add(new ArrayList<>());
+            }
+            waves.get(height).add(root);
+        }
+        return waves;
+    }
+
+    private static boolean isNested(@NotNull Path innerRoot, @NotNull Path outerRoot) {
+        return innerRoot.getNameCount() > outerRoot.getNameCount() && innerRoot.startsWith(outerRoot);
+    }
+
+    @NotNull
+    private ScannedFile scanRoot(@NotNull Path root) throws IOException {
+        DuFile rootFile = IoDeadline.within(deadline, root, () -> readFile(root, null));
+        ScannedFile scannedRoot = scan(rootFile, 0);
+        scannedRoots.put(root, scannedRoot);
+        if (rootFile.getType() == DuFileType.DIRECTORY && scannedRoot.readable) {
+            fileSizeCacheCalculator.putCacheEntry(root, scannedRoot.sizeInParent, 0);
+        }
+        return scannedRoot;
+    }
+
+    /**
+     * Returns the virtual directory at the common parent of the roots, whose children are the outermost roots.
+     */
+    @NotNull
+    private ScannedFile aggregate(@NotNull List<Path> roots) {
+        List<Path> outerRoots = roots.stream()
+                .filter(root -> roots.stream().noneMatch(outerRoot -> isNested(root, outerRoot)))
+                .toList();
+        Path parent = outerRoots.get(0).getParent();
+        while (parent != null && !isCommonParent(parent, outerRoots)) {
+            parent = parent.getParent();
+        }
+        DuFile aggregateFile = new DuFile(parent != null ? parent : outerRoots.get(0), DuFileType.DIRECTORY);
+        ChildrenSelection children = new ChildrenSelection(options.depth() > 0 ? options.limit() : 0);
+        for (Path root : outerRoots) {
+            // the roots are scanned as the roots of their trees, one level higher than they are visited
+            children.add(scannedRoots.get(root).trimmedTo(options.depth() - 1));
+        }
+        aggregateFile.setSize(children.totalSize);
+        if (children.approximate) {
+            aggregateFile.setSizeMargin(Math.round(Math.sqrt(children.squaredMargins)));
+        }
+        aggregateFile.setActualCountOfChildren(min(children.countOfChildren, options.limit()));
+        return new ScannedFile(aggregateFile, children.totalSize, children.toSortedList(), true);
+    }
+
+    private static boolean isCommonParent(@NotNull Path parent, @NotNull List<Path> roots) {
+        return roots.stream().allMatch(root -> root.startsWith(parent));
+    }
+
+    /**
+     * Passes the tree scanned earlier to <code>FileVisitor</code> the same way as a walk of the file system:
+     * sorted, cut down to the limit and to the depth. Only the targets of the followed symlinks
+     * are read from the file system, since they are not stored in the tree.
+     */
+    public void walk(@NotNull CompactFileTree tree) throws JduRuntimeException {
+        visit(scanStored(tree, CompactFileTree.ROOT, 0), 0);
+    }
+
     private void walk(@NotNull DuFile curFile, int curDepth) throws IOException {
         assert (curDepth >= 0);
-        fileSizeCacheCalculator.setStartDepth(curDepth);
-        setSizeToFile(curFile);
         if (curDepth > options.depth()) {
             return;
         }
+        visit(scan(curFile, curDepth), curDepth);
+    }
+
+    private void visit(@NotNull ScannedFile scannedFile, int curDepth) {
+        DuFile curFile = scannedFile.file;
         switch (curFile.getType()) {
             case SYMLINK -> walkSymlink(curFile, curDepth);
-            case DIRECTORY -> walkDirectory(curFile, curDepth);
+            case DIRECTORY -> {
+                if (!scannedFile.readable) {
+                    return;
+                }
+                visitFile(curFile, curDepth);
+                for (ScannedFile child : scannedFile.children) {
+                    visit(child, curDepth + 1);
+                }
+            }
             default -> {
-                visitor.visitFile(curFile, curDepth);
+                visitFile(curFile, curDepth);
                 fileSizeCacheCalculator.removeCacheEntry(curFile.getAbsolutePath());
             }
         }
     }
 
+    private void visitFile(@NotNull DuFile file, int curDepth) {
+        VisitorCallbackEvent event = ScanMetrics.isRecording() ? new VisitorCallbackEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        if (!metrics.isCounting()) {
+            visitor.visitFile(file, curDepth);
+        } else {
+            long start = System.nanoTime();
+            visitor.visitFile(file, curDepth);
+            metrics.fileVisited(System.nanoTime() - start);
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = file.getAbsolutePath().toString();
+                event.depth = curDepth;
+                event.commit();
+            }
+        }
+    }
+
     private void walkSymlink(@NotNull DuFile symlink, int curDepth) {
-        visitor.visitFile(symlink, curDepth);
+        visitFile(symlink, curDepth);
         fileSizeCacheCalculator.removeCacheEntry(symlink.getAbsolutePath());
+        if (!options.followSymlinks()) {
+            return;
+        }
+        Path absoluteSyminkPath = symlink.getAbsolutePath();
+        Object symlinkKey = fileKeyOf(symlink);
+        if (!followedSymlinks.add(symlinkKey)) {
+            return;
+        }
         try {
-            if (options.followSymlinks()) {
-                Path absoluteSyminkPath = symlink.getAbsolutePath();
-                if (visited.contains(absoluteSyminkPath.normalize())) {
-                    return;
-                }
-                visited.add(absoluteSyminkPath.normalize());
-                Path targetOfSymlinkPath = Files.readSymbolicLink(absoluteSyminkPath);
-                DuFile targetOfSymLink = new DuFile(targetOfSymlinkPath, recognizeFileType(targetOfSymlinkPath));
-                walk(targetOfSymLink, curDepth + 1);
-                visited.clear();
+            DuFile targetOfSymLink = IoDeadline.within(deadline, absoluteSyminkPath,
+                    () -> readFile(io(() -> Files.readSymbolicLink(absoluteSyminkPath)), null));
+            if (targetOfSymLink.getType() == DuFileType.DIRECTORY && boundary.stopsAtTarget(absoluteSyminkPath)) {
+                return;
             }
+            walkSymlinkTarget(targetOfSymLink, curDepth + 1);
         } catch (IOException e) {
             log.error("Unable to get access to the file: {0}", e);
+        } finally {
+            followedSymlinks.remove(symlinkKey);
         }
     }
 
-    private void walkDirectory(@NotNull DuFile curFile, int curDepth) {
-        try (Stream<Path> childrenFilesStream = Files.list(curFile.getAbsolutePath())) {
-            List<Path> childrenFilesPaths = childrenFilesStream.toList();
-            ArrayList<DuFile> children = new ArrayList<>();
-            for (Path childFilePath : childrenFilesPaths) {
-                DuFile child = new DuFile(childFilePath, DuFileType.recognizeFileType(childFilePath));
-                setSizeToFile(child);
-                children.add(child);
+    private void walkSymlinkTarget(@NotNull DuFile target, int curDepth) throws IOException {
+        BasicFileAttributes attributes = target.getAttributes();
+        if (curDepth > options.depth() || target.getType() != DuFileType.DIRECTORY
+                || attributes == null || attributes.fileKey() == null) {
+            walk(target, curDepth);
+            return;
+        }
+        SymlinkTarget symlinkTarget = new SymlinkTarget(attributes.fileKey(), curDepth);
+        ScannedFile scannedTarget = scannedSymlinkTargets.get(symlinkTarget);
+        if (scannedTarget == null) {
+            scannedTarget = scan(target, curDepth);
+            scannedSymlinkTargets.put(symlinkTarget, scannedTarget);
+        } else {
+            // the target may be named differently by this symlink
+            scannedTarget = scannedTarget.reusedFor(target);
+        }
+        visit(scannedTarget, curDepth);
+    }
+
+    @NotNull
+    private static Object fileKeyOf(@NotNull DuFile file) {
+        BasicFileAttributes attributes = file.getAttributes();
+        if (attributes == null || attributes.fileKey() == null) {
+            return file.getAbsolutePath().normalize();
+        }
+        return attributes.fileKey();
+    }
+
+    /**
+     * Reads the subtree of the file, which will be visited.
+     * Directories that can be visited are listed here exactly once, and their sizes are summed up
+     * from the sizes of their children, so only the directories below the depth limit are left
+     * to <code>FileSizeCacheCalculator</code>. The children of each directory are streamed and only
+     * the ones within the limit are kept in order, so the tree holds only the files to visit.
+     */
+    @NotNull
+    private ScannedFile scan(@NotNull DuFile curFile, int curDepth) throws IOException {
+        if (curFile.getType() == DuFileType.DIRECTORY) {
+            return scanDirectory(curFile, curDepth);
+        }
+        if (largestFiles != null) {
+            // only the regular files are ranked, so the targets of the symlinks are not sized
+            if (curFile.getType() == DuFileType.REGULAR_FILE && curFile.getAttributes() != null) {
+                largestFiles.offer(curFile.getAbsolutePath(), curFile.getAttributes().size());
             }
-            children.sort(comparator);
-            int actualCountOfFiles = min(children.size(), options.limit());
-            curFile.setActualCountOfChildren(actualCountOfFiles);
-            visitor.visitFile(curFile, curDepth);
-            for (int i = options.limit(); i < children.size(); i++) {
-                fileSizeCacheCalculator.removeCacheEntry(children.get(i).getAbsolutePath());
+            return ScannedFile.leaf(curFile, 0);
+        }
+        setSizeToFile(curFile, curDepth);
+        long sizeInParent = 0;
+        if (curFile.getType() == DuFileType.UNKNOWN_FORMAT_FILE && curFile.getAttributes() != null) {
+            sizeInParent = curFile.getAttributes().size();
+        } else if (curFile.getType() == DuFileType.REGULAR_FILE) {
+            sizeInParent = curFile.getSize();
+        }
+        return ScannedFile.leaf(curFile, sizeInParent);
+    }
+
+    @NotNull
+    private ScannedFile scanStored(@NotNull CompactFileTree tree, int entry, int curDepth) {
+        DuFile curFile = tree.toDuFile(entry);
+        if (curFile.getType() != DuFileType.DIRECTORY || curDepth > options.depth()) {
+            return ScannedFile.leaf(curFile, tree.getSizeInParent(entry));
+        }
+        if (!tree.isReadable(entry)) {
+            return ScannedFile.unreadable(curFile);
+        }
+        int countOfChildren = 0;
+        for (int child = tree.getFirstChild(entry); child != CompactFileTree.NO_ENTRY; child = tree.getNextSibling(child)) {
+            countOfChildren++;
+        }
+        int[] selectedChildren = selectStoredChildren(tree, entry, curDepth < options.depth() ? options.limit() : 0);
+        List<ScannedFile> children = new ArrayList<>(selectedChildren.length);
+        for (int child : selectedChildren) {
+            children.add(scanStored(tree, child, curDepth + 1));
+        }
+        curFile.setActualCountOfChildren(min(countOfChildren, options.limit()));
+        return new ScannedFile(curFile, tree.getSize(entry), List.copyOf(children), true);
+    }
+
+    /**
+     * Returns the first <code>capacity</code> children of the stored directory in the order of the comparator,
+     * the way {@link ChildrenSelection} selects them, but ranked by their entries, so the files are created
+     * only for the selected children. The heap keeps the last of the selected children at its head.
+     */
+    @NotNull
+    private int[] selectStoredChildren(@NotNull CompactFileTree tree, int entry, int capacity) {
+        IntBinaryOperator order = storedOrder(tree);
+        int[] heap = new int[capacity];
+        int size = 0;
+        for (int child = tree.getFirstChild(entry); child != CompactFileTree.NO_ENTRY; child = tree.getNextSibling(child)) {
+            if (size < capacity) {
+                heap[size] = child;
+                siftUp(heap, size++, order);
+            } else if (capacity > 0 && order.applyAsInt(child, heap[0]) < 0) {
+                heap[0] = child;
+                siftDown(heap, size, order);
             }
-            for (int i = 0; i < actualCountOfFiles; i++) {
-                walk(children.get(i), curDepth + 1);
+        }
+        // the last of the remaining children is moved to the end, so the children end up in order
+        for (int last = size - 1; last > 0; last--) {
+            int head = heap[0];
+            heap[0] = heap[last];
+            heap[last] = head;
+            siftDown(heap, last, order);
+        }
+        return size == capacity ? heap : Arrays.copyOf(heap, size);
+    }
+
+    /**
+     * Returns the order of the comparator for the stored entries: the children that compare equal
+     * keep their stored order, which is the order of the listing.
+     */
+    @NotNull
+    private IntBinaryOperator storedOrder(@NotNull CompactFileTree tree) {
+        IntBinaryOperator byComparator = switch (options.comparatorType()) {
+            // the size of a file shown without a size is -1, like the one of its DuFile
+            case SIZE_COMPARATOR -> (first, second) -> Long.compare(storedSize(tree, second), storedSize(tree, first));
+            case LEXICOGRAPHICAL_COMPARATOR -> (first, second) -> CharSequence.compare(tree.getName(first), tree.getName(second));
+        };
+        return (first, second) -> {
+            int order = byComparator.applyAsInt(first, second);
+            return order != 0 ? order : Integer.compare(first, second);
+        };
+    }
+
+    private static long storedSize(@NotNull CompactFileTree tree, int entry) {
+        return isFileSizeCountable(tree.getType(entry)) ? tree.getSize(entry) : -1;
+    }
+
+    private static void siftUp(@NotNull int[] heap, int index, @NotNull IntBinaryOperator order) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (order.applyAsInt(heap[index], heap[parent]) <= 0) {
+                return;
             }
-        } catch (IOException e) {
+            int entry = heap[index];
+            heap[index] = heap[parent];
+            heap[parent] = entry;
+            index = parent;
+        }
+    }
+
+    private static void siftDown(@NotNull int[] heap, int size, @NotNull IntBinaryOperator order) {
+        int index = 0;
+        while (2 * index + 1 < size) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && order.applyAsInt(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (order.applyAsInt(heap[child], heap[index]) <= 0) {
+                return;
+            }
+            int entry = heap[index];
+            heap[index] = heap[child];
+            heap[child] = entry;
+            index = child;
+        }
+    }
+
+    @NotNull
+    private ScannedFile scanDirectory(@NotNull DuFile curFile, int curDepth) {
+        int countOfVisitedFiles = curDepth < options.depth() ? options.limit() : 0;
+        ChildrenSelection children = new ChildrenSelection(countOfVisitedFiles);
+        DirectoryListingEvent event = ScanMetrics.isRecording() ? new DirectoryListingEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean timed = metrics.isCounting() || event != null;
+        long start = timed ? System.nanoTime() : 0;
+        long scanningTime;
+        // the time of listing the directory and reading its entries, without scanning the subdirectories
+        AtomicLong readingTime = new AtomicLong();
+        int childDepth = curDepth + 1;
+        try {
+            if (deadline == null) {
+                try (DirectoryStream<Path> childrenFilesPaths = io(() -> Files.newDirectoryStream(curFile.getAbsolutePath()))) {
+                    scanningTime = scanChildren(childrenFilesPaths,
+                            childFilePath -> scanChild(readFile(childFilePath, readingTime), childDepth), children);
+                }
+            } else {
+                ListedChildren listed = deadline.call(curFile.getAbsolutePath(),
+                        () -> readChildren(curFile, readingTime, childDepth, countOfVisitedFiles));
+                children = listed.selection();
+                long pendingStart = timed ? System.nanoTime() : 0;
+                scanPendingChildren(listed.pending(), childDepth, children);
+                // the entries have been read before the pending ones are scanned
+                scanningTime = readingTime.get() + (timed ? System.nanoTime() - pendingStart : 0);
+            }
+        } catch (IoTimeoutException e) {
+            log.warn("{}", e.getMessage());
+            metrics.error();
+            children.discard();
+            DuFile timedOut = new DuFile(curFile.getAbsolutePath(), DuFileType.TIMED_OUT_DIRECTORY, curFile.getAttributes());
+            return ScannedFile.leaf(timedOut, 0);
+        } catch (IOException | DirectoryIteratorException e) {
             log.error("Unable to get access to the file: {0}", e);
+            metrics.error();
+            children.discard();
+            curFile.setSize(-1);
+            return ScannedFile.unreadable(curFile);
+        }
+        long listingTime = timed ? System.nanoTime() - start - scanningTime : 0;
+        metrics.directoryListed(children.countOfChildren, listingTime);
+        metrics.directoryRead(curFile.getAbsolutePath(), children.countOfChildren, readingTime.addAndGet(listingTime));
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = curFile.getAbsolutePath().toString();
+                event.entries = children.countOfChildren;
+                event.listingTime = listingTime;
+                event.commit();
+            }
+        }
+        curFile.setSize(children.totalSize);
+        if (children.approximate) {
+            curFile.setSizeMargin(Math.round(Math.sqrt(children.squaredMargins)));
+        }
+        curFile.setActualCountOfChildren(min(children.countOfChildren, options.limit()));
+        return new ScannedFile(curFile, children.totalSize, children.toSortedList(), true);
+    }
+
+    /**
+     * Lists the directory and reads all of its entries, so they can be read within the deadline.
+     * The files are scanned into a selection of their own as soon as they are read, so only the selected ones
+     * are kept, while the directories, the symlinks and the entries that cannot be read, which take more
+     * file system calls to scan, are left pending until after the deadline.
+     */
+    @NotNull
+    private ListedChildren readChildren(@NotNull DuFile directory, @NotNull AtomicLong readingTime, int childDepth,
+                                        int capacity) throws IOException {
+        ChildrenSelection selection = new ChildrenSelection(capacity);
+        List<PendingChild> pending = new ArrayList<>();
+        int position = 0;
+        try (DirectoryStream<Path> childrenFilesPaths = io(() -> Files.newDirectoryStream(directory.getAbsolutePath()))) {
+            for (Path childFilePath : childrenFilesPaths) {
+                IoDeadline.checkAbandoned();
+                DuFile child = readFile(childFilePath, readingTime);
+                if (isLeftOut(child)) {
+                    continue;
+                }
+                if (child.getAttributes() == null || child.getType() == DuFileType.DIRECTORY
+                        || child.getType() == DuFileType.SYMLINK) {
+                    pending.add(new PendingChild(child, position++));
+                } else {
+                    selection.add(scan(child, childDepth), position++);
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        return new ListedChildren(selection, pending);
+    }
+
+    /**
+     * Scans the children left pending by {@link #readChildren} at their positions in the listing.
+     */
+    private void scanPendingChildren(@NotNull List<PendingChild> pending, int childDepth,
+                                     @NotNull ChildrenSelection children) throws IOException {
+        if (taskRunner == null) {
+            for (PendingChild child : pending) {
+                children.add(scanChild(child.file(), childDepth), child.position());
+            }
+            return;
+        }
+        List<Callable<ScannedFile>> childTasks = new ArrayList<>(pending.size());
+        for (PendingChild child : pending) {
+            childTasks.add(() -> scanChild(child.file(), childDepth));
+        }
+        List<ScannedFile> scannedChildren = taskRunner.forkAll(childTasks);
+        for (int i = 0; i < pending.size(); i++) {
+            children.add(scannedChildren.get(i), pending.get(i).position());
+        }
+    }
+
+    /**
+     * Scans the children while they are listed and returns the time spent on scanning them,
+     * so the rest of the time of the listing is spent on reading the entries.
+     */
+    private <T> long scanChildren(@NotNull Iterable<T> childrenEntries, @NotNull ChildScanner<T> scanner,
+                                  @NotNull ChildrenSelection children) throws IOException {
+        long scanningTime = 0;
+        if (taskRunner == null) {
+            boolean timed = metrics.isCounting() || ScanMetrics.isRecording();
+            for (T childEntry : childrenEntries) {
+                if (!timed) {
+                    children.add(scanner.scan(childEntry));
+                    continue;
+                }
+                long start = System.nanoTime();
+                children.add(scanner.scan(childEntry));
+                scanningTime += System.nanoTime() - start;
+            }
+            return scanningTime;
+        }
+        // the children are forked in batches, so a huge directory does not hold all of its entries at once
+        int batchSize = max(MIN_CONCURRENT_BATCH_SIZE, options.ioConcurrency());
+        List<Callable<ScannedFile>> childTasks = new ArrayList<>(batchSize);
+        for (T childEntry : childrenEntries) {
+            childTasks.add(() -> scanner.scan(childEntry));
+            if (childTasks.size() == batchSize) {
+                scanningTime += scanBatch(childTasks, children);
+                childTasks.clear();
+            }
+        }
+        return scanningTime + scanBatch(childTasks, children);
+    }
+
+    private long scanBatch(@NotNull List<Callable<ScannedFile>> childTasks, @NotNull ChildrenSelection children)
+            throws IOException {
+        long start = System.nanoTime();
+        taskRunner.forkAll(childTasks).forEach(children::add);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the scanned child, or null if it is excluded or beyond the boundary.
+     */
+    @Nullable
+    private ScannedFile scanChild(@NotNull DuFile child, int childDepth) throws IOException {
+        if (isLeftOut(child)) {
+            return null;
+        }
+        if (!scannedRoots.isEmpty() && child.getType() == DuFileType.DIRECTORY) {
+            ScannedFile scannedRoot = scannedRoots.get(child.getAbsolutePath());
+            if (scannedRoot != null && scannedRoot.file.getType() == DuFileType.DIRECTORY) {
+                return scannedRoot.reusedFor(child).trimmedTo(options.depth() - childDepth);
+            }
+        }
+        if (child.getType() == DuFileType.DIRECTORY && childDepth > options.depth()) {
+            setSizeToFile(child, childDepth);
+            return ScannedFile.leaf(child, child.getSize());
+        }
+        return scan(child, childDepth);
+    }
+
+    /**
+     * Returns whether the child is left out of its directory: it is excluded or beyond the boundary.
+     */
+    private boolean isLeftOut(@NotNull DuFile child) {
+        BasicFileAttributes attributes = child.getAttributes();
+        return attributes != null && (attributes.isDirectory() && boundary.stopsAt(child.getAbsolutePath())
+                || filter.excludes(child.getAbsolutePath(), attributes));
+    }
+
+    /**
+     * @param readingTime the time of reading the directory of the file, which the time of the read is added to
+     */
+    @NotNull
+    private DuFile readFile(@NotNull Path path, @Nullable AtomicLong readingTime) throws IOException {
+        AttributeReadEvent event = ScanMetrics.isRecording() ? new AttributeReadEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean timed = metrics.isCounting() || event != null;
+        long start = timed ? System.nanoTime() : 0;
+        DuFile file = io(() -> DuFile.readFrom(path));
+        if (timed) {
+            long readTime = System.nanoTime() - start;
+            metrics.attributesRead(readTime);
+            if (readingTime != null) {
+                readingTime.addAndGet(readTime);
+            }
+        }
+        if (file.getAttributes() == null) {
+            metrics.error();
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path.toString();
+                event.failed = file.getAttributes() == null;
+                event.commit();
+            }
+        }
+        return file;
+    }
+
+    private <T> T io(@NotNull IoCall<T> call) throws IOException {
+        if (taskRunner == null) {
+            return call.call();
+        }
+        return taskRunner.io(call);
+    }
+
+    private void setSizeToFile(@NotNull DuFile curFile, int curDepth) {
+        if (!isFileSizeCountable(curFile.getType())) {
+            return;
+        }
+        BasicFileAttributes attributes = curFile.getAttributes();
+        if (curFile.getType() == DuFileType.SYMLINK) {
+            // the size of a symlink is the size of its target
+            curFile.setSize(fileSizeCacheCalculator.sizeOfSymlinkTarget(curFile.getAbsolutePath(), curDepth));
+        } else if (attributes == null) {
+            curFile.setSize(fileSizeCacheCalculator.size(curFile.getAbsolutePath(), curDepth));
+        } else if (curFile.getType() == DuFileType.DIRECTORY) {
+            curFile.setSize(fileSizeCacheCalculator.size(curFile.getAbsolutePath(), attributes, curDepth));
+            curFile.setSizeMargin(fileSizeCacheCalculator.sizeMargin(curFile.getAbsolutePath()));
+        } else {
+            curFile.setSize(attributes.size());
+        }
+    }
+
+    /**
+     * Folds the children of a directory into their total size and count, while keeping only
+     * the first <code>capacity</code> children in the order of the comparator, so a directory
+     * takes O(limit) memory however many entries it has. Children that compare equal keep
+     * the listing order, so the selection is the beginning of the stably sorted list of all children.
+     */
+    private final class ChildrenSelection {
+        private final int capacity;
+        // the head is the last of the selected children, which is the first to be evicted
+        private final PriorityQueue<RankedChild> selected;
+        private long totalSize;
+        private int countOfChildren;
+        // whether the total size is estimated, and the sum of the squared margins of error of the estimates
+        private boolean approximate;
+        private double squaredMargins;
+
+        private ChildrenSelection(int capacity) {
+            this.capacity = capacity;
+            selected = new PriorityQueue<>(capacity + 1, childOrder.reversed());
+        }
+
+        private void add(@Nullable ScannedFile child) {
+            add(child, countOfChildren);
+        }
+
+        /**
+         * Adds the child at its position in the listing of the directory, which breaks the ties of the order.
+         */
+        private void add(@Nullable ScannedFile child, int position) {
+            if (child == null) {
+                return;
+            }
+            totalSize += child.sizeInParent;
+            if (child.file.isSizeApproximate() && child.sizeInParent != 0) {
+                approximate = true;
+                squaredMargins += (double) child.file.getSizeMargin() * child.file.getSizeMargin();
+            }
+            countOfChildren++;
+            RankedChild rejected = new RankedChild(child, position);
+            if (selected.size() < capacity) {
+                selected.add(rejected);
+                return;
+            }
+            if (capacity > 0 && childOrder.compare(rejected, selected.element()) < 0) {
+                selected.add(rejected);
+                rejected = selected.remove();
+            }
+            fileSizeCacheCalculator.removeCacheEntry(rejected.child.file.getAbsolutePath());
+        }
+
+        private void discard() {
+            for (RankedChild child : selected) {
+                fileSizeCacheCalculator.removeCacheEntry(child.child.file.getAbsolutePath());
+            }
+            selected.clear();
+        }
+
+        @NotNull
+        private List<ScannedFile> toSortedList() {
+            RankedChild[] sortedChildren = selected.toArray(new RankedChild[0]);
+            Arrays.sort(sortedChildren, childOrder);
+            List<ScannedFile> children = new ArrayList<>(sortedChildren.length);
+            for (RankedChild child : sortedChildren) {
+                children.add(child.child);
+            }
+            return List.copyOf(children);
         }
     }
 
-    private void setSizeToFile(@NotNull DuFile curFile) {
-        if (isFileSizeCountable(curFile.getType())) {
-            curFile.setSize(fileSizeCacheCalculator.size(curFile.getAbsolutePath()));
+    /**
+     * Scans a child of a directory given by an entry of its listing.
+     */
+    @FunctionalInterface
+    private interface ChildScanner<T> {
+        @Nullable
+        ScannedFile scan(@NotNull T childEntry) throws IOException;
+    }
+
+    /**
+     * A child together with its position in the listing of its directory.
+     */
+    private record RankedChild(@NotNull ScannedFile child, int position) {
+    }
+
+    /**
+     * A child read within the deadline and left to scan after it, with its position in the listing.
+     */
+    private record PendingChild(@NotNull DuFile file, int position) {
+    }
+
+    /**
+     * The children of a directory read within the deadline: the selected files and the pending children.
+     */
+    private record ListedChildren(@NotNull ChildrenSelection selection, @NotNull List<PendingChild> pending) {
+    }
+
+    /**
+     * A directory reached through a symlink at a depth, which determines how much of it is scanned.
+     */
+    private record SymlinkTarget(@NotNull Object fileKey, int depth) {
+    }
+
+    private static final class ScannedFile {
+        private final DuFile file;
+        // the amount the file adds to the size of its parent directory (symlinks add nothing)
+        private final long sizeInParent;
+        private final List<ScannedFile> children;
+        private final boolean readable;
+
+        private ScannedFile(@NotNull DuFile file, long sizeInParent, @NotNull List<ScannedFile> children, boolean readable) {
+            this.file = file;
+            this.sizeInParent = sizeInParent;
+            this.children = children;
+            this.readable = readable;
+        }
+
+        @NotNull
+        private static ScannedFile leaf(@NotNull DuFile file, long sizeInParent) {
+            return new ScannedFile(file, sizeInParent, List.of(), true);
+        }
+
+        /**
+         * Returns the same scanned subtree for another path of the same directory.
+         */
+        @NotNull
+        private ScannedFile reusedFor(@NotNull DuFile directory) {
+            directory.setSize(file.getSize());
+            directory.setSizeMargin(file.getSizeMargin());
+            directory.setActualCountOfChildren(file.getActualCountOfChildren());
+            return new ScannedFile(directory, sizeInParent, children, readable);
+        }
+
+        /**
+         * Returns the scanned subtree cut down to the given number of the levels of children,
+         * e.g. for a root scanned on its own and visited deeper inside another root.
+         */
+        @NotNull
+        private ScannedFile trimmedTo(int levels) {
+            if (children.isEmpty()) {
+                return this;
+            }
+            List<ScannedFile> trimmedChildren = new ArrayList<>(levels > 0 ? children.size() : 0);
+            if (levels > 0) {
+                for (ScannedFile child : children) {
+                    trimmedChildren.add(child.trimmedTo(levels - 1));
+                }
+            }
+            return new ScannedFile(file, sizeInParent, List.copyOf(trimmedChildren), readable);
+        }
+
+        @NotNull
+        private static ScannedFile unreadable(@NotNull DuFile directory) {
+            return new ScannedFile(directory, directory.getSize(), List.of(), false);
         }
     }
 }
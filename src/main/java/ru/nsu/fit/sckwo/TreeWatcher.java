@@ -0,0 +1,358 @@
+package ru.nsu.fit.sckwo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nsu.fit.sckwo.exception.JduRuntimeException;
+import ru.nsu.fit.sckwo.utils.DirectorySizer;
+import ru.nsu.fit.sckwo.utils.MountBoundary;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the sizes of all directories under the root up to date and renders the tree periodically or on request.
+ * <p/>
+ * The root is scanned once, and every directory is registered in a <code>WatchService</code>.
+ * An event about an entry is reconciled with the entry on disk: the difference between its new and its old size
+ * is added to its directory and to all the ancestors, so nothing is rescanned. A new directory is scanned
+ * and watched, a removed one is forgotten together with its subtree. The mount points skipped by
+ * <code>TreeWalker</code> are neither scanned nor watched.
+ * <p/>
+ * If the events of a directory are lost (<code>OVERFLOW</code>), the directory is listed again and all its entries
+ * are reconciled. Directories that cannot be watched (e.g. when the limit of inotify watches is reached)
+ * are listed again before each render instead.
+ * <p/>
+ * The tree is rendered by <code>TreeWalker</code>, which takes the sizes of the directories below the depth limit
+ * from this index instead of calculating them. Events are processed and the tree is rendered on the thread
+ * calling {@link #run()}, so the index needs no synchronization.
+ */
+@Slf4j
+public class TreeWatcher implements DirectorySizer, AutoCloseable {
+    private static final long POLL_TIMEOUT_MILLIS = 200;
+    private final JduOptions options;
+    private final Supplier<FileVisitor> visitorFactory;
+    private final Flushable output;
+    private final WatchService watchService;
+    private final Map<Path, DirectoryNode> directories = new HashMap<>();
+    private final Map<WatchKey, DirectoryNode> watchedDirectories = new HashMap<>();
+    private final Set<DirectoryNode> unwatchedDirectories = new LinkedHashSet<>();
+    private final AtomicBoolean renderRequested = new AtomicBoolean();
+    private final MountBoundary boundary;
+
+    public TreeWatcher(@NotNull JduOptions options, @NotNull Supplier<FileVisitor> visitorFactory) throws JduRuntimeException {
+        this(options, visitorFactory, () -> {
+        });
+    }
+
+    /**
+     * @param output the output of the visitors, flushed after each render
+     */
+    public TreeWatcher(@NotNull JduOptions options, @NotNull Supplier<FileVisitor> visitorFactory,
+                       @NotNull Flushable output) throws JduRuntimeException {
+        this.options = options;
+        this.visitorFactory = visitorFactory;
+        this.output = output;
+        boundary = MountBoundary.of(options.rootAbsolutePath(), options.oneFileSystem());
+        try {
+            watchService = options.rootAbsolutePath().getFileSystem().newWatchService();
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    /**
+     * Scans and renders the tree, then keeps it up to date until the thread is interrupted.
+     * The tree is rendered again every <code>watchInterval</code> seconds of the options (if it is positive)
+     * and after each {@link #requestRender()}.
+     */
+    public void run() throws JduRuntimeException {
+        scan();
+        render();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(options.watchInterval());
+        long nextRenderTime = nextRenderTime(intervalNanos);
+        while (!Thread.currentThread().isInterrupted()) {
+            long timeoutMillis = Math.min(POLL_TIMEOUT_MILLIS, TimeUnit.NANOSECONDS.toMillis(Math.max(0, nextRenderTime - System.nanoTime())));
+            try {
+                processEvents(timeoutMillis);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (renderRequested.getAndSet(false) || System.nanoTime() - nextRenderTime >= 0) {
+                render();
+                nextRenderTime = nextRenderTime(intervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Asks the thread running the watcher to render the tree as soon as possible. Can be called from any thread.
+     */
+    public void requestRender() {
+        renderRequested.set(true);
+    }
+
+    @Override
+    public void close() throws JduRuntimeException {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new JduRuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean supports(@NotNull Path directory) {
+        return directories.containsKey(directory);
+    }
+
+    @Override
+    public long sizeOfTree(@NotNull Path directory) {
+        return directories.get(directory).totalSize;
+    }
+
+    void scan() {
+        Path root = options.rootAbsolutePath();
+        if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            scanDirectory(root, null);
+        }
+    }
+
+    void render() {
+        for (DirectoryNode directory : List.copyOf(unwatchedDirectories)) {
+            relist(directory);
+        }
+        // the walker is closed after each render, since the sizes it caches are outdated by the next one
+        try (TreeWalker treeWalker = new TreeWalker(options, visitorFactory.get(), this)) {
+            if (options.stats()) {
+                treeWalker.getMetrics().register();
+            }
+            treeWalker.walk(options.rootAbsolutePath());
+            try {
+                output.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (options.stats()) {
+                System.err.println(treeWalker.getMetrics().summary());
+            }
+        }
+    }
+
+    /**
+     * Waits for the events at most <code>timeoutMillis</code> and applies all the events that have come.
+     */
+    void processEvents(long timeoutMillis) throws InterruptedException {
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            DirectoryNode directory = watchedDirectories.get(key);
+            List<WatchEvent<?>> events = key.pollEvents();
+            if (directory != null) {
+                long delta = 0;
+                for (WatchEvent<?> event : events) {
+                    if (event.kind() == OVERFLOW) {
+                        relist(directory);
+                    } else {
+                        delta += reconcile(directory, ((Path) event.context()).getFileName().toString());
+                    }
+                }
+                addToAncestors(directory, delta);
+            }
+            key.reset();
+            key = watchService.poll();
+        }
+    }
+
+    private long nextRenderTime(long intervalNanos) {
+        // without an interval the tree is rendered only on request
+        return System.nanoTime() + (intervalNanos > 0 ? intervalNanos : Long.MAX_VALUE / 2);
+    }
+
+    @NotNull
+    private DirectoryNode scanDirectory(@NotNull Path directory, @Nullable DirectoryNode parent) {
+        DirectoryNode node = new DirectoryNode(directory, parent, readAttributes(directory));
+        directories.put(directory, node);
+        // the directory is watched before it is listed, so the entries created meanwhile are not missed
+        watch(node);
+        List<Path> childrenFilesPaths = list(directory);
+        if (childrenFilesPaths == null) {
+            node.markUnreadable();
+            return node;
+        }
+        for (Path childPath : childrenFilesPaths) {
+            node.totalSize += reconcile(node, childPath.getFileName().toString());
+        }
+        return node;
+    }
+
+    /**
+     * Lists the directory again and reconciles all its old and new entries.
+     */
+    private void relist(@NotNull DirectoryNode directory) {
+        List<Path> childrenFilesPaths = list(directory.path);
+        long delta = 0;
+        if (childrenFilesPaths == null) {
+            if (directory.readable) {
+                for (DirectoryNode subdirectory : directory.subdirectories.values()) {
+                    forget(subdirectory);
+                }
+                long oldSize = directory.totalSize;
+                directory.markUnreadable();
+                addToAncestors(directory.parent, directory.totalSize - oldSize);
+            }
+            return;
+        }
+        if (!directory.readable) {
+            directory.readable = true;
+            delta -= directory.totalSize;
+        }
+        Set<String> names = new HashSet<>(directory.fileSizes.keySet());
+        names.addAll(directory.subdirectories.keySet());
+        for (Path childPath : childrenFilesPaths) {
+            names.add(childPath.getFileName().toString());
+        }
+        for (String name : names) {
+            delta += reconcile(directory, name);
+        }
+        addToAncestors(directory, delta);
+    }
+
+    /**
+     * Brings the entry of the directory in line with the file system and returns the change of the directory size.
+     * The sizes of the ancestors are left to the caller.
+     */
+    private long reconcile(@NotNull DirectoryNode directory, @NotNull String name) {
+        Path path = directory.path.resolve(name);
+        BasicFileAttributes attributes = readAttributes(path);
+        long delta = 0;
+        Long oldFileSize = directory.fileSizes.remove(name);
+        if (oldFileSize != null) {
+            delta -= oldFileSize;
+        }
+        DirectoryNode oldSubdirectory = directory.subdirectories.get(name);
+        if (oldSubdirectory != null) {
+            if (attributes != null && attributes.isDirectory() && oldSubdirectory.readable
+                    && Objects.equals(oldSubdirectory.fileKey, attributes.fileKey())) {
+                // changes inside the subdirectory are reported by its own watch
+                return delta;
+            }
+            directory.subdirectories.remove(name);
+            forget(oldSubdirectory);
+            delta -= oldSubdirectory.totalSize;
+        }
+        if (attributes == null || attributes.isSymbolicLink() || attributes.isDirectory() && boundary.stopsAt(path.toAbsolutePath())) {
+            return delta;
+        }
+        if (attributes.isDirectory()) {
+            DirectoryNode subdirectory = scanDirectory(path, directory);
+            directory.subdirectories.put(name, subdirectory);
+            return delta + subdirectory.totalSize;
+        }
+        directory.fileSizes.put(name, attributes.size());
+        return delta + attributes.size();
+    }
+
+    private void watch(@NotNull DirectoryNode directory) {
+        try {
+            directory.key = directory.path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            watchedDirectories.put(directory.key, directory);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (unwatchedDirectories.isEmpty()) {
+                log.warn("Unable to watch {}, such directories are listed again before each render: {}",
+                        directory.path, e.getMessage());
+            }
+            unwatchedDirectories.add(directory);
+        }
+    }
+
+    private void forget(@NotNull DirectoryNode directory) {
+        directories.remove(directory.path);
+        unwatchedDirectories.remove(directory);
+        if (directory.key != null) {
+            directory.key.cancel();
+            watchedDirectories.remove(directory.key);
+        }
+        for (DirectoryNode subdirectory : directory.subdirectories.values()) {
+            forget(subdirectory);
+        }
+    }
+
+    private static void addToAncestors(@Nullable DirectoryNode directory, long delta) {
+        for (DirectoryNode node = directory; node != null && delta != 0; node = node.parent) {
+            node.totalSize += delta;
+        }
+    }
+
+    @Nullable
+    private static List<Path> list(@NotNull Path directory) {
+        try (Stream<Path> childrenFilesStream = Files.list(directory)) {
+            return new ArrayList<>(childrenFilesStream.toList());
+        } catch (IOException | UncheckedIOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static BasicFileAttributes readAttributes(@NotNull Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A directory of the index. Like in <code>FileSizeCacheCalculator</code>, symlinks add nothing to the size,
+     * and a directory that cannot be listed adds -1.
+     */
+    private static final class DirectoryNode {
+        private final Path path;
+        @Nullable
+        private final DirectoryNode parent;
+        @Nullable
+        private final Object fileKey;
+        // sizes of the direct entries except subdirectories and symlinks
+        private final Map<String, Long> fileSizes = new HashMap<>();
+        private final Map<String, DirectoryNode> subdirectories = new HashMap<>();
+        private long totalSize;
+        private boolean readable = true;
+        @Nullable
+        private WatchKey key;
+
+        private DirectoryNode(@NotNull Path path, @Nullable DirectoryNode parent, @Nullable BasicFileAttributes attributes) {
+            this.path = path;
+            this.parent = parent;
+            this.fileKey = attributes == null ? null : attributes.fileKey();
+        }
+
+        private void markUnreadable() {
+            fileSizes.clear();
+            subdirectories.clear();
+            readable = false;
+            totalSize = -1;
+        }
+    }
+}
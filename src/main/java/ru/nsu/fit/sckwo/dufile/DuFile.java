@@ -1,19 +1,50 @@
 package ru.nsu.fit.sckwo.dufile;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
 
 public class DuFile {
     private final Path absolutePath;
     private long size = -1;
+    private long sizeMargin = -1;
+    private long sizeDelta;
+    private boolean sizeCompared;
     private final DuFileType fileType;
     private int actualCountOfChildren;
+    @Nullable
+    private final BasicFileAttributes attributes;
 
     public DuFile(@NotNull Path path, @NotNull DuFileType fileType) {
+        this(path, fileType, null);
+    }
+
+    public DuFile(@NotNull Path path, @NotNull DuFileType fileType, @Nullable BasicFileAttributes attributes) {
         this.absolutePath = path.toAbsolutePath();
         this.fileType = fileType;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Reads the attributes of the file (without following symlinks) and recognizes its type by them.
+     * The attributes are read once and kept in the file, so that its type and size can be taken from them
+     * without any further file system calls (only symlinks need extra calls to check their targets).
+     */
+    @NotNull
+    public static DuFile readFrom(@NotNull Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            attributes = null;
+        }
+        return new DuFile(path, DuFileType.recognizeFileType(path, attributes), attributes);
     }
 
     public long getSize() {
@@ -24,6 +55,38 @@ public class DuFile {
         this.size = size;
     }
 
+    /**
+     * Returns the margin of error of the estimated size at the 95% confidence level, in bytes,
+     * or -1 if the size is exact.
+     */
+    public long getSizeMargin() {
+        return sizeMargin;
+    }
+
+    public void setSizeMargin(long sizeMargin) {
+        this.sizeMargin = sizeMargin;
+    }
+
+    public boolean isSizeApproximate() {
+        return sizeMargin >= 0;
+    }
+
+    /**
+     * Returns the change of the size since an earlier scan, if the file is compared with it.
+     */
+    public long getSizeDelta() {
+        return sizeDelta;
+    }
+
+    public void setSizeDelta(long sizeDelta) {
+        this.sizeDelta = sizeDelta;
+        sizeCompared = true;
+    }
+
+    public boolean isSizeCompared() {
+        return sizeCompared;
+    }
+
     @NotNull
     public Path getAbsolutePath() {
         return absolutePath;
@@ -34,6 +97,15 @@ public class DuFile {
         return fileType;
     }
 
+    /**
+     * Returns the attributes of the file itself (not of the target of a symlink),
+     * or <code>null</code> if they have not been read.
+     */
+    @Nullable
+    public BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
     public int getActualCountOfChildren() {
         return actualCountOfChildren;
     }
@@ -2,10 +2,13 @@ package ru.nsu.fit.sckwo.dufile;
 
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 @Slf4j
 public enum DuFileType {
@@ -39,6 +42,12 @@ public enum DuFileType {
         public String getName() {
             return "unknown file format";
         }
+    },
+    // a directory which has not been read within the deadline, so its size is unknown
+    TIMED_OUT_DIRECTORY {
+        public String getName() {
+            return "timed out directory";
+        }
     };
 
     public abstract String getName();
@@ -46,16 +55,32 @@ public enum DuFileType {
     public static boolean isFileSizeCountable(@NotNull DuFileType fileType) {
         return fileType != DuFileType.UNKNOWN_FORMAT_FILE
                 && fileType != DuFileType.BROKEN_SYMLINK
-                && fileType != DuFileType.DANGLING_SYMLINK;
+                && fileType != DuFileType.DANGLING_SYMLINK
+                && fileType != DuFileType.TIMED_OUT_DIRECTORY;
     }
 
     @NotNull
     public static DuFileType recognizeFileType(@NotNull Path absolutePath) {
-        if (Files.isSymbolicLink(absolutePath)) {
+        try {
+            return recognizeFileType(absolutePath, Files.readAttributes(absolutePath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            return DuFileType.UNKNOWN_FORMAT_FILE;
+        }
+    }
+
+    /**
+     * Recognizes the type of the file by its attributes read without following symlinks.
+     * Only symlinks need further file system calls, which check whether their targets exist.
+     */
+    @NotNull
+    public static DuFileType recognizeFileType(@NotNull Path absolutePath, @Nullable BasicFileAttributes attributes) {
+        if (attributes == null) {
+            return DuFileType.UNKNOWN_FORMAT_FILE;
+        } else if (attributes.isSymbolicLink()) {
             return recognizeTypeOfSymlink(absolutePath);
-        } else if (Files.isDirectory(absolutePath)) {
+        } else if (attributes.isDirectory()) {
             return DuFileType.DIRECTORY;
-        } else if (Files.isRegularFile(absolutePath)) {
+        } else if (attributes.isRegularFile()) {
             return DuFileType.REGULAR_FILE;
         } else {
             return DuFileType.UNKNOWN_FORMAT_FILE;
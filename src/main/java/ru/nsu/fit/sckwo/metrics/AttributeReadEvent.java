@@ -0,0 +1,23 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Reading of the attributes of a file. There is one for every file,
+ * so only the ones longer than a millisecond are recorded by default.
+ */
+@Name("ru.nsu.fit.sckwo.AttributeRead")
+@Label("Attribute Read")
+@Category("jdu")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class AttributeReadEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+    @Label("Failed")
+    public boolean failed;
+}
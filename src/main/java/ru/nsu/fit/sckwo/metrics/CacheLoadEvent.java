@@ -0,0 +1,24 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Calculation of a size missing in the cache of sizes. The loads of the nested directories are nested events.
+ */
+@Name("ru.nsu.fit.sckwo.CacheLoad")
+@Label("Cache Load")
+@Category("jdu")
+@StackTrace(false)
+public final class CacheLoadEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+    @Label("Depth")
+    public int depth;
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
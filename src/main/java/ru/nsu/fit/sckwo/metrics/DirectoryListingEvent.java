@@ -0,0 +1,27 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Listing of a directory. The tree walker scans the children while it lists the directory,
+ * so its events last until the whole directory is scanned, and only <code>listingTime</code> is spent on the listing.
+ */
+@Name("ru.nsu.fit.sckwo.DirectoryListing")
+@Label("Directory Listing")
+@Category("jdu")
+@StackTrace(false)
+public final class DirectoryListingEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+    @Label("Entries")
+    public int entries;
+    @Label("Listing Time")
+    @Description("The time spent on reading the entries, without scanning them")
+    @Timespan
+    public long listingTime;
+}
@@ -0,0 +1,67 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.utils.TopElements;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * The directories that have taken the longest to read: to list them and to read the attributes of their entries.
+ * The time of the subdirectories is not included, so a stale mount or a huge flat directory stands out
+ * however deep it is. Only the slowest directories are kept, and they can be recorded from any thread.
+ * <p/>
+ * The types of the file stores are looked up without touching the directories, since the slowest of them
+ * are likely on stale mounts, which would block the report.
+ */
+public final class DirectoryProfile {
+    private final Function<Path, String> fileSystemTypes;
+    private final TopElements<DirectoryCost> slowest;
+
+    /**
+     * @param fileSystemTypes returns the type of the file store of a directory, or null if it is unknown
+     */
+    public DirectoryProfile(int capacity, @NotNull Function<Path, String> fileSystemTypes) {
+        this.fileSystemTypes = fileSystemTypes;
+        slowest = new TopElements<>(capacity, Comparator.comparingLong(DirectoryCost::nanos));
+    }
+
+    public void record(@NotNull Path directory, int entries, long nanos) {
+        slowest.offer(new DirectoryCost(directory, entries, nanos));
+    }
+
+    /**
+     * Returns the slowest directories, the slowest first.
+     */
+    @NotNull
+    public List<DirectoryCost> slowest() {
+        return slowest.sorted();
+    }
+
+    /**
+     * Prints the slowest directories with the numbers of their entries and the types of the file stores they are on.
+     */
+    public void print(@NotNull PrintStream printStream) {
+        printStream.println("Slowest directories:");
+        for (DirectoryCost directory : slowest()) {
+            printStream.printf(Locale.ROOT, "%10.3f s %10d entries  %-8s %s%n",
+                    directory.nanos() / 1e9, directory.entries(), fileStoreType(directory.directory()), directory.directory());
+        }
+    }
+
+    @NotNull
+    private String fileStoreType(@NotNull Path directory) {
+        String type = fileSystemTypes.apply(directory);
+        return type != null ? type : "?";
+    }
+
+    /**
+     * @param nanos the time of listing the directory and reading the attributes of its entries
+     */
+    public record DirectoryCost(@NotNull Path directory, int entries, long nanos) {
+    }
+}
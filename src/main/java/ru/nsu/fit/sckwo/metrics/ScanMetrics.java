@@ -0,0 +1,303 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import jdk.jfr.FlightRecorder;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counters of a walk: what has been read from the file system, how the cache of sizes has worked
+ * and how long the visitor has taken, so it can be seen where the time of a slow walk goes.
+ * The counters can be updated from any thread.
+ * <p/>
+ * Only the directories listed through <code>java.nio.file</code> are counted:
+ * the directories sized natively or taken from a snapshot are not listed.
+ * <p/>
+ * The metrics returned by {@link #none()} count nothing, and the walk does not time its calls for them
+ * (see {@link #isCounting()}).
+ */
+@Slf4j
+public final class ScanMetrics implements ScanMetricsMXBean {
+    private static final String OBJECT_NAME = "ru.nsu.fit.sckwo:type=ScanMetrics";
+
+    private final long startTime = System.nanoTime();
+    private final boolean counting;
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder directoryListings = new LongAdder();
+    private final LongAdder listingNanos = new LongAdder();
+    private final LongAdder attributeReads = new LongAdder();
+    private final LongAdder attributeReadNanos = new LongAdder();
+    private final LongAdder cacheLoads = new LongAdder();
+    private final LongAdder cacheLoadNanos = new LongAdder();
+    private final LongAdder visitorCallbacks = new LongAdder();
+    private final LongAdder visitorNanos = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile CacheCounters cacheCounters = CacheCounters.NONE;
+    @Nullable
+    private final DirectoryProfile profile;
+
+    public ScanMetrics() {
+        this(0, directory -> null);
+    }
+
+    /**
+     * @param slowestDirectories the number of the slowest directories kept in the profile (0 - no profile)
+     * @param fileSystemTypes    returns the type of the file store of a directory of the profile, or null if it is unknown
+     */
+    public ScanMetrics(int slowestDirectories, @NotNull Function<Path, String> fileSystemTypes) {
+        this(true, slowestDirectories, fileSystemTypes);
+    }
+
+    private ScanMetrics(boolean counting, int slowestDirectories, @NotNull Function<Path, String> fileSystemTypes) {
+        this.counting = counting;
+        profile = slowestDirectories > 0 ? new DirectoryProfile(slowestDirectories, fileSystemTypes) : null;
+    }
+
+    /**
+     * Returns the metrics of a walk whose statistics are not reported, which ignore everything counted in them.
+     */
+    @NotNull
+    public static ScanMetrics none() {
+        return new ScanMetrics(false, 0, directory -> null);
+    }
+
+    /**
+     * Returns whether the metrics count what is passed to them, so the calls are worth timing.
+     */
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * Returns whether the Flight Recorder has been started, so the events of the walk are worth creating.
+     * The events are not created otherwise, since the first one would initialize the recorder.
+     */
+    public static boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    public void directoryListed(int countOfEntries, long nanos) {
+        if (!counting) {
+            return;
+        }
+        directoryListings.increment();
+        entries.add(countOfEntries);
+        listingNanos.add(nanos);
+    }
+
+    /**
+     * Records the time of listing the directory and reading the attributes of its entries to the profile.
+     */
+    public void directoryRead(@NotNull Path directory, int countOfEntries, long nanos) {
+        if (profile != null) {
+            profile.record(directory, countOfEntries, nanos);
+        }
+    }
+
+    @Nullable
+    public DirectoryProfile getProfile() {
+        return profile;
+    }
+
+    public void attributesRead(long nanos) {
+        if (!counting) {
+            return;
+        }
+        attributeReads.increment();
+        attributeReadNanos.add(nanos);
+    }
+
+    /**
+     * Counts a size that has been missing in the cache when the walker has asked for it.
+     * The sizes loaded for it in turn are not counted, so their time is not counted twice.
+     */
+    public void cacheLoaded(long nanos) {
+        if (!counting) {
+            return;
+        }
+        cacheLoads.increment();
+        cacheLoadNanos.add(nanos);
+    }
+
+    public void fileVisited(long nanos) {
+        if (!counting) {
+            return;
+        }
+        visitorCallbacks.increment();
+        visitorNanos.add(nanos);
+    }
+
+    /**
+     * Counts a file or a directory that could not be read.
+     */
+    public void error() {
+        if (!counting) {
+            return;
+        }
+        errors.increment();
+    }
+
+    /**
+     * Sets the source of the hits, misses and evictions of the cache of sizes.
+     */
+    public void setCacheCounters(@NotNull CacheCounters cacheCounters) {
+        this.cacheCounters = cacheCounters;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing the metrics of the previous walk.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Unable to register the scan metrics in JMX: {}", e.getMessage());
+        }
+    }
+
+    @NotNull
+    public String summary() {
+        return String.format(Locale.ROOT, """
+                        Scanned %d entries in %.2f s (%d entries/s), times below are summed over threads
+                        Directory listings: %d in %.2f s
+                        Attribute reads: %d in %.2f s
+                        Cache: %d hits, %d misses (%.1f%% hit ratio), %d evictions, %d loads in %.2f s
+                        Visitor callbacks: %d in %.2f s
+                        Errors: %d""",
+                getEntries(), seconds(System.nanoTime() - startTime), getEntriesPerSecond(),
+                getDirectoryListings(), seconds(listingNanos.sum()),
+                getAttributeReads(), seconds(attributeReadNanos.sum()),
+                getCacheHits(), getCacheMisses(), getCacheHitRatio() * 100, getCacheEvictions(),
+                getCacheLoads(), seconds(cacheLoadNanos.sum()),
+                getVisitorCallbacks(), seconds(visitorNanos.sum()),
+                getErrors());
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    @Override
+    public long getEntriesPerSecond() {
+        return (long) (getEntries() / Math.max(seconds(System.nanoTime() - startTime), 1e-9));
+    }
+
+    @Override
+    public long getDirectoryListings() {
+        return directoryListings.sum();
+    }
+
+    @Override
+    public long getListingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(listingNanos.sum());
+    }
+
+    @Override
+    public long getAttributeReads() {
+        return attributeReads.sum();
+    }
+
+    @Override
+    public long getAttributeReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(attributeReadNanos.sum());
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheCounters.hits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheCounters.misses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long requests = getCacheHits() + getCacheMisses();
+        return requests == 0 ? 1.0 : (double) getCacheHits() / requests;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheCounters.evictions();
+    }
+
+    @Override
+    public long getCacheLoads() {
+        return cacheLoads.sum();
+    }
+
+    @Override
+    public long getCacheLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cacheLoadNanos.sum());
+    }
+
+    @Override
+    public long getVisitorCallbacks() {
+        return visitorCallbacks.sum();
+    }
+
+    @Override
+    public long getVisitorMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(visitorNanos.sum());
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * The counters kept by the cache itself.
+     */
+    public interface CacheCounters {
+        CacheCounters NONE = new CacheCounters() {
+            @Override
+            public long hits() {
+                return 0;
+            }
+
+            @Override
+            public long misses() {
+                return 0;
+            }
+
+            @Override
+            public long evictions() {
+                return 0;
+            }
+        };
+
+        long hits();
+
+        long misses();
+
+        long evictions();
+    }
+}
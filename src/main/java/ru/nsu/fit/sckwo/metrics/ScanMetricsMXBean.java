@@ -0,0 +1,38 @@
+package ru.nsu.fit.sckwo.metrics;
+
+/**
+ * The counters of a walk exposed through JMX. The times are summed over all the threads of the walk.
+ */
+public interface ScanMetricsMXBean {
+    long getElapsedMillis();
+
+    long getEntries();
+
+    long getEntriesPerSecond();
+
+    long getDirectoryListings();
+
+    long getListingMillis();
+
+    long getAttributeReads();
+
+    long getAttributeReadMillis();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheEvictions();
+
+    long getCacheLoads();
+
+    long getCacheLoadMillis();
+
+    long getVisitorCallbacks();
+
+    long getVisitorMillis();
+
+    long getErrors();
+}
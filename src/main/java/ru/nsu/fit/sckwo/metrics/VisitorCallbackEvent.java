@@ -0,0 +1,23 @@
+package ru.nsu.fit.sckwo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A call of the <code>FileVisitor</code>, e.g. printing of a line.
+ * Calls shorter than a millisecond are recorded only if the threshold is lowered.
+ */
+@Name("ru.nsu.fit.sckwo.VisitorCallback")
+@Label("Visitor Callback")
+@Category("jdu")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class VisitorCallbackEvent extends jdk.jfr.Event {
+    @Label("Path")
+    public String path;
+    @Label("Depth")
+    public int depth;
+}
@@ -0,0 +1,296 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static ru.nsu.fit.sckwo.dufile.DuFileType.isFileSizeCountable;
+
+/**
+ * Scanned file tree kept in parallel primitive arrays instead of an object per file.
+ * <p/>
+ * Every entry is an index into the arrays of sizes, types, parents, first children and next siblings,
+ * and its name is stored once in a shared {@link NameArena}. The names are stored in the order of the entries,
+ * and only the address of every {@value #NAME_RESTART_INTERVAL}th name is kept: the others are found by
+ * stepping over the names before them. So an entry takes a little over 21 bytes plus the length of its name.
+ * Paths and <code>DuFile</code>s are created only for the entries that are asked for
+ * (e.g. the ones that are rendered).
+ * <p/>
+ * The size of an entry is the size a <code>TreeWalker</code> shows: the total size of a directory
+ * and the size of the target of a symlink. Entries are appended only, the children of a directory
+ * are kept in the order they have been added.
+ */
+public final class CompactFileTree {
+    public static final int ROOT = 0;
+    public static final int NO_ENTRY = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+    static final int NAME_RESTART_INTERVAL = 16;
+    private static final DuFileType[] TYPES = DuFileType.values();
+    // the flag of the type byte marking a directory that cannot be listed
+    private static final int UNREADABLE = 0x80;
+
+    private final Path rootPath;
+    private final NameArena names;
+    private long[] sizes;
+    private byte[] types;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    // the addresses of the names of every NAME_RESTART_INTERVAL-th entry but the root, which has no stored name
+    private int[] nameRestarts;
+    // the last children are needed only to append children in order while the tree is built
+    private int[] lastChildren;
+    private int count;
+
+    /**
+     * Creates a tree with the root entry only.
+     *
+     * @param offHeap whether the names are kept in direct buffers outside the heap
+     */
+    public CompactFileTree(@NotNull Path rootPath, @NotNull DuFileType rootType, boolean offHeap) {
+        this.rootPath = rootPath.toAbsolutePath();
+        names = new NameArena(offHeap);
+        sizes = new long[INITIAL_CAPACITY];
+        types = new byte[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        firstChildren = new int[INITIAL_CAPACITY];
+        nextSiblings = new int[INITIAL_CAPACITY];
+        nameRestarts = new int[INITIAL_CAPACITY / NAME_RESTART_INTERVAL];
+        lastChildren = new int[INITIAL_CAPACITY];
+        add(NO_ENTRY, "", rootType);
+    }
+
+    /**
+     * Appends an entry as the last child of the parent and returns its index. The size of the entry is -1.
+     */
+    public int addChild(int parent, @NotNull String name, @NotNull DuFileType type) {
+        checkEntry(parent);
+        return add(parent, name, type);
+    }
+
+    public void setSize(int entry, long size) {
+        checkEntry(entry);
+        sizes[entry] = size;
+    }
+
+    /**
+     * Marks the directory as one that cannot be listed: it is not visited, and its size is -1.
+     */
+    public void markUnreadable(int entry) {
+        checkEntry(entry);
+        types[entry] |= (byte) UNREADABLE;
+        sizes[entry] = -1;
+    }
+
+    /**
+     * Shrinks the arrays to the number of entries and drops the data needed only while the tree is built,
+     * after which no entries can be added.
+     */
+    public void trimToSize() {
+        sizes = Arrays.copyOf(sizes, count);
+        types = Arrays.copyOf(types, count);
+        parents = Arrays.copyOf(parents, count);
+        firstChildren = Arrays.copyOf(firstChildren, count);
+        nextSiblings = Arrays.copyOf(nextSiblings, count);
+        nameRestarts = Arrays.copyOf(nameRestarts, (count - 1 + NAME_RESTART_INTERVAL - 1) / NAME_RESTART_INTERVAL);
+        lastChildren = null;
+    }
+
+    @NotNull
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getSize(int entry) {
+        checkEntry(entry);
+        return sizes[entry];
+    }
+
+    /**
+     * Returns the amount the entry adds to the size of its parent directory: symlinks add nothing.
+     */
+    public long getSizeInParent(int entry) {
+        return switch (getType(entry)) {
+            case SYMLINK, BROKEN_SYMLINK, DANGLING_SYMLINK -> 0;
+            default -> getSize(entry);
+        };
+    }
+
+    @NotNull
+    public DuFileType getType(int entry) {
+        checkEntry(entry);
+        return TYPES[Byte.toUnsignedInt(types[entry]) & ~UNREADABLE];
+    }
+
+    public boolean isReadable(int entry) {
+        checkEntry(entry);
+        return (types[entry] & UNREADABLE) == 0;
+    }
+
+    public int getParent(int entry) {
+        checkEntry(entry);
+        return parents[entry];
+    }
+
+    public int getFirstChild(int entry) {
+        checkEntry(entry);
+        return firstChildren[entry];
+    }
+
+    public int getNextSibling(int entry) {
+        checkEntry(entry);
+        return nextSiblings[entry];
+    }
+
+    @NotNull
+    public String getName(int entry) {
+        checkEntry(entry);
+        return entry == ROOT ? rootName(rootPath) : names.get(nameAddress(entry));
+    }
+
+    /**
+     * Builds the absolute path of the entry from the names of its ancestors.
+     */
+    @NotNull
+    public Path getPath(int entry) {
+        Deque<String> pathNames = new ArrayDeque<>();
+        for (int ancestor = entry; ancestor != ROOT; ancestor = getParent(ancestor)) {
+            pathNames.addFirst(names.get(nameAddress(ancestor)));
+        }
+        Path path = rootPath;
+        for (String name : pathNames) {
+            path = resolve(path, name);
+        }
+        return path;
+    }
+
+    /**
+     * Creates the file of the entry as a <code>TreeWalker</code> would pass it to a <code>FileVisitor</code>:
+     * the sizes are set only for the types which have them.
+     */
+    @NotNull
+    public DuFile toDuFile(int entry) {
+        DuFile file = new DuFile(getPath(entry), getType(entry));
+        if (isFileSizeCountable(file.getType())) {
+            file.setSize(getSize(entry));
+        }
+        return file;
+    }
+
+    /**
+     * Returns the number of bytes the tree takes on the heap, not counting the object headers of the tree itself.
+     */
+    public long heapFootprint() {
+        long footprint = arrayFootprint(sizes.length, Long.BYTES)
+                + arrayFootprint(types.length, Byte.BYTES)
+                + arrayFootprint(parents.length, Integer.BYTES)
+                + arrayFootprint(firstChildren.length, Integer.BYTES)
+                + arrayFootprint(nextSiblings.length, Integer.BYTES)
+                + arrayFootprint(nameRestarts.length, Integer.BYTES)
+                + names.heapFootprint();
+        if (lastChildren != null) {
+            footprint += arrayFootprint(lastChildren.length, Integer.BYTES);
+        }
+        return footprint;
+    }
+
+    public long offHeapFootprint() {
+        return names.offHeapFootprint();
+    }
+
+    private int add(int parent, @NotNull String name, @NotNull DuFileType type) {
+        if (lastChildren == null) {
+            throw new IllegalStateException("The tree has been trimmed.");
+        }
+        if (count == sizes.length) {
+            grow();
+        }
+        int entry = count++;
+        sizes[entry] = -1;
+        types[entry] = (byte) type.ordinal();
+        parents[entry] = parent;
+        firstChildren[entry] = NO_ENTRY;
+        nextSiblings[entry] = NO_ENTRY;
+        lastChildren[entry] = NO_ENTRY;
+        if (entry != ROOT) {
+            int address = names.add(name);
+            int ordinal = entry - 1;
+            if (ordinal % NAME_RESTART_INTERVAL == 0) {
+                int restart = ordinal / NAME_RESTART_INTERVAL;
+                if (restart == nameRestarts.length) {
+                    nameRestarts = Arrays.copyOf(nameRestarts, restart + (restart >> 1) + 1);
+                }
+                nameRestarts[restart] = address;
+            }
+        }
+        if (parent != NO_ENTRY) {
+            if (lastChildren[parent] == NO_ENTRY) {
+                firstChildren[parent] = entry;
+            } else {
+                nextSiblings[lastChildren[parent]] = entry;
+            }
+            lastChildren[parent] = entry;
+        }
+        return entry;
+    }
+
+    private int nameAddress(int entry) {
+        int ordinal = entry - 1;
+        int address = nameRestarts[ordinal / NAME_RESTART_INTERVAL];
+        for (int i = ordinal % NAME_RESTART_INTERVAL; i > 0; i--) {
+            address = names.next(address);
+        }
+        return address;
+    }
+
+    private void grow() {
+        int capacity = sizes.length + (sizes.length >> 1);
+        sizes = Arrays.copyOf(sizes, capacity);
+        types = Arrays.copyOf(types, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+    }
+
+    private void checkEntry(int entry) {
+        if (entry < 0 || entry >= count) {
+            throw new IndexOutOfBoundsException("No entry " + entry + " in the tree of " + count + " entries.");
+        }
+    }
+
+    /**
+     * Returns the name of the root: its file name, or the whole path for a root of the file system.
+     */
+    @NotNull
+    static String rootName(@NotNull Path rootPath) {
+        Path fileName = rootPath.getFileName();
+        return fileName != null ? fileName.toString() : rootPath.toString();
+    }
+
+    @NotNull
+    static Path resolve(@NotNull Path directory, @NotNull String name) {
+        try {
+            return directory.resolve(name);
+        } catch (InvalidPathException e) {
+            // the name was decoded with a lossy charset of the file system (e.g. in the C locale),
+            // so it is kept for display only, the way a PrintStream of that charset would show it
+            return directory.resolve(name.replaceAll("[^\\x00-\\x7F]", "?"));
+        }
+    }
+
+    private static long arrayFootprint(int length, int elementSize) {
+        // an array header takes 16 bytes with compressed class pointers
+        return 16 + (long) length * elementSize;
+    }
+}
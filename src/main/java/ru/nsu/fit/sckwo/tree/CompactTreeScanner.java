@@ -0,0 +1,115 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nsu.fit.sckwo.dufile.DuFile;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
+import ru.nsu.fit.sckwo.utils.FileSizeCacheCalculator;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Reads the whole file tree into a {@link CompactFileTree}.
+ * <p/>
+ * Every directory is listed once and its size is summed up from its children, the same way
+ * <code>TreeWalker</code> does it: symlinks add nothing, directories that cannot be listed add -1.
+ * Symlinks are not followed, but their sizes are the sizes of their targets.
+ * <p/>
+ * If the scanner is given metrics, the listings, the attribute reads and the errors of its scans are counted
+ * in them like the ones of a walk.
+ */
+public final class CompactTreeScanner {
+    // deep enough for the calculator not to cache anything below the targets of symlinks
+    private static final int SYMLINK_TARGET_DEPTH = 2;
+    private final FileSizeCacheCalculator symlinkTargetSizes = new FileSizeCacheCalculator(0);
+    private final boolean offHeap;
+    @Nullable
+    private final ScanMetrics metrics;
+
+    /**
+     * @param offHeap whether the names of the scanned trees are kept outside the heap
+     */
+    public CompactTreeScanner(boolean offHeap) {
+        this(offHeap, null);
+    }
+
+    /**
+     * @param offHeap whether the names of the scanned trees are kept outside the heap
+     * @param metrics the counters of the scans, or null if they are not counted
+     */
+    public CompactTreeScanner(boolean offHeap, @Nullable ScanMetrics metrics) {
+        this.offHeap = offHeap;
+        this.metrics = metrics;
+    }
+
+    @NotNull
+    public CompactFileTree scan(@NotNull Path root) {
+        DuFile rootFile = readFile(root);
+        CompactFileTree tree = new CompactFileTree(root, rootFile.getType(), offHeap);
+        fill(tree, CompactFileTree.ROOT, rootFile);
+        tree.trimToSize();
+        return tree;
+    }
+
+    private void fill(@NotNull CompactFileTree tree, int entry, @NotNull DuFile file) {
+        BasicFileAttributes attributes = file.getAttributes();
+        switch (file.getType()) {
+            case DIRECTORY -> fillDirectory(tree, entry, file.getAbsolutePath());
+            case SYMLINK -> tree.setSize(entry, symlinkTargetSizes.sizeOfSymlinkTarget(file.getAbsolutePath(), SYMLINK_TARGET_DEPTH));
+            case REGULAR_FILE, UNKNOWN_FORMAT_FILE -> tree.setSize(entry, attributes == null ? 0 : attributes.size());
+            default -> {
+                // dangling and broken symlinks have no size
+            }
+        }
+    }
+
+    private void fillDirectory(@NotNull CompactFileTree tree, int entry, @NotNull Path directory) {
+        long size = 0;
+        long start = metrics != null ? System.nanoTime() : 0;
+        // the time of reading and filling the children, which is not a part of the listing
+        long scanningTime = 0;
+        int countOfEntries = 0;
+        try (DirectoryStream<Path> childrenFilesPaths = Files.newDirectoryStream(directory)) {
+            for (Path childFilePath : childrenFilesPaths) {
+                long childStart = metrics != null ? System.nanoTime() : 0;
+                DuFile child = readFile(childFilePath);
+                int childEntry = tree.addChild(entry, childFilePath.getFileName().toString(), child.getType());
+                fill(tree, childEntry, child);
+                size += tree.getSizeInParent(childEntry);
+                countOfEntries++;
+                if (metrics != null) {
+                    scanningTime += System.nanoTime() - childStart;
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            if (metrics != null) {
+                metrics.error();
+            }
+            tree.markUnreadable(entry);
+            return;
+        }
+        if (metrics != null) {
+            metrics.directoryListed(countOfEntries, System.nanoTime() - start - scanningTime);
+        }
+        tree.setSize(entry, size);
+    }
+
+    @NotNull
+    private DuFile readFile(@NotNull Path path) {
+        if (metrics == null) {
+            return DuFile.readFrom(path);
+        }
+        long start = System.nanoTime();
+        DuFile file = DuFile.readFrom(path);
+        metrics.attributesRead(System.nanoTime() - start);
+        if (file.getAttributes() == null) {
+            metrics.error();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,479 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.utils.LargestFiles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Scanned file tree saved to a binary file, which is read through memory mapping:
+ * opening the file reads only its header, and a query touches only the pages of the entries it needs.
+ * <p/>
+ * The entries are stored in depth-first order with the children of a directory sorted by name,
+ * so the subtree of an entry is the range of entries that starts with it. The file consists of:
+ * <ul>
+ * <li>the header: the magic number, the version, the number of entries and the UTF-8 encoded root path;</li>
+ * <li>the columns of the sizes (<code>long</code>), the parents and the subtree lengths (<code>int</code>)
+ * of the entries;</li>
+ * <li>the child index: the children of every entry in the order of their names, and the offset
+ * of the children of every entry in it, so a child is found by a binary search;</li>
+ * <li>the column of the types (a byte with the flag of an unreadable directory) of the entries;</li>
+ * <li>the names, front-coded: every name is stored as the length of its prefix shared with
+ * the previous name and the rest of it, and every {@value #RESTART_INTERVAL}th name is stored whole;</li>
+ * <li>the offset index: the offsets of the whole names, so any name is decoded from at most
+ * {@value #RESTART_INTERVAL} names.</li>
+ * </ul>
+ * The sizes are the ones of {@link CompactFileTree}. A tree is not thread-safe, since the names are decoded
+ * into a shared buffer.
+ */
+public final class MappedFileTree {
+    public static final int ROOT = 0;
+    public static final int NO_ENTRY = -1;
+    private static final int MAGIC = 0x4A445554;
+    private static final int VERSION = 2;
+    private static final int RESTART_INTERVAL = 16;
+    private static final DuFileType[] TYPES = DuFileType.values();
+    // the flag of the type byte marking a directory that cannot be listed
+    private static final int UNREADABLE = 0x80;
+
+    private final Path rootPath;
+    private final int count;
+    private final LongBuffer sizes;
+    private final IntBuffer parents;
+    private final IntBuffer subtreeLengths;
+    private final IntBuffer childOffsets;
+    private final IntBuffer children;
+    private final ByteBuffer types;
+    private final ByteBuffer names;
+    private final IntBuffer restarts;
+    private byte[] nameBuffer = new byte[256];
+
+    private MappedFileTree(@NotNull Path rootPath, int count, @NotNull LongBuffer sizes, @NotNull IntBuffer parents,
+                           @NotNull IntBuffer subtreeLengths, @NotNull IntBuffer childOffsets,
+                           @NotNull IntBuffer children, @NotNull ByteBuffer types, @NotNull ByteBuffer names,
+                           @NotNull IntBuffer restarts) {
+        this.rootPath = rootPath;
+        this.count = count;
+        this.sizes = sizes;
+        this.parents = parents;
+        this.subtreeLengths = subtreeLengths;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.types = types;
+        this.names = names;
+        this.restarts = restarts;
+    }
+
+    /**
+     * Writes the tree to the file. The file is replaced only when it is written completely.
+     */
+    public static void write(@NotNull CompactFileTree tree, @NotNull Path file) throws IOException {
+        int count = tree.getCount();
+        int[] order = depthFirstOrder(tree);
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[order[i]] = i;
+        }
+        int[] subtreeLengths = new int[count];
+        Arrays.fill(subtreeLengths, 1);
+        // the descendants follow their ancestors, so the subtree of an entry is complete when it is reached backwards
+        for (int i = count - 1; i > 0; i--) {
+            subtreeLengths[indices[tree.getParent(order[i])]] += subtreeLengths[i];
+        }
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            byte[] rootPath = tree.getRootPath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(count);
+            output.writeInt(rootPath.length);
+            output.write(rootPath);
+            output.write(new byte[headerLength(rootPath.length) - output.size()]);
+            for (int entry : order) {
+                output.writeLong(tree.getSize(entry));
+            }
+            for (int entry : order) {
+                output.writeInt(entry == CompactFileTree.ROOT ? NO_ENTRY : indices[tree.getParent(entry)]);
+            }
+            for (int subtreeLength : subtreeLengths) {
+                output.writeInt(subtreeLength);
+            }
+            writeChildIndex(subtreeLengths, output);
+            for (int entry : order) {
+                output.writeByte(tree.getType(entry).ordinal() | (tree.isReadable(entry) ? 0 : UNREADABLE));
+            }
+            int[] restarts = writeNames(tree, order, output);
+            for (int restart : restarts) {
+                output.writeInt(restart);
+            }
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the file written by {@link #write(CompactFileTree, Path)}.
+     */
+    @NotNull
+    public static MappedFileTree open(@NotNull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES);
+            if (channel.read(header, 0) != header.capacity()
+                    || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION) {
+                throw new IOException(file + " is not a saved jdu tree.");
+            }
+            int count = header.getInt(2 * Integer.BYTES);
+            int rootPathLength = header.getInt(3 * Integer.BYTES);
+            long sizesOffset = headerLength(rootPathLength);
+            long parentsOffset = sizesOffset + (long) count * Long.BYTES;
+            long subtreeLengthsOffset = parentsOffset + (long) count * Integer.BYTES;
+            long childOffsetsOffset = subtreeLengthsOffset + (long) count * Integer.BYTES;
+            long childrenOffset = childOffsetsOffset + (long) (count + 1) * Integer.BYTES;
+            // every entry but the root is a child
+            long typesOffset = childrenOffset + (long) (count - 1) * Integer.BYTES;
+            long namesOffset = typesOffset + count;
+            long restartsLength = (long) countOfRestarts(count) * Integer.BYTES;
+            long restartsOffset = channel.size() - restartsLength;
+            if (count <= 0 || rootPathLength < 0 || restartsOffset < namesOffset) {
+                throw new IOException(file + " is damaged.");
+            }
+            ByteBuffer rootPath = channel.map(FileChannel.MapMode.READ_ONLY, 4 * Integer.BYTES, rootPathLength);
+            return new MappedFileTree(
+                    Path.of(StandardCharsets.UTF_8.decode(rootPath).toString()),
+                    count,
+                    channel.map(FileChannel.MapMode.READ_ONLY, sizesOffset, parentsOffset - sizesOffset).asLongBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, parentsOffset, subtreeLengthsOffset - parentsOffset).asIntBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, subtreeLengthsOffset, childOffsetsOffset - subtreeLengthsOffset).asIntBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, childOffsetsOffset, childrenOffset - childOffsetsOffset).asIntBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, childrenOffset, typesOffset - childrenOffset).asIntBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, typesOffset, count),
+                    channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, restartsOffset - namesOffset),
+                    channel.map(FileChannel.MapMode.READ_ONLY, restartsOffset, restartsLength).asIntBuffer());
+        }
+    }
+
+    @NotNull
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getSize(int entry) {
+        checkEntry(entry);
+        return sizes.get(entry);
+    }
+
+    @NotNull
+    public DuFileType getType(int entry) {
+        checkEntry(entry);
+        return TYPES[Byte.toUnsignedInt(types.get(entry)) & ~UNREADABLE];
+    }
+
+    public boolean isReadable(int entry) {
+        checkEntry(entry);
+        return (types.get(entry) & UNREADABLE) == 0;
+    }
+
+    public int getParent(int entry) {
+        checkEntry(entry);
+        return parents.get(entry);
+    }
+
+    /**
+     * Returns the number of entries in the subtree of the entry, including the entry itself.
+     */
+    public int getSubtreeLength(int entry) {
+        checkEntry(entry);
+        return subtreeLengths.get(entry);
+    }
+
+    @NotNull
+    public String getName(int entry) {
+        checkEntry(entry);
+        return entry == ROOT ? CompactFileTree.rootName(rootPath) : decodedName(entry);
+    }
+
+    /**
+     * Builds the absolute path of the entry from the names of its ancestors.
+     */
+    @NotNull
+    public Path getPath(int entry) {
+        Deque<String> pathNames = new ArrayDeque<>();
+        for (int ancestor = entry; ancestor != ROOT; ancestor = getParent(ancestor)) {
+            pathNames.addFirst(getName(ancestor));
+        }
+        Path path = rootPath;
+        for (String name : pathNames) {
+            path = CompactFileTree.resolve(path, name);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the entry of the absolute path, or {@link #NO_ENTRY} if the path is not in the tree.
+     * The children on the way to the entry are found by binary searches of the child index,
+     * so only a few names of every directory on the way are decoded.
+     */
+    public int find(@NotNull Path path) {
+        Path normalizedPath = path.normalize();
+        if (!normalizedPath.startsWith(rootPath)) {
+            return NO_ENTRY;
+        }
+        int entry = ROOT;
+        for (Path name : rootPath.relativize(normalizedPath)) {
+            if (name.toString().isEmpty()) {
+                continue;
+            }
+            entry = findChild(entry, name.toString());
+            if (entry == NO_ENTRY) {
+                return NO_ENTRY;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the largest regular files in the subtree of the entry. The columns of the sizes and the types
+     * of the subtree are scanned, and the paths are built only for the largest files.
+     */
+    @NotNull
+    public LargestFiles largestFiles(int entry, int countOfFiles) {
+        int end = entry + getSubtreeLength(entry);
+        byte regularFile = (byte) DuFileType.REGULAR_FILE.ordinal();
+        // a min-heap of the largest files seen so far
+        long[] heapSizes = new long[countOfFiles];
+        int[] heapEntries = new int[countOfFiles];
+        int heapSize = 0;
+        for (int i = entry; i < end; i++) {
+            if (types.get(i) != regularFile) {
+                continue;
+            }
+            long size = sizes.get(i);
+            if (heapSize < countOfFiles) {
+                int position = heapSize++;
+                while (position > 0 && heapSizes[(position - 1) / 2] > size) {
+                    heapSizes[position] = heapSizes[(position - 1) / 2];
+                    heapEntries[position] = heapEntries[(position - 1) / 2];
+                    position = (position - 1) / 2;
+                }
+                heapSizes[position] = size;
+                heapEntries[position] = i;
+            } else if (countOfFiles > 0 && size > heapSizes[0]) {
+                int position = 0;
+                while (2 * position + 1 < heapSize) {
+                    int child = 2 * position + 1;
+                    if (child + 1 < heapSize && heapSizes[child + 1] < heapSizes[child]) {
+                        child++;
+                    }
+                    if (heapSizes[child] >= size) {
+                        break;
+                    }
+                    heapSizes[position] = heapSizes[child];
+                    heapEntries[position] = heapEntries[child];
+                    position = child;
+                }
+                heapSizes[position] = size;
+                heapEntries[position] = i;
+            }
+        }
+        LargestFiles largestFiles = new LargestFiles(countOfFiles);
+        for (int i = 0; i < heapSize; i++) {
+            largestFiles.offer(getPath(heapEntries[i]), heapSizes[i]);
+        }
+        return largestFiles;
+    }
+
+    private int findChild(int parent, @NotNull String name) {
+        // the children are sorted by the same comparison of names when they are written
+        int low = childOffsets.get(parent);
+        int high = childOffsets.get(parent + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int child = children.get(middle);
+            int comparison = decodedName(child).compareTo(name);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return child;
+            }
+        }
+        return NO_ENTRY;
+    }
+
+    @NotNull
+    private String decodedName(int entry) {
+        // the name is decoded first, since the buffer may be replaced by a larger one
+        int length = decodeName(entry);
+        return new String(nameBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the name of the entry into the name buffer and returns its length.
+     */
+    private int decodeName(int entry) {
+        int position = restarts.get(entry / RESTART_INTERVAL);
+        int length = 0;
+        for (int i = entry - entry % RESTART_INTERVAL; i <= entry; i++) {
+            int sharedLength = readVarint(position);
+            position += varintLength(sharedLength);
+            int suffixLength = readVarint(position);
+            position += varintLength(suffixLength);
+            length = sharedLength + suffixLength;
+            if (length > nameBuffer.length) {
+                nameBuffer = Arrays.copyOf(nameBuffer, Math.max(length, 2 * nameBuffer.length));
+            }
+            names.get(position, nameBuffer, sharedLength, suffixLength);
+            position += suffixLength;
+        }
+        return length;
+    }
+
+    private int readVarint(int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = names.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private void checkEntry(int entry) {
+        if (entry < 0 || entry >= count) {
+            throw new IndexOutOfBoundsException("No entry " + entry + " in the tree of " + count + " entries.");
+        }
+    }
+
+    /**
+     * Returns the entries of the tree in depth-first order, the children of a directory sorted by name.
+     */
+    private static int @NotNull [] depthFirstOrder(@NotNull CompactFileTree tree) {
+        int[] order = new int[tree.getCount()];
+        int countOfOrdered = 0;
+        int[] stack = new int[tree.getCount()];
+        int stackSize = 0;
+        stack[stackSize++] = CompactFileTree.ROOT;
+        List<NamedEntry> children = new ArrayList<>();
+        while (stackSize > 0) {
+            int entry = stack[--stackSize];
+            order[countOfOrdered++] = entry;
+            children.clear();
+            for (int child = tree.getFirstChild(entry); child != CompactFileTree.NO_ENTRY; child = tree.getNextSibling(child)) {
+                children.add(new NamedEntry(tree.getName(child), child));
+            }
+            children.sort(Comparator.comparing(NamedEntry::name).reversed());
+            for (NamedEntry child : children) {
+                stack[stackSize++] = child.entry();
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Writes the child index of the entries in depth-first order: the offsets of the children of every entry
+     * (and the end of the last ones), then the children themselves, which follow each other
+     * in the order of their names like in the depth-first order.
+     */
+    private static void writeChildIndex(int @NotNull [] subtreeLengths, @NotNull DataOutputStream output)
+            throws IOException {
+        int offset = 0;
+        for (int entry = 0; entry < subtreeLengths.length; entry++) {
+            output.writeInt(offset);
+            for (int child = entry + 1; child < entry + subtreeLengths[entry]; child += subtreeLengths[child]) {
+                offset++;
+            }
+        }
+        output.writeInt(offset);
+        for (int entry = 0; entry < subtreeLengths.length; entry++) {
+            for (int child = entry + 1; child < entry + subtreeLengths[entry]; child += subtreeLengths[child]) {
+                output.writeInt(child);
+            }
+        }
+    }
+
+    /**
+     * Writes the front-coded names of the entries and returns the offsets of the whole names.
+     */
+    private static int @NotNull [] writeNames(@NotNull CompactFileTree tree, int @NotNull [] order,
+                                              @NotNull DataOutputStream output) throws IOException {
+        int[] restarts = new int[countOfRestarts(order.length)];
+        byte[] previous = new byte[0];
+        long offset = 0;
+        for (int i = 0; i < order.length; i++) {
+            byte[] name = order[i] == CompactFileTree.ROOT
+                    ? previous
+                    : tree.getName(order[i]).getBytes(StandardCharsets.UTF_8);
+            int sharedLength = 0;
+            if (i % RESTART_INTERVAL == 0) {
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("The names take more than " + Integer.MAX_VALUE + " bytes.");
+                }
+                restarts[i / RESTART_INTERVAL] = (int) offset;
+            } else {
+                sharedLength = Arrays.mismatch(previous, name);
+                if (sharedLength < 0) {
+                    sharedLength = name.length;
+                }
+            }
+            int suffixLength = name.length - sharedLength;
+            writeVarint(output, sharedLength);
+            writeVarint(output, suffixLength);
+            output.write(name, sharedLength, suffixLength);
+            offset += varintLength(sharedLength) + varintLength(suffixLength) + suffixLength;
+            previous = name;
+        }
+        return restarts;
+    }
+
+    private static void writeVarint(@NotNull DataOutputStream output, int value) throws IOException {
+        while (value >= 0x80) {
+            output.writeByte(0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int headerLength(int rootPathLength) {
+        // the columns of the sizes are aligned to 8 bytes
+        int length = 4 * Integer.BYTES + rootPathLength;
+        return (length + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static int countOfRestarts(int countOfEntries) {
+        return (countOfEntries + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+    }
+
+    private record NamedEntry(@NotNull String name, int entry) {
+    }
+}
@@ -0,0 +1,129 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only storage of file names encoded in UTF-8, each prefixed with its length.
+ * <p/>
+ * The names are written to fixed-size chunks, on the heap or in direct (off-heap) buffers,
+ * and a name never crosses a chunk, so it is addressed by a single <code>int</code>:
+ * the index of the chunk in the high bits and the position in the chunk in the low ones.
+ * This limits the arena to 2 GiB of names.
+ * <p/>
+ * The names are kept in the order they are added, and {@link #next(int)} steps from a name to the following one,
+ * so the owner may keep the addresses of only some of them.
+ */
+final class NameArena {
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (Integer.SIZE - 1 - CHUNK_BITS);
+
+    private final boolean offHeap;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer currentChunk;
+
+    NameArena(boolean offHeap) {
+        this.offHeap = offHeap;
+        currentChunk = allocateChunk();
+    }
+
+    /**
+     * Stores the name and returns its address.
+     */
+    int add(@NotNull String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int encodedLength = lengthOfLength(bytes.length) + bytes.length;
+        if (encodedLength > CHUNK_SIZE) {
+            throw new IllegalArgumentException("The name is too long: " + name);
+        }
+        if (currentChunk.remaining() < encodedLength) {
+            currentChunk = allocateChunk();
+        }
+        int address = ((chunks.size() - 1) << CHUNK_BITS) | currentChunk.position();
+        writeLength(bytes.length);
+        currentChunk.put(bytes);
+        return address;
+    }
+
+    @NotNull
+    String get(int address) {
+        ByteBuffer chunk = chunks.get(address >>> CHUNK_BITS);
+        int position = address & (CHUNK_SIZE - 1);
+        int length = readLength(chunk, position);
+        byte[] bytes = new byte[length];
+        chunk.get(position + lengthOfLength(length), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the address of the name added after the one at the address, which must have been added.
+     */
+    int next(int address) {
+        int chunkIndex = address >>> CHUNK_BITS;
+        ByteBuffer chunk = chunks.get(chunkIndex);
+        int position = address & (CHUNK_SIZE - 1);
+        int length = readLength(chunk, position);
+        position += lengthOfLength(length) + length;
+        // the limit of a filled chunk is the end of its last name
+        return position < chunk.limit() ? (chunkIndex << CHUNK_BITS) | position : (chunkIndex + 1) << CHUNK_BITS;
+    }
+
+    /**
+     * Returns the number of bytes taken on the heap: the chunks, unless they are off-heap.
+     */
+    long heapFootprint() {
+        return offHeap ? 0 : (long) chunks.size() * CHUNK_SIZE;
+    }
+
+    long offHeapFootprint() {
+        return offHeap ? (long) chunks.size() * CHUNK_SIZE : 0;
+    }
+
+    /**
+     * Returns the number of bytes actually taken by the names.
+     */
+    long usedBytes() {
+        return (long) (chunks.size() - 1) * CHUNK_SIZE + currentChunk.position();
+    }
+
+    private static int lengthOfLength(int length) {
+        // names of file systems are usually up to 255 bytes, so the most of them take a single byte
+        return length < 0x80 ? 1 : 3;
+    }
+
+    private static int readLength(@NotNull ByteBuffer chunk, int position) {
+        int length = chunk.get(position);
+        if (length >= 0) {
+            return length;
+        }
+        return (length & 0x7F) | ((chunk.get(position + 1) & 0xFF) << 7) | ((chunk.get(position + 2) & 0xFF) << 15);
+    }
+
+    private void writeLength(int length) {
+        if (length < 0x80) {
+            currentChunk.put((byte) length);
+        } else {
+            currentChunk.put((byte) (0x80 | (length & 0x7F)));
+            currentChunk.put((byte) (length >>> 7));
+            currentChunk.put((byte) (length >>> 15));
+        }
+    }
+
+    @NotNull
+    private ByteBuffer allocateChunk() {
+        if (chunks.size() == MAX_CHUNKS) {
+            throw new IllegalStateException("The names take more than " + ((long) MAX_CHUNKS * CHUNK_SIZE) + " bytes.");
+        }
+        if (currentChunk != null) {
+            currentChunk.limit(currentChunk.position());
+        }
+        ByteBuffer chunk = offHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+        chunks.add(chunk);
+        return chunk;
+    }
+}
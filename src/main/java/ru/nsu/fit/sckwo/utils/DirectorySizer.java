@@ -0,0 +1,40 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+/**
+ * Backend sizing whole directory trees, which are too deep to be visited, bypassing <code>java.nio.file</code>.
+ * The sizes are calculated the same way as in <code>FileSizeCacheCalculator</code>:
+ * symlinks are not followed and add nothing, files that cannot be read add nothing,
+ * and every directory that cannot be listed adds -1.
+ */
+public interface DirectorySizer {
+
+    /**
+     * Returns whether the directory can be sized by this backend.
+     * The directories of other file systems (e.g. in-memory ones) are sized with <code>java.nio.file</code>.
+     */
+    boolean supports(@NotNull Path directory);
+
+    /**
+     * Returns the total size of the files in the directory tree, or -1 if the directory cannot be listed.
+     */
+    long sizeOfTree(@NotNull Path directory);
+
+    /**
+     * Returns the backend calling <code>openat</code>, <code>getdents64</code> and <code>fstatat</code> directly,
+     * or null if it is unavailable: on other systems and architectures,
+     * or when the JVM is started without <code>--enable-preview</code>.
+     */
+    @Nullable
+    static DirectorySizer linux() {
+        try {
+            return LinuxDirectorySizer.create();
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -1,91 +1,786 @@
 package ru.nsu.fit.sckwo.utils;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import lombok.With;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nsu.fit.sckwo.metrics.AttributeReadEvent;
+import ru.nsu.fit.sckwo.metrics.CacheLoadEvent;
+import ru.nsu.fit.sckwo.metrics.DirectoryListingEvent;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class FileSizeCacheCalculator {
-    private final LoadingCache<Path, Long> cache;
+/**
+ * Calculates and caches the sizes of files and directories. If the calculator sizes directories on many threads,
+ * it owns a pool of them, which is shut down by {@link #close()}.
+ */
+public class FileSizeCacheCalculator implements AutoCloseable {
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    /**
+     * The depth limit of a calculator keeping no sizes of nested files, since they are cached down to the depth limit + 1.
+     */
+    public static final int NO_NESTED_SIZES_DEPTH = -2;
+    // the normal quantile of the 95% confidence level of the estimated sizes
+    private static final double CONFIDENCE_Z = 1.96;
+    // the number of the children of a directory forked at once by the task runner
+    private static final int CONCURRENT_BATCH_SIZE = 1024;
+    private final SizeCache cache;
+    // the sizes of the directories reached through symlinks by their file keys, kept for the whole walk
+    private final Map<Object, Long> symlinkTargetSizes = new ConcurrentHashMap<>();
+    // the variances of the estimated sizes in the cache, absent for the sizes calculated exactly
+    private final Map<Path, Double> sizeVariances = new ConcurrentHashMap<>();
     private final int depthLimit;
-    private int startDepth;
+    @Nullable
+    private final ForkJoinPool pool;
+    @Nullable
+    private final StructuredTaskRunner taskRunner;
+    @Nullable
+    private final DirectorySizer directorySizer;
+    @Nullable
+    private final ScanSnapshot snapshot;
+    private final ScanMetrics metrics;
+    private final PathFilter filter;
+    private final MountBoundary boundary;
+    @Nullable
+    private final IoDeadline deadline;
+    private final int sampleSize;
 
     public FileSizeCacheCalculator(int depthLimit) {
-        this.depthLimit = depthLimit;
-        cache = CacheBuilder.newBuilder()
-                .maximumSize(1_000_000_000L)
-                .expireAfterWrite(100, TimeUnit.MINUTES)
-                .build(new CacheLoader<>() {
-                    @Override
-                    @NotNull
-                    public Long load(@NotNull Path absolutePath) {
-                        return sizeOf(absolutePath);
-                    }
-                });
+        this(new Settings(depthLimit));
+    }
+
+    public FileSizeCacheCalculator(@NotNull Settings settings) {
+        depthLimit = settings.depthLimit();
+        cache = new SizeCache(settings.cacheBytes(), depthLimit);
+        metrics = settings.metrics();
+        metrics.setCacheCounters(cache);
+        filter = settings.filter();
+        boundary = settings.boundary();
+        deadline = settings.deadline();
+        // the variance of the sizes is estimated from at least two subdirectories
+        sampleSize = settings.sampleSize() > 0 ? Math.max(settings.sampleSize(), 2) : 0;
+        taskRunner = settings.taskRunner();
+        directorySizer = settings.snapshot() == null ? settings.directorySizer() : null;
+        snapshot = settings.snapshot();
+        pool = settings.threads() > 1 && taskRunner == null ? new ForkJoinPool(settings.threads()) : null;
+    }
+
+    /**
+     * Returns the size of the file, which is located at the given depth of the walked tree.
+     * The depth is used to decide whether the sizes of the nested files are worth caching:
+     * only files that can still be visited (or sorted) by the tree walker are kept in the cache.
+     * Symlinks are followed, so the size of a symlink is the size of its target.
+     */
+    @NotNull
+    public Long size(@NotNull Path absoluteFilePath, int depth) {
+        long cachedSize = cache.get(absoluteFilePath);
+        if (cachedSize != SizeCache.ABSENT) {
+            return cachedSize;
+        }
+        BasicFileAttributes attributes = readAttributesWithin(absoluteFilePath);
+        if (attributes == null) {
+            return 0L;
+        }
+        return size(absoluteFilePath, attributes, depth);
+    }
+
+    /**
+     * Returns the size of the file with the already read attributes, so the file itself is not read again.
+     */
+    @NotNull
+    public Long size(@NotNull Path absoluteFilePath, @NotNull BasicFileAttributes attributes, int depth) {
+        return cachedSize(absoluteFilePath, attributes, depth, true);
+    }
+
+    /**
+     * @param requested whether the size is requested from outside rather than for a parent directory being loaded,
+     *                  so the time of its load is not counted twice in the metrics
+     */
+    @NotNull
+    private Long cachedSize(@NotNull Path absoluteFilePath, @NotNull BasicFileAttributes attributes, int depth,
+                            boolean requested) {
+        // the size is not loaded by the cache itself: the cache holds a monitor while loading,
+        // and a loader waiting for its virtual threads would pin the carrier thread
+        long cachedSize = cache.get(absoluteFilePath);
+        if (cachedSize != SizeCache.ABSENT) {
+            return cachedSize;
+        }
+        CacheLoadEvent event = ScanMetrics.isRecording() ? new CacheLoadEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean timed = requested && metrics.isCounting();
+        long start = timed ? System.nanoTime() : 0;
+        long size = sizeOf(absoluteFilePath, attributes, depth);
+        if (timed) {
+            metrics.cacheLoaded(System.nanoTime() - start);
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = absoluteFilePath.toString();
+                event.depth = depth;
+                event.size = size;
+                event.commit();
+            }
+        }
+        cache.put(absoluteFilePath, size, depth);
+        return size;
     }
 
+    /**
+     * Returns the size of the target of the symlink, like {@link #size(Path, int)} does.
+     * A directory reached through many symlinks is sized once: its size is remembered by its file key
+     * (the device and the inode of the target), since the cache is keyed by the paths through the symlinks.
+     */
+    public long sizeOfSymlinkTarget(@NotNull Path absoluteSymlinkPath, int depth) {
+        long cachedSize = cache.get(absoluteSymlinkPath);
+        if (cachedSize != SizeCache.ABSENT) {
+            return cachedSize;
+        }
+        BasicFileAttributes targetAttributes = readAttributesWithin(absoluteSymlinkPath);
+        if (targetAttributes == null || targetAttributes.isDirectory() && boundary.stopsAtTarget(absoluteSymlinkPath)) {
+            return 0L;
+        }
+        Object targetKey = targetAttributes.isDirectory() ? targetAttributes.fileKey() : null;
+        if (targetKey == null) {
+            return size(absoluteSymlinkPath, targetAttributes, depth);
+        }
+        Long targetSize = symlinkTargetSizes.get(targetKey);
+        if (targetSize == null) {
+            // not computeIfAbsent: sizing a directory takes long and must not lock a part of the map
+            targetSize = size(absoluteSymlinkPath, targetAttributes, depth);
+            symlinkTargetSizes.putIfAbsent(targetKey, targetSize);
+        }
+        return targetSize;
+    }
+
+    /**
+     * Returns the margin of error of the size of the file at the 95% confidence level, in bytes,
+     * or -1 if the size has been calculated exactly. The margin is kept as long as the size is cached.
+     */
+    public long sizeMargin(@NotNull Path absoluteFilePath) {
+        Double variance = sizeVariances.get(absoluteFilePath);
+        return variance == null ? -1 : Math.round(CONFIDENCE_Z * Math.sqrt(variance));
+    }
+
+    /**
+     * Keeps the size of the file calculated elsewhere, e.g. by another walk, so the file is not sized again
+     * while it is inside a directory being sized.
+     */
+    public void putCacheEntry(@NotNull Path absoluteFilePath, long size, int depth) {
+        cache.put(absoluteFilePath, size, depth);
+    }
+
+    /**
+     * Runs the tasks concurrently on the threads sizing the directories (the virtual threads of the task runner
+     * or the workers of the pool) and returns their results in the order of the tasks.
+     * If the calculator sizes the directories on the calling thread, each task runs in a virtual thread of its own.
+     */
     @NotNull
-    public Long size(@NotNull Path absoluteFilePath) {
+    public <T> List<T> invokeAll(@NotNull List<? extends Callable<T>> tasks) throws IOException {
+        if (taskRunner != null) {
+            return taskRunner.forkAll(tasks);
+        }
         try {
-            return cache.get(absoluteFilePath);
-        } catch (ExecutionException e) {
-            return -1L;
+            if (pool != null) {
+                return resultsOf(pool.invokeAll(tasks));
+            }
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                return resultsOf(executor.invokeAll(tasks));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tasks.");
+        }
+    }
+
+    @NotNull
+    private static <T> List<T> resultsOf(@NotNull List<Future<T>> futures) throws IOException, InterruptedException {
+        List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+            }
         }
+        return results;
     }
 
     public void removeCacheEntry(@NotNull Path absoluteFilePathToRemove) {
-        cache.invalidate(absoluteFilePathToRemove);
+        cache.remove(absoluteFilePathToRemove);
+        if (!sizeVariances.isEmpty()) {
+            sizeVariances.remove(absoluteFilePathToRemove);
+        }
+    }
+
+    /**
+     * Shuts down the threads sizing the directories, if the calculator has its own ones.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
     }
 
-    public void setStartDepth(int startDepth) {
-        this.startDepth = startDepth;
+    private boolean isCacheable(int depth) {
+        // the sizes of the children of the deepest visited directories are still needed to sort them
+        return depth <= depthLimit + 1;
     }
 
+    private <T> T io(@NotNull IoCall<T> call) throws IOException {
+        if (taskRunner == null) {
+            return call.call();
+        }
+        return taskRunner.io(call);
+    }
 
-    private long sizeOf(@NotNull Path filePath) {
+    private long sizeOf(@NotNull Path filePath, @NotNull BasicFileAttributes attributes, int depth) {
         Objects.requireNonNull(filePath, "path");
-        if (Files.isDirectory(filePath)) {
-            return sizeOfDirectory(filePath);
-        } else {
+        if (!attributes.isDirectory()) {
+            return attributes.size();
+        }
+        if (sampleSize > 0) {
+            Estimate estimate = estimateOfDirectory(filePath, depth);
+            if (estimate.sampled) {
+                sizeVariances.put(filePath, estimate.variance);
+            }
+            return estimate.size;
+        }
+        // the backend does not know the boundary, so it sizes only the trees without mount points to skip
+        if (directorySizer != null && !isCacheable(depth + 1) && directorySizer.supports(filePath)
+                && !boundary.hasMountsBelow(filePath)) {
+            return directorySizer.sizeOfTree(filePath);
+        }
+        if (pool == null) {
+            return sizeOfDirectory(filePath, attributes, depth);
+        }
+        return pool.invoke(new DirectorySizeTask(filePath, attributes, depth));
+    }
+
+    private long sizeOfDirectory(@NotNull Path directory, @NotNull BasicFileAttributes attributes, int depth) {
+        if (snapshot != null) {
+            return sizeOfDirectoryIncrementally(directory, attributes, depth);
+        }
+        // the time of listing the directory and reading its entries, without sizing the subdirectories
+        AtomicLong readingTime = new AtomicLong();
+        if (taskRunner != null && deadline == null) {
+            return sizeOfChildrenConcurrently(directory, depth + 1, readingTime);
+        }
+        DirectoryContents contents = listContents(directory, readingTime);
+        if (contents == null) {
+            return -1L;
+        }
+        metrics.directoryRead(directory, contents.countOfEntries, readingTime.get());
+        return sizeOfContents(contents, depth + 1);
+    }
+
+    /**
+     * Estimates the size of the directory. The files are summed up, and so are the subdirectories
+     * if there are at most <code>sampleSize</code> of them. Otherwise <code>sampleSize</code> of the subdirectories,
+     * chosen at random, are estimated, and their total is extrapolated to all of them.
+     * <p/>
+     * The variance of the extrapolated total is the one of two-stage sampling: the variance of sampling
+     * the subdirectories, reduced by the finite population correction, plus the variances of the estimates
+     * of the sampled subdirectories themselves, scaled up like their sizes.
+     */
+    @NotNull
+    private Estimate estimateOfDirectory(@NotNull Path directory, int depth) {
+        AtomicLong readingTime = new AtomicLong();
+        DirectoryContents contents = listContents(directory, readingTime);
+        if (contents == null) {
+            return new Estimate(-1L, 0, false);
+        }
+        metrics.directoryRead(directory, contents.countOfEntries, readingTime.get());
+        long filesSize = contents.filesSize;
+        List<Map.Entry<Path, BasicFileAttributes>> subdirectories = new ArrayList<>(contents.subdirectories.entrySet());
+        int count = subdirectories.size();
+        int sampledCount = Math.min(count, sampleSize);
+        int[] sample = sampleOf(directory, count, sampledCount);
+        long[] sampledSizes = new long[sampledCount];
+        long sampledTotal = 0;
+        double sampledVariances = 0;
+        boolean sampled = sampledCount < count;
+        for (int i = 0; i < sampledCount; i++) {
+            Map.Entry<Path, BasicFileAttributes> sampledSubdirectory = subdirectories.get(sample[i]);
+            Estimate subdirectory = estimateOfSubdirectory(sampledSubdirectory.getKey(), sampledSubdirectory.getValue(),
+                    depth + 1);
+            // a subdirectory that cannot be read adds nothing
+            sampledSizes[i] = Math.max(subdirectory.size, 0);
+            sampledTotal += sampledSizes[i];
+            sampledVariances += subdirectory.variance;
+            sampled |= subdirectory.sampled;
+        }
+        if (sampledCount == count) {
+            return new Estimate(filesSize + sampledTotal, sampledVariances, sampled);
+        }
+        double mean = (double) sampledTotal / sampledCount;
+        double squaredDeviations = 0;
+        for (long size : sampledSizes) {
+            squaredDeviations += (size - mean) * (size - mean);
+        }
+        double sampleVariance = squaredDeviations / (sampledCount - 1);
+        double scale = (double) count / sampledCount;
+        double variance = (double) count * count * (1 - 1 / scale) * sampleVariance / sampledCount
+                + scale * sampledVariances;
+        return new Estimate(filesSize + Math.round(count * mean), variance, true);
+    }
+
+    @NotNull
+    private Estimate estimateOfSubdirectory(@NotNull Path subdirectory, @NotNull BasicFileAttributes attributes,
+                                            int depth) {
+        long cachedSize = cache.get(subdirectory);
+        if (cachedSize != SizeCache.ABSENT) {
+            Double variance = sizeVariances.get(subdirectory);
+            return new Estimate(cachedSize, variance == null ? 0 : variance, variance != null);
+        }
+        // the native backend is only used for exact sizes, so it is not asked here
+        Estimate estimate = estimateOfDirectory(subdirectory, depth);
+        if (isCacheable(depth)) {
+            cache.put(subdirectory, estimate.size, depth);
+            if (estimate.sampled) {
+                sizeVariances.put(subdirectory, estimate.variance);
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns <code>sampledCount</code> distinct indices of the <code>count</code> subdirectories in its first elements.
+     * The random choice is seeded by the path of the directory, so the estimate is the same for the same tree.
+     */
+    @NotNull
+    private static int[] sampleOf(@NotNull Path directory, int count, int sampledCount) {
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = i;
+        }
+        if (sampledCount == count) {
+            return indices;
+        }
+        // a partial Fisher-Yates shuffle
+        SplittableRandom random = new SplittableRandom(directory.toString().hashCode());
+        for (int i = 0; i < sampledCount; i++) {
+            int chosen = i + random.nextInt(count - i);
+            int index = indices[chosen];
+            indices[chosen] = indices[i];
+            indices[i] = index;
+        }
+        return indices;
+    }
+
+    private long sizeOfSubtasks(@NotNull List<DirectorySizeTask> subtasks) {
+        long size = 0;
+        if (!subtasks.isEmpty()) {
+            for (DirectorySizeTask subtask : ForkJoinTask.invokeAll(subtasks)) {
+                long subtaskSize = subtask.join();
+                if (isCacheable(subtask.depth)) {
+                    cache.put(subtask.directory, subtaskSize, subtask.depth);
+                }
+                size += subtaskSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Sizes the directory, taking its files size and the list of its subdirectories from the snapshot
+     * if the directory has not changed since the previous run. The subdirectories are always checked,
+     * since a change deep in the tree does not change the metadata of the directories above it.
+     */
+    private long sizeOfDirectoryIncrementally(@NotNull Path directory, @NotNull BasicFileAttributes attributes, int depth) {
+        AtomicLong readingTime = new AtomicLong();
+        DirectoryContents contents;
+        try {
+            contents = IoDeadline.within(deadline, directory,
+                    () -> readUnchangedContents(directory, attributes, readingTime));
+        } catch (IOException e) {
+            metrics.error();
+            return -1L;
+        }
+        if (contents == null) {
+            contents = listContents(directory, readingTime);
+            if (contents == null) {
+                return -1L;
+            }
+        }
+        metrics.directoryRead(directory, contents.countOfEntries, readingTime.get());
+        List<String> subdirectoryNames = new ArrayList<>(contents.subdirectories.size());
+        for (Path subdirectory : contents.subdirectories.keySet()) {
+            subdirectoryNames.add(subdirectory.getFileName().toString());
+        }
+        snapshot.record(directory, attributes, contents.filesSize, subdirectoryNames);
+        return sizeOfContents(contents, depth + 1);
+    }
+
+    /**
+     * Returns the size of the files of the directory plus the sizes of its subdirectories,
+     * which are sized on the threads of the calculator, or -1 if the subdirectories cannot be sized.
+     */
+    private long sizeOfContents(@NotNull DirectoryContents contents, int childDepth) {
+        long size = contents.filesSize;
+        List<DirectorySizeTask> subtasks = new ArrayList<>();
+        List<Callable<Long>> childTasks = new ArrayList<>();
+        for (Map.Entry<Path, BasicFileAttributes> subdirectory : contents.subdirectories.entrySet()) {
+            Path subdirectoryPath = subdirectory.getKey();
+            BasicFileAttributes subdirectoryAttributes = subdirectory.getValue();
+            long cachedSize = cache.get(subdirectoryPath);
+            if (cachedSize != SizeCache.ABSENT) {
+                size += cachedSize;
+            } else if (pool != null) {
+                subtasks.add(new DirectorySizeTask(subdirectoryPath, subdirectoryAttributes, childDepth));
+            } else if (taskRunner != null) {
+                childTasks.add(() -> sizeOfUncachedChild(subdirectoryPath, subdirectoryAttributes, childDepth));
+            } else {
+                size += sizeOfUncachedChild(subdirectoryPath, subdirectoryAttributes, childDepth);
+            }
+        }
+        if (!childTasks.isEmpty()) {
             try {
-                return Files.size(filePath);
-            } catch (IOException ignored) {
+                size += sizeOfChildTasks(childTasks);
+            } catch (IOException e) {
+                return -1L;
             }
         }
-        return 0;
+        return size + sizeOfSubtasks(subtasks);
     }
 
+    /**
+     * Returns the contents of the directory recorded in the snapshot, or null if the directory
+     * or any of its recorded subdirectories has changed.
+     */
+    @Nullable
+    private DirectoryContents readUnchangedContents(@NotNull Path directory, @NotNull BasicFileAttributes attributes,
+                                                    @NotNull AtomicLong readingTime) throws IOException {
+        ScanSnapshot.DirectoryRecord record = snapshot.findUnchanged(directory, attributes);
+        if (record == null) {
+            return null;
+        }
+        DirectoryContents contents = new DirectoryContents();
+        for (String subdirectoryName : record.subdirectoryNames()) {
+            IoDeadline.checkAbandoned();
+            Path subdirectory = directory.resolve(subdirectoryName);
+            BasicFileAttributes subdirectoryAttributes = readChildAttributes(subdirectory, readingTime);
+            if (subdirectoryAttributes == null || !subdirectoryAttributes.isDirectory()) {
+                return null;
+            }
+            contents.subdirectories.put(subdirectory, subdirectoryAttributes);
+        }
+        contents.filesSize = record.filesSize();
+        contents.countOfEntries = contents.subdirectories.size();
+        return contents;
+    }
 
-    private long sizeOfDirectory(@NotNull Path directory) {
-        try (Stream<Path> childrenFilesStream = Files.list(directory)) {
-            startDepth++;
-            List<Path> childrenFilesPaths = childrenFilesStream.toList();
-            long size = 0;
-            for (Path childPath : childrenFilesPaths) {
-                try {
-                    if (!Files.isSymbolicLink(childPath)) {
-                        if (startDepth <= depthLimit) {
-                            size += cache.get(childPath.toAbsolutePath());
-                        } else {
-                            size += sizeOf(childPath);
-                        }
+    /**
+     * Lists the directory and reads its entries as they are listed: the sizes of the files are summed up,
+     * and only the subdirectories are kept, so a huge flat directory is not held in memory.
+     * Returns null if the directory cannot be listed. Within a deadline, the whole directory is read within it,
+     * so nothing is left to read after the deadline.
+     */
+    @Nullable
+    private DirectoryContents listContents(@NotNull Path directory, @NotNull AtomicLong readingTime) {
+        try {
+            return IoDeadline.within(deadline, directory, () -> {
+                DirectoryContents contents = new DirectoryContents();
+                contents.countOfEntries = forEachChild(directory, readingTime, childPath -> {
+                    if (deadline != null) {
+                        IoDeadline.checkAbandoned();
+                    }
+                    BasicFileAttributes attributes = readChildAttributes(childPath, readingTime);
+                    if (attributes == null || attributes.isSymbolicLink() || isSkipped(childPath, attributes)) {
+                        return;
                     }
-                } catch (ExecutionException ignored) {
+                    if (attributes.isDirectory()) {
+                        contents.subdirectories.put(childPath.toAbsolutePath(), attributes);
+                    } else {
+                        contents.filesSize += attributes.size();
+                    }
+                });
+                return contents;
+            });
+        } catch (IOException e) {
+            metrics.error();
+            return null;
+        }
+    }
+
+    /**
+     * Sizes the children of the directory in the virtual threads of the task runner while it is listed.
+     * The children are forked in batches, so a huge directory does not hold all of its entries at once.
+     */
+    private long sizeOfChildrenConcurrently(@NotNull Path directory, int childDepth, @NotNull AtomicLong readingTime) {
+        List<Callable<Long>> childTasks = new ArrayList<>(CONCURRENT_BATCH_SIZE);
+        long[] size = new long[1];
+        int countOfEntries;
+        try {
+            countOfEntries = forEachChild(directory, readingTime, childPath -> {
+                childTasks.add(() -> sizeOfChild(childPath, childDepth, readingTime));
+                if (childTasks.size() == CONCURRENT_BATCH_SIZE) {
+                    size[0] += sizeOfChildTasks(childTasks);
+                    childTasks.clear();
                 }
-            }
-            startDepth--;
-            return size;
-        } catch (IOException ignored) {
+            });
+            size[0] += sizeOfChildTasks(childTasks);
+        } catch (IOException e) {
+            metrics.error();
             return -1L;
         }
+        metrics.directoryRead(directory, countOfEntries, readingTime.get());
+        return size[0];
+    }
+
+    private long sizeOfChildTasks(@NotNull List<Callable<Long>> childTasks) throws IOException {
+        long size = 0;
+        for (long childSize : taskRunner.forkAll(childTasks)) {
+            size += childSize;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the amount the child adds to the size of its directory:
+     * symlinks, skipped files and files that cannot be read add nothing.
+     */
+    private long sizeOfChild(@NotNull Path childPath, int childDepth, @NotNull AtomicLong readingTime) {
+        BasicFileAttributes attributes = readChildAttributes(childPath, readingTime);
+        if (attributes == null || attributes.isSymbolicLink() || isSkipped(childPath, attributes)) {
+            return 0;
+        }
+        if (!attributes.isDirectory()) {
+            return attributes.size();
+        }
+        Path absoluteChildPath = childPath.toAbsolutePath();
+        long cachedSize = cache.get(absoluteChildPath);
+        if (cachedSize != SizeCache.ABSENT) {
+            return cachedSize;
+        }
+        return sizeOfUncachedChild(absoluteChildPath, attributes, childDepth);
+    }
+
+    private long sizeOfUncachedChild(@NotNull Path absoluteChildPath, @NotNull BasicFileAttributes attributes, int childDepth) {
+        if (isCacheable(childDepth)) {
+            return cachedSize(absoluteChildPath, attributes, childDepth, false);
+        }
+        return sizeOf(absoluteChildPath, attributes, childDepth);
+    }
+
+    /**
+     * Lists the directory, passing every entry to the consumer as soon as it is listed,
+     * and returns the number of the entries. The time spent in the consumer is not a part of the listing.
+     */
+    private int forEachChild(@NotNull Path directory, @NotNull AtomicLong readingTime, @NotNull EntryConsumer consumer)
+            throws IOException {
+        DirectoryListingEvent event = ScanMetrics.isRecording() ? new DirectoryListingEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean timed = metrics.isCounting() || event != null;
+        long start = timed ? System.nanoTime() : 0;
+        long consumingTime = 0;
+        int countOfEntries = 0;
+        try (DirectoryStream<Path> childrenFilesPaths = io(() -> Files.newDirectoryStream(directory))) {
+            for (Path childFilePath : childrenFilesPaths) {
+                countOfEntries++;
+                if (!timed) {
+                    consumer.accept(childFilePath);
+                    continue;
+                }
+                long consumingStart = System.nanoTime();
+                consumer.accept(childFilePath);
+                consumingTime += System.nanoTime() - consumingStart;
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        long listingTime = timed ? System.nanoTime() - start - consumingTime : 0;
+        metrics.directoryListed(countOfEntries, listingTime);
+        readingTime.addAndGet(listingTime);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = directory.toString();
+                event.entries = countOfEntries;
+                event.listingTime = listingTime;
+                event.commit();
+            }
+        }
+        return countOfEntries;
+    }
+
+    /**
+     * Returns whether the child is left out of the size of its directory: it is excluded by the filter,
+     * or it is a directory beyond the boundary.
+     */
+    private boolean isSkipped(@NotNull Path childPath, @NotNull BasicFileAttributes attributes) {
+        Path absolutePath = childPath.toAbsolutePath();
+        return attributes.isDirectory() && boundary.stopsAt(absolutePath) || filter.excludes(absolutePath, attributes);
+    }
+
+    /**
+     * Reads the attributes of the file, following symlinks, within the deadline.
+     */
+    @Nullable
+    private BasicFileAttributes readAttributesWithin(@NotNull Path path) {
+        try {
+            return IoDeadline.within(deadline, path, () -> readAttributes(path, null));
+        } catch (IOException e) {
+            metrics.error();
+            return null;
+        }
+    }
+
+    @Nullable
+    private BasicFileAttributes readChildAttributes(@NotNull Path childPath, @NotNull AtomicLong readingTime) {
+        return readAttributes(childPath, readingTime, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Reads the attributes of the file, or returns null if they cannot be read.
+     *
+     * @param readingTime the time of reading the directory of the file, which the time of the read is added to
+     */
+    @Nullable
+    private BasicFileAttributes readAttributes(@NotNull Path path, @Nullable AtomicLong readingTime,
+                                               @NotNull LinkOption... linkOptions) {
+        AttributeReadEvent event = ScanMetrics.isRecording() ? new AttributeReadEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean timed = metrics.isCounting() || event != null;
+        long start = timed ? System.nanoTime() : 0;
+        BasicFileAttributes attributes;
+        try {
+            attributes = io(() -> Files.readAttributes(path, BasicFileAttributes.class, linkOptions));
+        } catch (IOException e) {
+            attributes = null;
+            metrics.error();
+        }
+        if (timed) {
+            long readTime = System.nanoTime() - start;
+            metrics.attributesRead(readTime);
+            if (readingTime != null) {
+                readingTime.addAndGet(readTime);
+            }
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path.toString();
+                event.failed = attributes == null;
+                event.commit();
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * The entries of a directory with their attributes, if they have been read together with the listing.
+     */
+    /**
+     * The estimated size of a directory with its variance, which is 0 if none of its subtree has been sampled.
+     */
+    private record Estimate(long size, double variance, boolean sampled) {
+    }
+
+    /**
+     * The total size of the files of a directory and its subdirectories with their attributes.
+     */
+    private static final class DirectoryContents {
+        private final Map<Path, BasicFileAttributes> subdirectories = new LinkedHashMap<>();
+        private long filesSize;
+        private int countOfEntries;
+    }
+
+    private interface EntryConsumer {
+        void accept(@NotNull Path childPath) throws IOException;
+    }
+
+    private final class DirectorySizeTask extends RecursiveTask<Long> {
+        private final Path directory;
+        private final BasicFileAttributes attributes;
+        private final int depth;
+
+        private DirectorySizeTask(@NotNull Path directory, @NotNull BasicFileAttributes attributes, int depth) {
+            this.directory = directory;
+            this.attributes = attributes;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Long compute() {
+            return sizeOfDirectory(directory, attributes, depth);
+        }
+    }
+
+    /**
+     * The settings of a calculator sizing the directories down to <code>depthLimit</code> on <code>threads</code> threads.
+     * With a single thread the whole computation runs on the calling thread, otherwise every directory becomes
+     * a separate task of a <code>ForkJoinPool</code>, so idle threads steal the subtrees of busy ones.
+     * If <code>taskRunner</code> is given, the threads are ignored: each child of a directory is sized
+     * in its own virtual thread of the runner instead.
+     * <p/>
+     * The directories, whose nested files are not cached, are passed to <code>directorySizer</code> as a whole,
+     * if it supports them. If <code>snapshot</code> is given, the directories unchanged since the previous run
+     * are not listed, and every sized directory is recorded to the snapshot. The <code>directorySizer</code>
+     * is not used then.
+     * <p/>
+     * The listings, attribute reads and cache loads are counted in <code>metrics</code>, which also reports
+     * the statistics of the cache. The cache of sizes takes at most <code>cacheBytes</code> of the heap.
+     * The files excluded by <code>filter</code> are not counted, and the excluded directories are not listed,
+     * nor are the directories beyond <code>boundary</code>.
+     * <p/>
+     * If <code>deadline</code> is given, every directory is listed and its entries are read within the deadline,
+     * and a directory that is not read in time is sized as one that cannot be read.
+     * <p/>
+     * If <code>sampleSize</code> is positive, the sizes of the directories are estimated: of the directories
+     * with more subdirectories than that, only <code>sampleSize</code> subdirectories chosen at random are sized,
+     * and the rest are assumed to be as large on average (see {@link #sizeMargin(Path)}).
+     * The estimates are calculated on the calling thread, and the <code>threads</code> are not used then.
+     */
+    @With
+    public record Settings(int depthLimit,
+                           int threads,
+                           @Nullable StructuredTaskRunner taskRunner,
+                           @Nullable DirectorySizer directorySizer,
+                           @Nullable ScanSnapshot snapshot,
+                           @NotNull ScanMetrics metrics,
+                           long cacheBytes,
+                           @NotNull PathFilter filter,
+                           @NotNull MountBoundary boundary,
+                           @Nullable IoDeadline deadline,
+                           int sampleSize) {
+
+        public Settings(int depthLimit) {
+            this(depthLimit, 1, null, null, null, ScanMetrics.none(), DEFAULT_CACHE_BYTES,
+                    PathFilter.none(), MountBoundary.none(), null, 0);
+        }
     }
 }
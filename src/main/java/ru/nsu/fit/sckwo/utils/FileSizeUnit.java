@@ -1,6 +1,7 @@
 package ru.nsu.fit.sckwo.utils;
 
-import java.text.DecimalFormat;
+import org.jetbrains.annotations.NotNull;
+
 import java.text.DecimalFormatSymbols;
 import java.util.Locale;
 
@@ -38,20 +39,109 @@ public enum FileSizeUnit {
 
     public abstract String getName();
 
+    private static final FileSizeUnit[] UNITS = FileSizeUnit.values();
+    private static final char NBSP = '\u00A0';
+    private static final int BITS_PER_UNIT = 10;
+    private static final int FRACTION_HUNDREDTHS = 100;
+    private static final char ZERO_DIGIT = DecimalFormatSymbols.getInstance(Locale.getDefault()).getZeroDigit();
+    // the smallest sizes shown in each unit
+    private static final long[] UNIT_THRESHOLDS = unitThresholds();
+
     public static String bytesToHumanReadableFormat(long fileSizeInBytes) {
+        StringBuilder builder = new StringBuilder(16);
+        appendHumanReadableFormat(fileSizeInBytes, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the size in the format of {@link #bytesToHumanReadableFormat(long)} without creating any objects:
+     * the unit is selected by the highest set bit, and the size in the unit is rounded half-even
+     * to two decimals the way <code>DecimalFormat("#,##0.##")</code> rounds it.
+     */
+    public static void appendHumanReadableFormat(long fileSizeInBytes, @NotNull StringBuilder builder) {
         assert fileSizeInBytes >= 0;
-        final String nbsp = "\u00A0";
-        if (fileSizeInBytes < 1024) {
-            return fileSizeInBytes + nbsp + FileSizeUnit.BYTE.getName();
-        }
-        final FileSizeUnit[] UNITS = FileSizeUnit.values();
-        int unitGroup = Math.min(UNITS.length - 1, (int) (Math.log(fileSizeInBytes) / Math.log(1024)));
-        double convertedSize = fileSizeInBytes / Math.pow(1024, unitGroup);
-        FileSizeUnit currentUnit = UNITS[unitGroup];
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.getDefault());
-        symbols.setGroupingSeparator('\u00A0');
-        symbols.setDecimalSeparator('.');
-        DecimalFormat decimalFormat = new DecimalFormat("#,##0.##", symbols);
-        return decimalFormat.format(convertedSize) + nbsp + currentUnit.getName();
+        if (fileSizeInBytes < UNIT_THRESHOLDS[KILOBYTE.ordinal()]) {
+            builder.append(fileSizeInBytes).append(NBSP).append(BYTE.getName());
+            return;
+        }
+        int unitGroup = unitGroupOf(fileSizeInBytes);
+        int shift = unitGroup * BITS_PER_UNIT;
+        // dividing by a power of two is exact, so both parts of the converted size are exact
+        double convertedSize = Math.scalb((double) fileSizeInBytes, -shift);
+        long integerPart = (long) convertedSize;
+        long fraction = (long) Math.scalb(convertedSize - integerPart, shift);
+        long fractionMask = (1L << shift) - 1;
+        long hundredths = fraction * FRACTION_HUNDREDTHS >>> shift;
+        long remainder = fraction * FRACTION_HUNDREDTHS & fractionMask;
+        long half = 1L << (shift - 1);
+        if (remainder > half || remainder == half && (hundredths & 1) == 1) {
+            hundredths++;
+        }
+        if (hundredths == FRACTION_HUNDREDTHS) {
+            integerPart++;
+            hundredths = 0;
+        }
+        appendGrouped(integerPart, builder);
+        if (hundredths != 0) {
+            builder.append('.').append(digit(hundredths / 10));
+            if (hundredths % 10 != 0) {
+                builder.append(digit(hundredths % 10));
+            }
+        }
+        builder.append(NBSP).append(UNITS[unitGroup].getName());
+    }
+
+    private static int unitGroupOf(long fileSizeInBytes) {
+        int unitGroup = Math.min(UNITS.length - 1, (Long.SIZE - 1 - Long.numberOfLeadingZeros(fileSizeInBytes)) / BITS_PER_UNIT);
+        // the thresholds can be a few bytes off the powers of 1024, see unitThresholds()
+        if (unitGroup + 1 < UNITS.length && fileSizeInBytes >= UNIT_THRESHOLDS[unitGroup + 1]) {
+            return unitGroup + 1;
+        }
+        if (fileSizeInBytes < UNIT_THRESHOLDS[unitGroup]) {
+            return unitGroup - 1;
+        }
+        return unitGroup;
+    }
+
+    /**
+     * Finds the smallest size of each unit as the sizes have always been split into units:
+     * by the floating-point logarithm of the size, which moves a few sizes just below 1024<sup>5</sup>
+     * to the next unit. The logarithm is monotonic, so the thresholds are found by binary search.
+     */
+    private static long[] unitThresholds() {
+        long[] thresholds = new long[UNITS.length];
+        for (int unitGroup = 1; unitGroup < UNITS.length; unitGroup++) {
+            long low = 1;
+            long high = 1L << (unitGroup * BITS_PER_UNIT);
+            while (low < high) {
+                long middle = low + (high - low) / 2;
+                if ((int) (Math.log(middle) / Math.log(1024)) >= unitGroup) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            thresholds[unitGroup] = low;
+        }
+        return thresholds;
+    }
+
+    private static void appendGrouped(long number, @NotNull StringBuilder builder) {
+        if (number >= 1000) {
+            appendGrouped(number / 1000, builder);
+            builder.append(NBSP);
+            long group = number % 1000;
+            builder.append(digit(group / 100)).append(digit(group / 10 % 10)).append(digit(group % 10));
+        } else if (number >= 100) {
+            builder.append(digit(number / 100)).append(digit(number / 10 % 10)).append(digit(number % 10));
+        } else if (number >= 10) {
+            builder.append(digit(number / 10)).append(digit(number % 10));
+        } else {
+            builder.append(digit(number));
+        }
+    }
+
+    private static char digit(long value) {
+        return (char) (ZERO_DIGIT + value);
     }
 }
@@ -0,0 +1,9 @@
+package ru.nsu.fit.sckwo.utils;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface IoCall<T> {
+
+    T call() throws IOException;
+}
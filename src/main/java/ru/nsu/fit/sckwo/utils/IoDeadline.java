@@ -0,0 +1,110 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the file system calls for a directory (its listing and the reads of its entries) in a virtual thread
+ * of its own and waits for them at most the timeout, so a hung mount stops only its own directory.
+ * <p/>
+ * A call blocked in the kernel cannot be stopped, so a timed-out call is abandoned: its thread is interrupted,
+ * the calls for the directory check the interrupt between each other, and the thread ends as soon as
+ * the blocked call returns. Since every hung call holds a carrier thread, at most {@link #MAX_HUNG_CALLS}
+ * of them may be hung at once; beyond that, the calls time out without being started.
+ */
+public final class IoDeadline {
+    static final int MAX_HUNG_CALLS = 64;
+    private final long timeoutNanos;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jdu-io-", 0).factory());
+    private final AtomicInteger hungCalls = new AtomicInteger();
+
+    public IoDeadline(long timeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Returns the result of the calls for the directory.
+     *
+     * @throws IoTimeoutException if the calls have not finished within the timeout
+     */
+    public <T> T call(@NotNull Path directory, @NotNull IoCall<T> call) throws IOException {
+        if (hungCalls.get() >= MAX_HUNG_CALLS) {
+            throw new IoTimeoutException(directory + " is not read: " + MAX_HUNG_CALLS + " file system calls are hung.");
+        }
+        AtomicBoolean abandoned = new AtomicBoolean();
+        Future<T> future = executor.submit(() -> {
+            try {
+                return call.call();
+            } finally {
+                if (!abandoned.compareAndSet(false, true)) {
+                    hungCalls.decrementAndGet();
+                }
+            }
+        });
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (abandoned.compareAndSet(false, true)) {
+                hungCalls.incrementAndGet();
+            }
+            future.cancel(true);
+            throw new IoTimeoutException(directory + " is not read within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms.");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + directory + ".");
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the file system calls for the directory within the deadline, if there is one.
+     */
+    public static <T> T within(@Nullable IoDeadline deadline, @NotNull Path directory, @NotNull IoCall<T> calls)
+            throws IOException {
+        if (deadline == null) {
+            return calls.call();
+        }
+        return deadline.call(directory, calls);
+    }
+
+    /**
+     * Throws if the calls for the directory have been abandoned, so they stop before the next file system call.
+     */
+    public static void checkAbandoned() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("The calls for the directory are abandoned.");
+        }
+    }
+
+    @NotNull
+    private static IOException rethrow(@NotNull Throwable cause) {
+        if (cause instanceof IOException e) {
+            return e;
+        }
+        if (cause instanceof UncheckedIOException e) {
+            return e.getCause();
+        }
+        if (cause instanceof RuntimeException e) {
+            throw e;
+        }
+        if (cause instanceof Error e) {
+            throw e;
+        }
+        return new IOException(cause);
+    }
+}
@@ -0,0 +1,14 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the file system calls for a directory have not finished within the deadline of {@link IoDeadline}.
+ */
+public class IoTimeoutException extends IOException {
+    public IoTimeoutException(@NotNull String message) {
+        super(message);
+    }
+}
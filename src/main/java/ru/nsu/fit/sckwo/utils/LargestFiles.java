@@ -0,0 +1,53 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The largest regular files of the walked tree. Only the largest files are kept,
+ * so the memory does not depend on the size of the tree, and they can be offered from any thread.
+ */
+public final class LargestFiles {
+    private final TopElements<FileSize> largest;
+    // the size of the smallest kept file once all are kept, so the smaller files are rejected without the lock
+    private volatile long threshold = -1;
+
+    public LargestFiles(int capacity) {
+        largest = new TopElements<>(capacity, Comparator.comparingLong(FileSize::size));
+    }
+
+    public void offer(@NotNull Path file, long size) {
+        if (size <= threshold) {
+            return;
+        }
+        FileSize smallest = largest.offer(new FileSize(file, size));
+        if (smallest != null) {
+            // the smallest kept size only grows, so a stale threshold rejects fewer files, but never a larger one
+            threshold = smallest.size();
+        }
+    }
+
+    /**
+     * Returns the largest files, the largest first.
+     */
+    @NotNull
+    public List<FileSize> largest() {
+        return largest.sorted();
+    }
+
+    /**
+     * Prints the largest files with their sizes and full paths, one per line.
+     */
+    public void print(@NotNull PrintStream printStream) {
+        for (FileSize file : largest()) {
+            printStream.printf("%12s  %s%n", FileSizeUnit.bytesToHumanReadableFormat(file.size()), file.file());
+        }
+    }
+
+    public record FileSize(@NotNull Path file, long size) {
+    }
+}
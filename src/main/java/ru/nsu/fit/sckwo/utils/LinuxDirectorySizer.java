@@ -0,0 +1,240 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.foreign.ValueLayout.*;
+
+/**
+ * Sizes directory trees with <code>openat</code>, <code>getdents64</code> and <code>fstatat</code> of glibc,
+ * which are called through the foreign function API.
+ * <p/>
+ * Every entry is accessed relative to the descriptor of its directory, and its name is passed
+ * to the system calls straight from the buffer filled by <code>getdents64</code>,
+ * so no <code>Path</code> or <code>String</code> is created per entry.
+ * The type of an entry is taken from <code>d_type</code>: directories and symlinks are never stat'ed,
+ * only the file systems that do not fill <code>d_type</code> need a stat to tell them apart.
+ */
+final class LinuxDirectorySizer implements DirectorySizer {
+    private static final int AT_FDCWD = -100;
+    private static final int AT_SYMLINK_NOFOLLOW = 0x100;
+    private static final int O_RDONLY = 0;
+    private static final int O_CLOEXEC = 02000000;
+    private static final byte DT_UNKNOWN = 0;
+    private static final byte DT_DIR = 4;
+    private static final byte DT_LNK = 10;
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFDIR = 0040000;
+    private static final int S_IFLNK = 0120000;
+    // struct linux_dirent64 { u64 d_ino; s64 d_off; u16 d_reclen; u8 d_type; char d_name[]; }
+    private static final long D_RECLEN_OFFSET = 16;
+    private static final long D_TYPE_OFFSET = 18;
+    private static final long D_NAME_OFFSET = 19;
+    private static final long DIRENT_BUFFER_SIZE = 64 * 1024;
+    // st_size has the same offset on x86_64 and aarch64, sizeof(struct stat) is 144 and 128 respectively
+    private static final long ST_SIZE_OFFSET = 48;
+    private static final long STAT_BUFFER_SIZE = 256;
+
+    private static final Architecture ARCHITECTURE = Architecture.current();
+    private static final MethodHandle OPENAT = downcall("openat",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT),
+            Linker.Option.firstVariadicArg(3));
+    private static final MethodHandle GETDENTS64 = downcall("getdents64",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+    private static final MethodHandle FSTATAT = downcall("fstatat",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle CLOSE = downcall("close",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+
+    private LinuxDirectorySizer() {
+    }
+
+    @Nullable
+    static LinuxDirectorySizer create() {
+        if (!System.getProperty("os.name").equals("Linux") || ARCHITECTURE == null) {
+            return null;
+        }
+        if (OPENAT == null || GETDENTS64 == null || FSTATAT == null || CLOSE == null) {
+            return null;
+        }
+        return new LinuxDirectorySizer();
+    }
+
+    @Override
+    public boolean supports(@NotNull Path directory) {
+        return directory.getFileSystem() == FileSystems.getDefault();
+    }
+
+    @Override
+    public long sizeOfTree(@NotNull Path directory) {
+        try (Arena arena = Arena.ofConfined()) {
+            int fd = openDirectory(AT_FDCWD, arena.allocateUtf8String(directory.toString()));
+            if (fd < 0) {
+                return -1L;
+            }
+            return new TreeScan(arena).sizeOfDirectory(fd, 0);
+        }
+    }
+
+    private static int openDirectory(int directoryFd, @NotNull MemorySegment name) {
+        try {
+            return (int) OPENAT.invokeExact(directoryFd, name, ARCHITECTURE.openDirectoryFlags, 0);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long readEntries(int directoryFd, @NotNull MemorySegment buffer) {
+        try {
+            return (long) GETDENTS64.invokeExact(directoryFd, buffer, buffer.byteSize());
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int stat(int directoryFd, @NotNull MemorySegment name, @NotNull MemorySegment statBuffer) {
+        try {
+            return (int) FSTATAT.invokeExact(directoryFd, name, statBuffer, AT_SYMLINK_NOFOLLOW);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void close(int fd) {
+        try {
+            int ignored = (int) CLOSE.invokeExact(fd);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nullable
+    private static MethodHandle downcall(@NotNull String name, @NotNull FunctionDescriptor descriptor, Linker.Option... options) {
+        Linker linker = Linker.nativeLinker();
+        return linker.defaultLookup().find(name)
+                .map(symbol -> linker.downcallHandle(symbol, descriptor, options))
+                .orElse(null);
+    }
+
+    private enum Architecture {
+        X86_64(0200000, 0400000, 24),
+        AARCH64(040000, 0100000, 16);
+
+        private final int openDirectoryFlags;
+        private final long stModeOffset;
+
+        Architecture(int oDirectory, int oNoFollow, long stModeOffset) {
+            this.openDirectoryFlags = O_RDONLY | oDirectory | oNoFollow | O_CLOEXEC;
+            this.stModeOffset = stModeOffset;
+        }
+
+        @Nullable
+        private static Architecture current() {
+            return switch (System.getProperty("os.arch")) {
+                case "amd64", "x86_64" -> X86_64;
+                case "aarch64" -> AARCH64;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * Native memory of a single traversal: one entries buffer for each level of the open directories,
+     * and a stat buffer shared by all entries.
+     */
+    private static final class TreeScan {
+        private final Arena arena;
+        private final List<MemorySegment> entriesBuffers = new ArrayList<>();
+        private final MemorySegment statBuffer;
+
+        private TreeScan(@NotNull Arena arena) {
+            this.arena = arena;
+            statBuffer = arena.allocate(STAT_BUFFER_SIZE, 8);
+        }
+
+        /**
+         * Returns the size of the directory with the given open descriptor, which is closed afterwards.
+         */
+        private long sizeOfDirectory(int directoryFd, int level) {
+            MemorySegment buffer = entriesBuffer(level);
+            long size = 0;
+            try {
+                long bytesRead;
+                while ((bytesRead = readEntries(directoryFd, buffer)) > 0) {
+                    long offset = 0;
+                    while (offset < bytesRead) {
+                        int recordLength = Short.toUnsignedInt(buffer.get(JAVA_SHORT, offset + D_RECLEN_OFFSET));
+                        byte type = buffer.get(JAVA_BYTE, offset + D_TYPE_OFFSET);
+                        MemorySegment name = buffer.asSlice(offset + D_NAME_OFFSET, recordLength - D_NAME_OFFSET);
+                        if (!isDotOrDotDot(name)) {
+                            size += sizeOfEntry(directoryFd, name, type, level);
+                        }
+                        offset += recordLength;
+                    }
+                }
+                if (bytesRead < 0) {
+                    return -1L;
+                }
+            } finally {
+                close(directoryFd);
+            }
+            return size;
+        }
+
+        private long sizeOfEntry(int directoryFd, @NotNull MemorySegment name, byte type, int level) {
+            if (type == DT_LNK) {
+                return 0;
+            }
+            if (type == DT_DIR) {
+                return sizeOfSubdirectory(directoryFd, name, level);
+            }
+            if (stat(directoryFd, name, statBuffer) != 0) {
+                return 0;
+            }
+            if (type == DT_UNKNOWN) {
+                int fileType = statBuffer.get(JAVA_INT, ARCHITECTURE.stModeOffset) & S_IFMT;
+                if (fileType == S_IFLNK) {
+                    return 0;
+                }
+                if (fileType == S_IFDIR) {
+                    return sizeOfSubdirectory(directoryFd, name, level);
+                }
+            }
+            return statBuffer.get(JAVA_LONG, ST_SIZE_OFFSET);
+        }
+
+        private long sizeOfSubdirectory(int directoryFd, @NotNull MemorySegment name, int level) {
+            int subdirectoryFd = openDirectory(directoryFd, name);
+            if (subdirectoryFd < 0) {
+                return -1L;
+            }
+            return sizeOfDirectory(subdirectoryFd, level + 1);
+        }
+
+        @NotNull
+        private MemorySegment entriesBuffer(int level) {
+            if (level == entriesBuffers.size()) {
+                entriesBuffers.add(arena.allocate(DIRENT_BUFFER_SIZE, 8));
+            }
+            return entriesBuffers.get(level);
+        }
+
+        private static boolean isDotOrDotDot(@NotNull MemorySegment name) {
+            if (name.get(JAVA_BYTE, 0) != '.') {
+                return false;
+            }
+            byte second = name.get(JAVA_BYTE, 1);
+            return second == 0 || (second == '.' && name.get(JAVA_BYTE, 2) == 0);
+        }
+    }
+}
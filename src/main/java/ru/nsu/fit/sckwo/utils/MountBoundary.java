@@ -0,0 +1,296 @@
+package ru.nsu.fit.sckwo.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which mounted file systems the walk does not descend into: the pseudo file systems
+ * of the kernel (<code>/proc</code>, <code>/sys</code>, cgroups, devices), which are never sized,
+ * and, in the one-file-system mode, every file system other than the one of the root.
+ * <p/>
+ * The mount points are read once from <code>/proc/self/mountinfo</code> together with their types
+ * and device numbers, so a directory is recognized as a mount point by its path, without a system call.
+ * Where the mount table is not available, the one-file-system mode compares the <code>FileStore</code>
+ * of every directory with the one of the root instead, and the pseudo file systems are not recognized.
+ */
+@Slf4j
+public final class MountBoundary {
+    static final Set<String> PSEUDO_FILE_SYSTEM_TYPES = Set.of(
+            "proc", "sysfs", "cgroup", "cgroup2", "devtmpfs", "devpts", "mqueue", "debugfs", "tracefs",
+            "securityfs", "pstore", "bpf", "configfs", "fusectl", "binfmt_misc", "autofs", "efivarfs",
+            "hugetlbfs", "rpc_pipefs", "nsfs");
+    private static final Path MOUNT_INFO = Path.of("/proc/self/mountinfo");
+    private static final MountBoundary NONE = new MountBoundary(Map.of(), Map.of(), "/", false, null, null);
+
+    // the mounts by their real mount points
+    private final Map<String, Mount> mounts;
+    // the mounts inside the root by their paths spelled from the root, e.g. /home/user/../mnt/disk for /mnt/disk
+    private final Map<String, Mount> mountsUnderRoot;
+    private final String separator;
+    private final boolean oneFileSystem;
+    @Nullable
+    private final String rootDevice;
+    @Nullable
+    private final FileStore rootStore;
+
+    private MountBoundary(@NotNull Map<String, Mount> mounts, @NotNull Map<String, Mount> mountsUnderRoot,
+                          @NotNull String separator, boolean oneFileSystem,
+                          @Nullable String rootDevice, @Nullable FileStore rootStore) {
+        this.mounts = mounts;
+        this.mountsUnderRoot = mountsUnderRoot;
+        this.separator = separator;
+        this.oneFileSystem = oneFileSystem;
+        this.rootDevice = rootDevice;
+        this.rootStore = rootStore;
+    }
+
+    /**
+     * Returns the boundary which lets the walk descend everywhere.
+     */
+    @NotNull
+    public static MountBoundary none() {
+        return NONE;
+    }
+
+    /**
+     * Returns the boundary of the walk of the given root, with the mounts of this process.
+     *
+     * @param oneFileSystem whether the walk stays on the file system of the root
+     */
+    @NotNull
+    public static MountBoundary of(@NotNull Path root, boolean oneFileSystem) {
+        return of(List.of(root), oneFileSystem);
+    }
+
+    /**
+     * Returns the boundary of the walks of the given roots, with the mounts of this process.
+     *
+     * @param oneFileSystem whether the walks stay on the file system of the first root
+     */
+    @NotNull
+    public static MountBoundary of(@NotNull List<Path> roots, boolean oneFileSystem) {
+        List<String> mountInfo = List.of();
+        if (roots.get(0).getFileSystem() == FileSystems.getDefault() && Files.isReadable(MOUNT_INFO)) {
+            try {
+                mountInfo = Files.readAllLines(MOUNT_INFO);
+            } catch (IOException e) {
+                log.warn("Unable to read the mount table, mount points are not recognized: {}", e.getMessage());
+            }
+        }
+        return of(roots, oneFileSystem, mountInfo);
+    }
+
+    /**
+     * Returns the boundary of the walk of the given root, with the mounts of the lines of
+     * <code>/proc/self/mountinfo</code>:
+     * <pre>
+     * 36 35 98:0 /mnt1 /mnt2 rw,noatime master:1 - ext3 /dev/root rw,errors=continue
+     * </pre>
+     * where the third field is the device number, the fifth is the mount point and the one after the dash is the type.
+     */
+    @NotNull
+    public static MountBoundary of(@NotNull Path root, boolean oneFileSystem, @NotNull List<String> mountInfo) {
+        return of(List.of(root), oneFileSystem, mountInfo);
+    }
+
+    /**
+     * Returns the boundary of the walks of the given roots, with the mounts of the lines of
+     * <code>/proc/self/mountinfo</code>. The mount points inside each of the roots are spelled from that root,
+     * and the one file system is the one of the first root.
+     */
+    @NotNull
+    public static MountBoundary of(@NotNull List<Path> roots, boolean oneFileSystem, @NotNull List<String> mountInfo) {
+        Map<String, Mount> mounts = new HashMap<>();
+        for (String line : mountInfo) {
+            String[] fields = line.split(" ");
+            int separatorField = List.of(fields).indexOf("-");
+            if (fields.length < 5 || separatorField < 0 || separatorField + 1 >= fields.length) {
+                continue;
+            }
+            String type = fields[separatorField + 1];
+            // a later mount over the same mount point hides the earlier one
+            mounts.put(unescape(fields[4]), new Mount(fields[2], type, PSEUDO_FILE_SYSTEM_TYPES.contains(type)));
+        }
+        if (mounts.isEmpty() && !oneFileSystem) {
+            return NONE;
+        }
+        Path firstRoot = roots.get(0);
+        String separator = firstRoot.getFileSystem().getSeparator();
+        Mount rootMount = mountOf(mounts, separator, realPathOf(firstRoot.toAbsolutePath()));
+        // the walked paths are resolved from the root as it is given, so the mount points are spelled the same way
+        Map<String, Mount> mountsUnderRoot = new HashMap<>();
+        for (Path root : roots) {
+            Path absoluteRoot = root.toAbsolutePath();
+            String realPrefix = withSeparator(realPathOf(absoluteRoot).toString(), separator);
+            String rootPrefix = withSeparator(absoluteRoot.toString(), separator);
+            mounts.forEach((mountPoint, mount) -> {
+                if (mountPoint.startsWith(realPrefix)) {
+                    mountsUnderRoot.put(rootPrefix + mountPoint.substring(realPrefix.length()), mount);
+                }
+            });
+        }
+        FileStore rootStore = null;
+        if (mounts.isEmpty()) {
+            try {
+                rootStore = Files.getFileStore(firstRoot.toAbsolutePath());
+            } catch (IOException e) {
+                log.warn("Unable to get the file store of the root, file systems are not compared: {}", e.getMessage());
+            }
+        }
+        return new MountBoundary(Map.copyOf(mounts), Map.copyOf(mountsUnderRoot), separator, oneFileSystem,
+                rootMount == null ? null : rootMount.device, rootStore);
+    }
+
+    @NotNull
+    private static Path realPathOf(@NotNull Path absolutePath) {
+        try {
+            return absolutePath.toRealPath();
+        } catch (IOException e) {
+            return absolutePath.normalize();
+        }
+    }
+
+    /**
+     * Returns whether the walk does not descend into the directory, which is listed in its parent directory
+     * inside the root. Only the mount points are checked, since the other directories are on the file system
+     * of their parent.
+     */
+    public boolean stopsAt(@NotNull Path absoluteDirectory) {
+        if (mounts.isEmpty()) {
+            return rootStore != null && !rootStore.equals(fileStoreOf(absoluteDirectory));
+        }
+        Mount mount = mountsUnderRoot.get(absoluteDirectory.toString());
+        return mount != null && isBeyond(mount);
+    }
+
+    /**
+     * Returns whether the walk does not descend into the directory the symlink points to,
+     * which may be anywhere inside a mounted file system.
+     */
+    public boolean stopsAtTarget(@NotNull Path absoluteSymlinkPath) {
+        if (this == NONE) {
+            return false;
+        }
+        try {
+            return stopsAtAny(absoluteSymlinkPath.toRealPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean stopsAtAny(@NotNull Path absoluteDirectory) {
+        if (mounts.isEmpty()) {
+            return stopsAt(absoluteDirectory);
+        }
+        Mount mount = mountOf(mounts, separator, absoluteDirectory);
+        return mount != null && isBeyond(mount);
+    }
+
+    /**
+     * Returns whether there are mount points to skip inside the directory, which is inside the root.
+     */
+    public boolean hasMountsBelow(@NotNull Path absoluteDirectory) {
+        if (mounts.isEmpty()) {
+            return rootStore != null;
+        }
+        String prefix = withSeparator(absoluteDirectory.toString(), separator);
+        for (Map.Entry<String, Mount> mount : mountsUnderRoot.entrySet()) {
+            if (mount.getKey().startsWith(prefix) && isBeyond(mount.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the type of the file system the directory is on, e.g. <code>nfs4</code>, taken from the mount table,
+     * so a stale mount is not touched, or null if the mount table has not been read.
+     */
+    @Nullable
+    public String fileSystemTypeOf(@NotNull Path absoluteDirectory) {
+        // the directories inside the root are spelled from the root as it is given
+        Mount mount = mountOf(mountsUnderRoot, separator, absoluteDirectory);
+        if (mount == null) {
+            mount = mountOf(mounts, separator, absoluteDirectory);
+        }
+        return mount == null ? null : mount.type;
+    }
+
+    private boolean isBeyond(@NotNull Mount mount) {
+        return mount.pseudo || oneFileSystem && !mount.device.equals(rootDevice);
+    }
+
+    /**
+     * Returns the mount with the longest mount point containing the path.
+     */
+    @Nullable
+    private static Mount mountOf(@NotNull Map<String, Mount> mounts, @NotNull String separator, @NotNull Path absolutePath) {
+        String path = absolutePath.toString();
+        String longestMountPoint = null;
+        for (String mountPoint : mounts.keySet()) {
+            boolean contains = path.equals(mountPoint) || path.startsWith(withSeparator(mountPoint, separator));
+            if (contains && (longestMountPoint == null || mountPoint.length() > longestMountPoint.length())) {
+                longestMountPoint = mountPoint;
+            }
+        }
+        return longestMountPoint == null ? null : mounts.get(longestMountPoint);
+    }
+
+    @NotNull
+    private static String withSeparator(@NotNull String path, @NotNull String separator) {
+        return path.endsWith(separator) ? path : path + separator;
+    }
+
+    @Nullable
+    private static FileStore fileStoreOf(@NotNull Path path) {
+        try {
+            return Files.getFileStore(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the octal escapes of the spaces, tabs, newlines and backslashes of a mount point, e.g. <code>\040</code>.
+     */
+    @NotNull
+    private static String unescape(@NotNull String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder builder = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length() && isOctal(field, i + 1, i + 4)) {
+                builder.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                i += 3;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isOctal(@NotNull String string, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (string.charAt(i) < '0' || string.charAt(i) > '7') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record Mount(@NotNull String device, @NotNull String type, boolean pseudo) {
+    }
+}
@@ -0,0 +1,192 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which files of the walked tree are left out, so the excluded directories are never listed.
+ * <p/>
+ * The rules are the lines of a <code>.gitignore</code> file, compiled once into glob <code>PathMatcher</code>s
+ * of the file system of the root:
+ * <ul>
+ *     <li>a pattern without a slash matches the name of a file at any depth, e.g. <code>node_modules</code></li>
+ *     <li>a pattern with a slash matches the path relative to the root, e.g. <code>build/cache</code>
+ *     or <code>/target</code>, and <code>**&#47;</code> matches any number of directories</li>
+ *     <li>a pattern ending with a slash matches only directories</li>
+ *     <li>a pattern starting with <code>!</code> includes the matched files back</li>
+ *     <li>empty lines and lines starting with <code>#</code> are skipped</li>
+ * </ul>
+ * The last matching rule wins. A file inside an excluded directory cannot be included back,
+ * since the directory is not listed. The paths outside the root (the targets of symlinks)
+ * are matched by the patterns without a slash only.
+ * <p/>
+ * If there are include patterns, only the files (not the directories) matching one of them are kept.
+ */
+public final class PathFilter {
+    private static final PathFilter NONE = new PathFilter(null, List.of(), List.of(), null);
+
+    @Nullable
+    private final Path root;
+    private final List<Rule> rules;
+    private final List<Rule> includes;
+    @Nullable
+    private final ExcludedTotal excludedTotal;
+
+    private PathFilter(@Nullable Path root, @NotNull List<Rule> rules, @NotNull List<Rule> includes,
+                       @Nullable ExcludedTotal excludedTotal) {
+        this.root = root;
+        this.rules = rules;
+        this.includes = includes;
+        this.excludedTotal = excludedTotal;
+    }
+
+    /**
+     * Returns the filter which keeps every file.
+     */
+    @NotNull
+    public static PathFilter none() {
+        return NONE;
+    }
+
+    /**
+     * Compiles the rules for the tree at the given root.
+     *
+     * @param excludes       the lines of the ignore files and the excluded patterns, in the order of their priority
+     * @param includes       the patterns of the files to keep, or an empty list to keep all the files
+     * @param reportExcluded whether the excluded files are counted and sized
+     * @throws IllegalArgumentException if a pattern is not a valid glob
+     */
+    @NotNull
+    public static PathFilter compile(@NotNull Path root, @NotNull List<String> excludes, @NotNull List<String> includes,
+                                     boolean reportExcluded) {
+        Path absoluteRoot = root.toAbsolutePath();
+        return new PathFilter(absoluteRoot,
+                compileRules(absoluteRoot, excludes),
+                compileRules(absoluteRoot, includes),
+                reportExcluded ? new ExcludedTotal() : null);
+    }
+
+    /**
+     * Returns whether the file with the given attributes is left out of the tree.
+     * The excluded file is added to the excluded total, if it is reported.
+     */
+    public boolean excludes(@NotNull Path absolutePath, @NotNull BasicFileAttributes attributes) {
+        if (rules.isEmpty() && includes.isEmpty()) {
+            return false;
+        }
+        Path relativePath = root != null && absolutePath.startsWith(root) ? root.relativize(absolutePath) : null;
+        boolean excluded = false;
+        for (Rule rule : rules) {
+            if (rule.matches(absolutePath, relativePath, attributes.isDirectory())) {
+                excluded = !rule.negated;
+            }
+        }
+        if (!excluded && !includes.isEmpty() && !attributes.isDirectory()) {
+            excluded = true;
+            for (Rule include : includes) {
+                if (include.matches(absolutePath, relativePath, false)) {
+                    excluded = false;
+                    break;
+                }
+            }
+        }
+        if (excluded && excludedTotal != null) {
+            excludedTotal.add(absolutePath, attributes);
+        }
+        return excluded;
+    }
+
+    /**
+     * Returns the total of the excluded files, or null if it is not reported.
+     */
+    @Nullable
+    public ExcludedTotal getExcludedTotal() {
+        return excludedTotal;
+    }
+
+    @NotNull
+    private static List<Rule> compileRules(@NotNull Path root, @NotNull List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (String line : lines) {
+            String pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("**/")) {
+                // **/ also matches no directories at all
+                pattern = "{**/,}" + pattern.substring(3);
+            }
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + pattern);
+            rules.add(new Rule(matcher, anchored, directoryOnly, negated));
+        }
+        return List.copyOf(rules);
+    }
+
+    private record Rule(@NotNull PathMatcher matcher, boolean anchored, boolean directoryOnly, boolean negated) {
+        private boolean matches(@NotNull Path absolutePath, @Nullable Path relativePath, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            if (anchored) {
+                return relativePath != null && matcher.matches(relativePath);
+            }
+            Path name = absolutePath.getFileName();
+            return name != null && matcher.matches(name);
+        }
+    }
+
+    /**
+     * The number and the total size of the excluded files. The size of an excluded directory is calculated
+     * as a whole, so reporting the total gives up the time saved by not listing it.
+     */
+    public static final class ExcludedTotal {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder size = new LongAdder();
+        // the excluded directories are sized without the rules and without keeping their sizes
+        private final FileSizeCacheCalculator calculator = new FileSizeCacheCalculator(FileSizeCacheCalculator.NO_NESTED_SIZES_DEPTH);
+
+        private void add(@NotNull Path absolutePath, @NotNull BasicFileAttributes attributes) {
+            count.increment();
+            if (attributes.isDirectory()) {
+                size.add(Math.max(calculator.size(absolutePath, attributes, 0), 0));
+                calculator.removeCacheEntry(absolutePath);
+            } else if (!attributes.isSymbolicLink()) {
+                size.add(attributes.size());
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSize() {
+            return size.sum();
+        }
+
+        public void print(@NotNull PrintStream output) {
+            output.println("Excluded: " + getCount() + " entries [" + FileSizeUnit.bytesToHumanReadableFormat(getSize()) + "]");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contents of the directories sized by the previous run, persisted between runs.
+ * <p/>
+ * For every directory the snapshot keeps its modification time and file key, the total size
+ * of its direct non-directory entries and the names of its subdirectories. Adding, removing or renaming
+ * an entry changes the modification time of its directory, and replacing a directory changes its file key,
+ * so a directory with the same metadata does not have to be listed again: its files size is reused
+ * and only its subdirectories are checked. Files that change their size in place are not noticed.
+ * <p/>
+ * The records are read from the snapshot of the previous run and written to a new one,
+ * which replaces the old file after the walk, so the snapshot keeps only the directories sized by the last run.
+ */
+public final class ScanSnapshot {
+    private static final int MAGIC = 0x4A445553;
+    private static final int VERSION = 1;
+
+    private final Map<String, DirectoryRecord> previous;
+    private final Map<String, DirectoryRecord> current = new ConcurrentHashMap<>();
+
+    private ScanSnapshot(@NotNull Map<String, DirectoryRecord> previous) {
+        this.previous = previous;
+    }
+
+    @NotNull
+    public static ScanSnapshot empty() {
+        return new ScanSnapshot(Map.of());
+    }
+
+    /**
+     * Reads the snapshot from the file, or returns an empty snapshot if the file does not exist.
+     */
+    @NotNull
+    public static ScanSnapshot load(@NotNull Path snapshotFile) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return empty();
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException(snapshotFile + " is not a jdu snapshot.");
+            }
+            int countOfRecords = input.readInt();
+            Map<String, DirectoryRecord> records = new HashMap<>(countOfRecords * 4 / 3 + 1);
+            for (int i = 0; i < countOfRecords; i++) {
+                String directory = input.readUTF();
+                long modifiedTime = input.readLong();
+                String fileKey = input.readUTF();
+                long filesSize = input.readLong();
+                String[] subdirectoryNames = new String[input.readInt()];
+                for (int j = 0; j < subdirectoryNames.length; j++) {
+                    subdirectoryNames[j] = input.readUTF();
+                }
+                records.put(directory, new DirectoryRecord(modifiedTime, fileKey, filesSize, List.of(subdirectoryNames)));
+            }
+            return new ScanSnapshot(records);
+        }
+    }
+
+    /**
+     * Returns the record of the directory if its metadata has not changed since the previous run.
+     */
+    @Nullable
+    public DirectoryRecord findUnchanged(@NotNull Path directory, @NotNull BasicFileAttributes attributes) {
+        DirectoryRecord record = previous.get(directory.toString());
+        if (record == null
+                || record.modifiedTime != modifiedTime(attributes)
+                || !record.fileKey.equals(fileKey(attributes))) {
+            return null;
+        }
+        return record;
+    }
+
+    public void record(@NotNull Path directory, @NotNull BasicFileAttributes attributes,
+                       long filesSize, @NotNull List<String> subdirectoryNames) {
+        current.put(directory.toString(),
+                new DirectoryRecord(modifiedTime(attributes), fileKey(attributes), filesSize, subdirectoryNames));
+    }
+
+    /**
+     * Writes the directories recorded during this run to the file.
+     */
+    public void save(@NotNull Path snapshotFile) throws IOException {
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(current.size());
+            for (Map.Entry<String, DirectoryRecord> entry : current.entrySet()) {
+                DirectoryRecord record = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeLong(record.modifiedTime);
+                output.writeUTF(record.fileKey);
+                output.writeLong(record.filesSize);
+                output.writeInt(record.subdirectoryNames.size());
+                for (String subdirectoryName : record.subdirectoryNames) {
+                    output.writeUTF(subdirectoryName);
+                }
+            }
+        }
+        Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long modifiedTime(@NotNull BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    @NotNull
+    private static String fileKey(@NotNull BasicFileAttributes attributes) {
+        return Objects.toString(attributes.fileKey());
+    }
+
+    /**
+     * @param filesSize         the total size of the entries of the directory, except subdirectories and symlinks
+     * @param subdirectoryNames the names of the subdirectories, which are sized separately
+     */
+    public record DirectoryRecord(long modifiedTime,
+                                  @NotNull String fileKey,
+                                  long filesSize,
+                                  @NotNull List<String> subdirectoryNames) {
+    }
+}
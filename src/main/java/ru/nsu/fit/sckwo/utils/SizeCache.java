@@ -0,0 +1,305 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
+
+import java.nio.file.Path;
+
+/**
+ * Cache of file sizes in a fixed amount of memory: a set of open-addressing hash tables of primitive arrays
+ * instead of a <code>Path</code>, a boxed <code>Long</code> and a node per entry.
+ * <p/>
+ * A path is kept as a 64-bit fingerprint of its string together with the 32-bit hash code of the string,
+ * so two paths are taken for the same one only if both of their hashes collide (the chance is about 2<sup>-96</sup>
+ * for a pair of paths). The sizes themselves are kept exactly. An entry takes 21 bytes of a table,
+ * and a table grows until the tables take the whole budget.
+ * <p/>
+ * When the budget is used up, an entry is evicted for a new one: the deepest of a few entries after
+ * a clock hand, so the entries deeper than the display depth go first. An entry deeper than the display depth
+ * does not replace a shallower one, it is not kept instead. The tables are locked separately,
+ * so the cache can be used from any thread.
+ */
+public final class SizeCache implements ScanMetrics.CacheCounters {
+    /**
+     * The size returned for a path missing in the cache.
+     */
+    public static final long ABSENT = Long.MIN_VALUE;
+    static final int BYTES_PER_ENTRY = Long.BYTES + Integer.BYTES + Long.BYTES + Byte.BYTES;
+    private static final int SEGMENT_BITS = 4;
+    private static final int MIN_CAPACITY = 16;
+    private static final int INITIAL_CAPACITY = 64;
+    // the number of entries after the clock hand an evicted entry is chosen from
+    private static final int EVICTION_CANDIDATES = 16;
+    private static final long EMPTY = 0;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final int displayDepth;
+
+    /**
+     * @param byteBudget   the number of bytes the tables may take
+     * @param displayDepth the depth of the deepest displayed files: the deeper entries are evicted first
+     */
+    public SizeCache(long byteBudget, int displayDepth) {
+        this.displayDepth = displayDepth;
+        long slots = Math.max(byteBudget / BYTES_PER_ENTRY / segments.length, MIN_CAPACITY);
+        int maxCapacity = (int) Long.highestOneBit(Math.min(slots, 1 << 30));
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(Math.min(INITIAL_CAPACITY, maxCapacity), maxCapacity);
+        }
+    }
+
+    /**
+     * Returns the size of the file at the path, or {@link #ABSENT} if it is not in the cache.
+     */
+    public long get(@NotNull Path path) {
+        String pathString = path.toString();
+        long fingerprint = fingerprint(pathString);
+        return segmentOf(fingerprint).get(fingerprint, pathString.hashCode());
+    }
+
+    /**
+     * Keeps the size of the file at the path, which is at the given depth of the walked tree.
+     */
+    public void put(@NotNull Path path, long size, int depth) {
+        String pathString = path.toString();
+        long fingerprint = fingerprint(pathString);
+        segmentOf(fingerprint).put(fingerprint, pathString.hashCode(), size, (byte) Math.min(depth, Byte.MAX_VALUE));
+    }
+
+    public void remove(@NotNull Path path) {
+        String pathString = path.toString();
+        long fingerprint = fingerprint(pathString);
+        segmentOf(fingerprint).remove(fingerprint, pathString.hashCode());
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes the tables take on the heap.
+     */
+    public long heapFootprint() {
+        long footprint = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                footprint += (long) segment.fingerprints.length * BYTES_PER_ENTRY;
+            }
+        }
+        return footprint;
+    }
+
+    @Override
+    public long hits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public long misses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public long evictions() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    @NotNull
+    private Segment segmentOf(long fingerprint) {
+        return segments[(int) (fingerprint >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     * Returns a 64-bit hash of the string, which is independent of its <code>hashCode</code> and is never empty.
+     */
+    private static long fingerprint(@NotNull String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+        }
+        // the finalizer of MurmurHash3 spreads the bits over the whole word
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private final class Segment {
+        private final int maxCapacity;
+        private long[] fingerprints;
+        private int[] checks;
+        private long[] sizes;
+        private byte[] depths;
+        private int count;
+        private int clockHand;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        private Segment(int capacity, int maxCapacity) {
+            this.maxCapacity = maxCapacity;
+            allocate(capacity);
+        }
+
+        private synchronized long get(long fingerprint, int check) {
+            int slot = find(fingerprint, check);
+            if (slot < 0) {
+                misses++;
+                return ABSENT;
+            }
+            hits++;
+            return sizes[slot];
+        }
+
+        private synchronized void put(long fingerprint, int check, long size, byte depth) {
+            int slot = find(fingerprint, check);
+            if (slot >= 0) {
+                sizes[slot] = size;
+                depths[slot] = depth;
+                return;
+            }
+            if (isFull()) {
+                if (fingerprints.length < maxCapacity) {
+                    resize(fingerprints.length * 2);
+                } else if (!evictFor(depth)) {
+                    return;
+                }
+            }
+            insert(fingerprint, check, size, depth);
+        }
+
+        private synchronized void remove(long fingerprint, int check) {
+            int slot = find(fingerprint, check);
+            if (slot >= 0) {
+                delete(slot);
+            }
+        }
+
+        private boolean isFull() {
+            // at most three quarters of the slots are taken, so the probes stay short
+            return (count + 1) * 4L > fingerprints.length * 3L;
+        }
+
+        /**
+         * Evicts the deepest of the entries after the clock hand, unless the new entry is deeper than
+         * the display depth and than all of them. Returns whether there is room for the new entry.
+         */
+        private boolean evictFor(byte depth) {
+            int mask = fingerprints.length - 1;
+            int victim = -1;
+            for (int scanned = 0, slot = clockHand; scanned < EVICTION_CANDIDATES; slot = (slot + 1) & mask) {
+                if (fingerprints[slot] == EMPTY) {
+                    continue;
+                }
+                scanned++;
+                if (victim < 0 || depths[slot] > depths[victim]) {
+                    victim = slot;
+                }
+            }
+            clockHand = (victim + 1) & mask;
+            if (depth > displayDepth && depth > depths[victim]) {
+                return false;
+            }
+            delete(victim);
+            evictions++;
+            return true;
+        }
+
+        private int find(long fingerprint, int check) {
+            int mask = fingerprints.length - 1;
+            for (int slot = home(fingerprint, mask); fingerprints[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (fingerprints[slot] == fingerprint && checks[slot] == check) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long fingerprint, int check, long size, byte depth) {
+            int mask = fingerprints.length - 1;
+            int slot = home(fingerprint, mask);
+            while (fingerprints[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            fingerprints[slot] = fingerprint;
+            checks[slot] = check;
+            sizes[slot] = size;
+            depths[slot] = depth;
+            count++;
+        }
+
+        /**
+         * Empties the slot and moves back the entries after it that would not be found past the empty slot.
+         */
+        private void delete(int slot) {
+            int mask = fingerprints.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; fingerprints[next] != EMPTY; next = (next + 1) & mask) {
+                int home = home(fingerprints[next], mask);
+                // the entry stays if its home is cyclically in (hole, next]
+                boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    fingerprints[hole] = fingerprints[next];
+                    checks[hole] = checks[next];
+                    sizes[hole] = sizes[next];
+                    depths[hole] = depths[next];
+                    hole = next;
+                }
+            }
+            fingerprints[hole] = EMPTY;
+            count--;
+        }
+
+        private void resize(int capacity) {
+            long[] oldFingerprints = fingerprints;
+            int[] oldChecks = checks;
+            long[] oldSizes = sizes;
+            byte[] oldDepths = depths;
+            allocate(capacity);
+            count = 0;
+            for (int slot = 0; slot < oldFingerprints.length; slot++) {
+                if (oldFingerprints[slot] != EMPTY) {
+                    insert(oldFingerprints[slot], oldChecks[slot], oldSizes[slot], oldDepths[slot]);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            fingerprints = new long[capacity];
+            checks = new int[capacity];
+            sizes = new long[capacity];
+            depths = new byte[capacity];
+            clockHand = 0;
+        }
+
+        private int home(long fingerprint, int mask) {
+            return (int) fingerprint & mask;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+
+/**
+ * Runs file system work on virtual threads.
+ * <p/>
+ * Tasks forked together by {@link #forkAll(List)} belong to one <code>StructuredTaskScope</code>,
+ * which is owned by the thread that forked them. Since a task may fork its own tasks, the scopes
+ * form the same tree as the traversed directories: a failure of any task cancels its siblings
+ * and is rethrown to the owner of the scope, and an interrupted owner cancels the whole subtree.
+ * <p/>
+ * Virtual threads are cheap, so their number is not limited. Instead, the number of
+ * file system calls in flight is bounded by {@link #io(IoCall)}.
+ */
+public final class StructuredTaskRunner {
+    private final Semaphore ioPermits;
+
+    public StructuredTaskRunner(int maxInFlightIoCalls) {
+        ioPermits = new Semaphore(maxInFlightIoCalls);
+    }
+
+    public <T> T io(@NotNull IoCall<T> call) throws IOException {
+        try {
+            ioPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a file system call.");
+        }
+        try {
+            return call.call();
+        } finally {
+            ioPermits.release();
+        }
+    }
+
+    /**
+     * Runs each task in its own virtual thread and returns their results in the order of the tasks.
+     */
+    @NotNull
+    public <T> List<T> forkAll(@NotNull List<? extends Callable<T>> tasks) throws IOException {
+        if (tasks.isEmpty()) {
+            return List.of();
+        }
+        try (StructuredTaskScope.ShutdownOnFailure scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            List<StructuredTaskScope.Subtask<T>> subtasks = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                subtasks.add(scope.fork(task));
+            }
+            scope.join().throwIfFailed(StructuredTaskRunner::toIOException);
+            List<T> results = new ArrayList<>(subtasks.size());
+            for (StructuredTaskScope.Subtask<T> subtask : subtasks) {
+                results.add(subtask.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for subtasks.");
+        }
+    }
+
+    @NotNull
+    private static IOException toIOException(@NotNull Throwable t) {
+        if (t instanceof IOException e) {
+            return e;
+        }
+        return new IOException(t);
+    }
+}
@@ -0,0 +1,53 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The greatest of the elements offered to it, at most <code>capacity</code> of them. Only the greatest elements
+ * are kept in a min-heap, so the memory does not depend on the number of the offered ones,
+ * and they can be offered from any thread.
+ */
+public final class TopElements<T> {
+    private final int capacity;
+    private final Comparator<? super T> order;
+    // the head is the least of the kept elements, which is the first to be replaced
+    private final PriorityQueue<T> heap;
+
+    public TopElements(int capacity, @NotNull Comparator<? super T> order) {
+        this.capacity = capacity;
+        this.order = order;
+        heap = new PriorityQueue<>(capacity + 1, order);
+    }
+
+    /**
+     * Keeps the element if it is greater than the least of the kept ones, or if there is still room for it.
+     *
+     * @return the least of the kept elements once there is no room left, or null while there is
+     */
+    @Nullable
+    public synchronized T offer(@NotNull T element) {
+        if (heap.size() < capacity) {
+            heap.add(element);
+        } else if (capacity > 0 && order.compare(element, heap.element()) > 0) {
+            heap.remove();
+            heap.add(element);
+        }
+        return capacity > 0 && heap.size() == capacity ? heap.element() : null;
+    }
+
+    /**
+     * Returns the kept elements, the greatest first.
+     */
+    @NotNull
+    public synchronized List<T> sorted() {
+        List<T> elements = new ArrayList<>(heap);
+        elements.sort(order.reversed());
+        return elements;
+    }
+}
@@ -7,6 +7,7 @@ import ru.nsu.fit.sckwo.exception.JduInvalidArgumentsException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 import static java.lang.Integer.MAX_VALUE;
 
@@ -22,6 +23,11 @@ public class JduOptionsParserTest {
         Assertions.assertEquals(32, jduOptions.limit());
         Assertions.assertFalse(jduOptions.followSymlinks());
         Assertions.assertEquals(rootPath, jduOptions.rootAbsolutePath());
+        Assertions.assertEquals(1, jduOptions.threads());
+        Assertions.assertEquals(0, jduOptions.ioConcurrency());
+        Assertions.assertFalse(jduOptions.nativeBackend());
+        Assertions.assertNull(jduOptions.snapshotPath());
+        Assertions.assertEquals(-1, jduOptions.watchInterval());
     }
 
     @Test
@@ -40,6 +46,308 @@ public class JduOptionsParserTest {
         Assertions.assertEquals(128, jduOptions.limit());
     }
 
+    @Test
+    public void threadsOptionTest() {
+        String[] args = new String[]{"-threads", "16"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(16, jduOptions.threads());
+
+        String[] argsWithZero = new String[]{"-threads", "0"};
+        JduOptions jduOptionsWithZero = jduOptionsParser.parseOptions(argsWithZero);
+        Assertions.assertEquals(Runtime.getRuntime().availableProcessors(), jduOptionsWithZero.threads());
+    }
+
+    @Test
+    public void virtualThreadsOptionTest() {
+        String[] args = new String[]{"-vthreads", "64"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(64, jduOptions.ioConcurrency());
+    }
+
+    @Test
+    public void threadsWithVirtualThreadsOptionTest() {
+        String[] args = new String[]{"-threads", "4", "-vthreads", "64"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Options threads and vthreads cannot be used together.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
+    @Test
+    public void nativeOptionTest() {
+        String[] args = new String[]{"-native"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertTrue(jduOptions.nativeBackend());
+    }
+
+    @Test
+    public void nativeWithThreadsOptionTest() {
+        String[] args = new String[]{"-native", "-threads", "4"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Option native cannot be used with threads or vthreads.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
+    @Test
+    public void snapshotOptionTest() {
+        String[] args = new String[]{"-snapshot", "jdu.snapshot"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(Path.of("jdu.snapshot").toAbsolutePath(), jduOptions.snapshotPath());
+    }
+
+    @Test
+    public void watchOptionTest() {
+        String[] args = new String[]{"-watch", "60"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(60, jduOptions.watchInterval());
+    }
+
+    @Test
+    public void statsOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertFalse(jduOptionsParser.parseOptions(new String[]{}).stats());
+        Assertions.assertTrue(jduOptionsParser.parseOptions(new String[]{"-stats"}).stats());
+    }
+
+    @Test
+    public void slowestOptionTest() {
+        String[] args = new String[]{"-slowest", "10"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(10, jduOptions.slowestDirectories());
+        Assertions.assertEquals(0, jduOptionsParser.parseOptions(new String[]{}).slowestDirectories());
+    }
+
+    @Test
+    public void slowestWithWatchOptionTest() {
+        String[] args = new String[]{"-slowest", "10", "-watch", "5"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Options watch and slowest cannot be used together.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
+    @Test
+    public void cacheMemoryOptionTest() {
+        String[] args = new String[]{"-cacheMemory", "512"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(512, jduOptions.cacheMemory());
+        Assertions.assertEquals(JduOptionsParser.DEFAULT_CACHE_MEMORY, jduOptionsParser.parseOptions(new String[]{}).cacheMemory());
+    }
+
+    @Test
+    public void excludeOptionsTest() throws IOException {
+        Path ignoreFile = Files.createTempFile("test", ".gitignore");
+        try {
+            Files.write(ignoreFile, List.of("# build caches", "build/", "*.log"));
+            String[] args = new String[]{"-exclude", "node_modules", "-ignoreFile", ignoreFile.toString(),
+                    "-exclude", "!keep.log", "-include", "*.java", "-excludedTotal"};
+            JduOptionsParser jduOptionsParser = new JduOptionsParser();
+            JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+            Assertions.assertEquals(List.of("# build caches", "build/", "*.log", "node_modules", "!keep.log"), jduOptions.excludes());
+            Assertions.assertEquals(List.of("*.java"), jduOptions.includes());
+            Assertions.assertTrue(jduOptions.excludedTotal());
+        } finally {
+            Files.delete(ignoreFile);
+        }
+    }
+
+    @Test
+    public void excludeWithNativeOptionTest() {
+        String[] args = new String[]{"-exclude", ".git", "-native"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Options exclude, include and ignoreFile cannot be used with native, snapshot or watch.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
+    @Test
+    public void excludedTotalWithoutExcludeOptionTest() {
+        String[] args = new String[]{"-excludedTotal"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Option excludedTotal requires exclude, include or ignoreFile.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
+    @Test
+    public void invalidExcludePatternTest() {
+        String[] args = new String[]{"-exclude", "[abc"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        Assertions.assertTrue(thrown.getMessage().startsWith("jdu: Invalid pattern:"));
+    }
+
+    @Test
+    public void oneFileSystemOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertTrue(jduOptionsParser.parseOptions(new String[]{"-x"}).oneFileSystem());
+        Assertions.assertFalse(jduOptionsParser.parseOptions(new String[]{}).oneFileSystem());
+    }
+
+    @Test
+    public void timeoutOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertEquals(5000, jduOptionsParser.parseOptions(new String[]{"-timeout", "5000"}).directoryTimeout());
+        Assertions.assertEquals(0, jduOptionsParser.parseOptions(new String[]{}).directoryTimeout());
+    }
+
+    @Test
+    public void approxOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertEquals(0, jduOptionsParser.parseOptions(new String[]{}).approxSamples());
+        Assertions.assertEquals(JduOptionsParser.DEFAULT_APPROX_SAMPLES,
+                jduOptionsParser.parseOptions(new String[]{"-approx"}).approxSamples());
+        Assertions.assertEquals(8, jduOptionsParser.parseOptions(new String[]{"-approx", "-samples", "8"}).approxSamples());
+
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-samples", "8"}));
+        Assertions.assertEquals("jdu: Option samples requires approx.", thrown.getMessage());
+        thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-approx", "-samples", "1"}));
+        Assertions.assertEquals("jdu: \"1\" is too small number in option: samples", thrown.getMessage());
+    }
+
+    @Test
+    public void topOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertEquals(100, jduOptionsParser.parseOptions(new String[]{"-top", "100"}).topFiles());
+        Assertions.assertEquals(0, jduOptionsParser.parseOptions(new String[]{}).topFiles());
+
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-top", "100", "-L"}));
+        Assertions.assertEquals("jdu: Option top cannot be used with L, approx, native, snapshot or watch.", thrown.getMessage());
+    }
+
+    @Test
+    public void formatOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        Assertions.assertEquals(OutputFormat.NDJSON, jduOptionsParser.parseOptions(new String[]{"--format", "ndjson"}).outputFormat());
+        Assertions.assertEquals(OutputFormat.TREE, jduOptionsParser.parseOptions(new String[]{"-format", "tree"}).outputFormat());
+        Assertions.assertEquals(OutputFormat.TREE, jduOptionsParser.parseOptions(new String[]{}).outputFormat());
+
+        JduInvalidArgumentsException unknownFormat = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"--format", "json"}));
+        Assertions.assertEquals("jdu: \"json\" is not a format, tree or ndjson expected.", unknownFormat.getMessage());
+        JduInvalidArgumentsException withWatch = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"--format", "ndjson", "-watch", "0"}));
+        Assertions.assertEquals("jdu: Format ndjson cannot be used with watch, top, slowest or excludedTotal.", withWatch.getMessage());
+    }
+
+    @Test
+    public void saveOptionTest() {
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(new String[]{"-save", "tree.jdu", "-depth", "2", "-stats"});
+        Assertions.assertEquals(Path.of("tree.jdu").toAbsolutePath(), jduOptions.savePath());
+        Assertions.assertNull(jduOptionsParser.parseOptions(new String[]{}).savePath());
+
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-save", "tree.jdu", "-threads", "4"}));
+        Assertions.assertEquals("jdu: Option save can be used only with depth, limit, stats and format.", thrown.getMessage());
+        thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-save", "tree.jdu", "-L"}));
+        Assertions.assertEquals("jdu: Option save can be used only with depth, limit, stats and format.", thrown.getMessage());
+    }
+
+    @Test
+    public void queryTest() throws IOException {
+        Path savedTree = Files.createTempFile("tree", ".jdu");
+        try {
+            JduOptionsParser jduOptionsParser = new JduOptionsParser();
+            Assertions.assertEquals(new JduQuery(savedTree, null, 0),
+                    jduOptionsParser.parseQuery(new String[]{savedTree.toString()}));
+            Assertions.assertEquals(new JduQuery(savedTree, Path.of("dir").toAbsolutePath(), 10),
+                    jduOptionsParser.parseQuery(new String[]{"-top", "10", savedTree.toString(), "dir"}));
+
+            JduInvalidArgumentsException noFile = Assertions.assertThrows(
+                    JduInvalidArgumentsException.class,
+                    () -> jduOptionsParser.parseQuery(new String[]{"-top", "10"}));
+            Assertions.assertEquals("jdu: The file of the saved tree is required.", noFile.getMessage());
+            JduInvalidArgumentsException tooManyPaths = Assertions.assertThrows(
+                    JduInvalidArgumentsException.class,
+                    () -> jduOptionsParser.parseQuery(new String[]{savedTree.toString(), "dir", "dir"}));
+            Assertions.assertEquals("jdu: Too many path parameters.", tooManyPaths.getMessage());
+        } finally {
+            Files.delete(savedTree);
+        }
+    }
+
+    @Test
+    public void diffTest() throws IOException {
+        Path savedTree = Files.createTempFile("tree", ".jdu");
+        try {
+            JduOptionsParser jduOptionsParser = new JduOptionsParser();
+            Assertions.assertEquals(new JduDiff(savedTree, null, 8, 32, 0),
+                    jduOptionsParser.parseDiff(new String[]{savedTree.toString()}));
+            Assertions.assertEquals(new JduDiff(savedTree, savedTree.getParent(), 2, 5, 100),
+                    jduOptionsParser.parseDiff(new String[]{"-depth", "2", "-limit", "5", "-threshold", "100",
+                            savedTree.toString(), savedTree.getParent().toString()}));
+
+            JduInvalidArgumentsException noFile = Assertions.assertThrows(
+                    JduInvalidArgumentsException.class,
+                    () -> jduOptionsParser.parseDiff(new String[]{}));
+            Assertions.assertEquals("jdu: The file of the saved tree is required.", noFile.getMessage());
+        } finally {
+            Files.delete(savedTree);
+        }
+    }
+
+    @Test
+    public void timeoutWithWatchOptionTest() {
+        String[] args = new String[]{"-timeout", "5000", "-watch", "0"};
+        JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduInvalidArgumentsException thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(args));
+
+        String expectedMessage = "jdu: Option timeout cannot be used with native or watch.";
+        String actualMessage = thrown.getMessage();
+
+        Assertions.assertEquals(expectedMessage, actualMessage);
+    }
+
     @Test
     public void followSymlinkOptionTest() {
         String[] args = new String[]{"-L"};
@@ -188,18 +496,32 @@ public class JduOptionsParserTest {
     }
 
     @Test
-    public void tooManyPathParametersTest() throws IOException {
+    public void manyPathParametersTest() throws IOException {
         Path tempFile = Files.createTempFile("test", ".txt");
         Path tempFile2 = Files.createTempFile("test2", ".txt");
         String[] args = new String[]{tempFile.toAbsolutePath().toString(), tempFile2.toAbsolutePath().toString()};
 
         JduOptionsParser jduOptionsParser = new JduOptionsParser();
+        JduOptions jduOptions = jduOptionsParser.parseOptions(args);
+        Assertions.assertEquals(tempFile.toAbsolutePath(), jduOptions.rootAbsolutePath());
+        Assertions.assertEquals(List.of(tempFile2.toAbsolutePath()), jduOptions.otherRootPaths());
+        Assertions.assertEquals(List.of(tempFile.toAbsolutePath(), tempFile2.toAbsolutePath()), jduOptions.rootAbsolutePaths());
+        Assertions.assertFalse(jduOptions.aggregateRoots());
+        Assertions.assertTrue(jduOptionsParser.parseOptions(new String[]{"-aggregate", args[0], args[1]}).aggregateRoots());
+
         JduInvalidArgumentsException thrown = Assertions.assertThrows(
                 JduInvalidArgumentsException.class,
-                () -> jduOptionsParser.parseOptions(args));
-        String expectedMessage = "jdu: Too many path parameters.";
-        String actualMessage = thrown.getMessage();
-        Assertions.assertEquals(expectedMessage, actualMessage);
+                () -> jduOptionsParser.parseOptions(new String[]{"-x", args[0], args[1]}));
+        Assertions.assertEquals("jdu: Many paths cannot be used with exclude, include, ignoreFile, x, save or watch.",
+                thrown.getMessage());
+        thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{"-aggregate", args[0]}));
+        Assertions.assertEquals("jdu: Option aggregate requires many paths.", thrown.getMessage());
+        thrown = Assertions.assertThrows(
+                JduInvalidArgumentsException.class,
+                () -> jduOptionsParser.parseOptions(new String[]{args[0], args[1] + "-missing"}));
+        Assertions.assertEquals("jdu: " + args[1] + "-missing does not exist.", thrown.getMessage());
     }
 
     @Test
@@ -0,0 +1,94 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.nsu.fit.sckwo.core.DuFileWithChildren;
+import ru.nsu.fit.sckwo.core.DuTest;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.util.List;
+
+public final class NdjsonPrinterTest extends DuTest {
+    @NotNull
+    private static String print(@NotNull DuFileWithChildren root) {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+        NdjsonPrinter printer = new NdjsonPrinter(Channels.newChannel(byteOutput));
+        printHierarchy(printer, root, 0);
+        printer.flush();
+        return byteOutput.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void printHierarchy(@NotNull NdjsonPrinter printer, @NotNull DuFileWithChildren currentFile, int depth) {
+        printer.visitFile(currentFile, depth);
+        for (DuFileWithChildren child : currentFile.getChildren()) {
+            printHierarchy(printer, child, depth + 1);
+        }
+    }
+
+    @NotNull
+    private static DuFileWithChildren duFile(@NotNull FileSystem fs, @NotNull String path, @NotNull DuFileType type, long size,
+                                             DuFileWithChildren... children) {
+        DuFileWithChildren duFile = new DuFileWithChildren(fs.getPath(path), type);
+        duFile.setSize(size);
+        duFile.getChildren().addAll(List.of(children));
+        duFile.setActualCountOfChildren(children.length);
+        return duFile;
+    }
+
+    @Test
+    public void treeTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            DuFileWithChildren root = duFile(fs, "/work", DuFileType.DIRECTORY, 75,
+                    duFile(fs, "/work/file", DuFileType.REGULAR_FILE, 75),
+                    duFile(fs, "/work/link", DuFileType.BROKEN_SYMLINK, 0),
+                    duFile(fs, "/work/unknown", DuFileType.UNKNOWN_FORMAT_FILE, -1));
+            Assertions.assertEquals("""
+                    {"path":"/work","size":75,"type":"directory","depth":0,"children":3}
+                    {"path":"/work/file","size":75,"type":"regular","depth":1,"children":0}
+                    {"path":"/work/link","size":null,"type":"broken symlink","depth":1,"children":0}
+                    {"path":"/work/unknown","size":null,"type":"unknown file format","depth":1,"children":0}
+                    """, print(root));
+        }
+    }
+
+    @Test
+    public void escapedPathTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            DuFileWithChildren file = duFile(fs, "/work/\"quoted\" \\ tab\t é 文 \uD83D\uDE00 \uD800",
+                    DuFileType.REGULAR_FILE, 1);
+            Assertions.assertEquals("{\"path\":\"/work/\\\"quoted\\\" \\\\ tab\\u0009 é 文 \uD83D\uDE00 \\ud800\","
+                    + "\"size\":1,\"type\":\"regular\",\"depth\":0,\"children\":0}\n", print(file));
+        }
+    }
+
+    @Test
+    public void approximateSizeTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            DuFileWithChildren root = duFile(fs, "/work", DuFileType.DIRECTORY, Long.MAX_VALUE);
+            root.setSizeMargin(1234);
+            Assertions.assertEquals("{\"path\":\"/work\",\"size\":9223372036854775807,\"margin\":1234,"
+                    + "\"type\":\"directory\",\"depth\":0,\"children\":0}\n", print(root));
+        }
+    }
+
+    @Test
+    public void longOutputTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            // more lines than fit into the buffer, so the buffer is drained many times
+            DuFileWithChildren[] files = new DuFileWithChildren[10_000];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = duFile(fs, "/work/file" + i, DuFileType.REGULAR_FILE, i);
+            }
+            List<String> lines = print(duFile(fs, "/work", DuFileType.DIRECTORY, 0, files)).lines().toList();
+            Assertions.assertEquals(files.length + 1, lines.size());
+            Assertions.assertEquals("{\"path\":\"/work/file9999\",\"size\":9999,\"type\":\"regular\",\"depth\":1,\"children\":0}",
+                    lines.get(files.length));
+        }
+    }
+}
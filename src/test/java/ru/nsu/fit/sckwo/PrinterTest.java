@@ -181,4 +181,23 @@ public class PrinterTest {
                     """);
         }
     }
+
+    @Test
+    public void approximateSizeTest() {
+        DuFileWithChildren root = dir("root", dir("sampled"), file("file"));
+        root.setSize(1_319_413_953_331L);
+        root.setSizeMargin(32_985_348_833L);
+        root.getChildren().get(0).setSizeMargin(0);
+        JduOptions jduOptions = new JduOptions(
+                false,
+                256,
+                256,
+                ComparatorType.SIZE_COMPARATOR,
+                root.getAbsolutePath());
+        testWithResult(jduOptions, root, """
+                root [~1.2 TB ±3%] [directory]
+                ├─ sampled [~0 B ±0%] [directory]
+                ╰─ file [0 B] [regular]
+                """);
+    }
 }
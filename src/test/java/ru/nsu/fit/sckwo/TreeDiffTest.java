@@ -0,0 +1,98 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.tree.CompactFileTree;
+import ru.nsu.fit.sckwo.tree.MappedFileTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class TreeDiffTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    /**
+     * Saves the tree of directories with regular files, e.g. <code>"dir/file" -> size</code>,
+     * summing up the sizes of the directories.
+     */
+    @NotNull
+    private MappedFileTree save(@NotNull String name, @NotNull Map<String, Long> files) throws IOException {
+        CompactFileTree tree = new CompactFileTree(temporaryDirectory.resolve("root"), DuFileType.DIRECTORY, false);
+        Map<String, Integer> directories = new TreeMap<>();
+        long rootSize = 0;
+        for (Map.Entry<String, Long> file : new TreeMap<>(files).entrySet()) {
+            String[] names = file.getKey().split("/");
+            int directory = directories.computeIfAbsent(names[0],
+                    directoryName -> tree.addChild(CompactFileTree.ROOT, directoryName, DuFileType.DIRECTORY));
+            tree.setSize(tree.addChild(directory, names[1], DuFileType.REGULAR_FILE), file.getValue());
+            tree.setSize(directory, Math.max(tree.getSize(directory), 0) + file.getValue());
+            rootSize += file.getValue();
+        }
+        tree.setSize(CompactFileTree.ROOT, rootSize);
+        tree.trimToSize();
+        Path file = temporaryDirectory.resolve(name);
+        MappedFileTree.write(tree, file);
+        return MappedFileTree.open(file);
+    }
+
+    @NotNull
+    private static String diff(@NotNull MappedFileTree oldTree, @NotNull MappedFileTree newTree, int limit, long threshold) {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+        try (PrintStream pos = new PrintStream(byteOutput, true, StandardCharsets.UTF_16)) {
+            new TreeDiff(oldTree, newTree, 8, limit, threshold).walk(new Printer(pos, 8, false));
+        }
+        return byteOutput.toString(StandardCharsets.UTF_16).replace("\r\n", "\n");
+    }
+
+    @Test
+    public void changedFilesTest() throws IOException {
+        MappedFileTree oldTree = save("old", Map.of(
+                "grown/file", 1024L,
+                "grown/same", 10L,
+                "same/file", 10L,
+                "removed/file", 100L));
+        MappedFileTree newTree = save("new", Map.of(
+                "grown/file", 3072L,
+                "grown/same", 10L,
+                "same/file", 10L,
+                "added/file", 512L));
+        Assertions.assertEquals("""
+                root [3.52 KB +2.4 KB] [directory]
+                ├─ grown [3.01 KB +2 KB] [directory]
+                │   ╰─ file [3 KB +2 KB] [regular]
+                ├─ added [512 B +512 B] [directory]
+                │   ╰─ file [512 B +512 B] [regular]
+                ╰─ removed [0 B -100 B] [directory]
+                    ╰─ file [0 B -100 B] [regular]
+                """, diff(oldTree, newTree, 32, 0));
+        Assertions.assertEquals("""
+                root [3.52 KB +2.4 KB] [directory]
+                ├─ grown [3.01 KB +2 KB] [directory]
+                │   ╰─ file [3 KB +2 KB] [regular]
+                ╰─ added [512 B +512 B] [directory]
+                    ╰─ file [512 B +512 B] [regular]
+                """, diff(oldTree, newTree, 2, 0));
+        Assertions.assertEquals("""
+                root [3.52 KB +2.4 KB] [directory]
+                ╰─ grown [3.01 KB +2 KB] [directory]
+                    ╰─ file [3 KB +2 KB] [regular]
+                """, diff(oldTree, newTree, 32, 1024));
+    }
+
+    @Test
+    public void sameTreesTest() throws IOException {
+        Map<String, Long> files = Map.of("dir/file", 1024L, "dir/other", 0L);
+        Assertions.assertEquals("""
+                root [1 KB +0 B] [directory]
+                """, diff(save("old", files), save("new", files), 32, 0));
+    }
+}
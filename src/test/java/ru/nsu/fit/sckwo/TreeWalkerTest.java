@@ -1,15 +1,31 @@
 package ru.nsu.fit.sckwo;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import ru.nsu.fit.sckwo.comparators.ComparatorType;
+import ru.nsu.fit.sckwo.core.CountingFileSystem;
+import ru.nsu.fit.sckwo.core.CountingFileSystemProvider;
 import ru.nsu.fit.sckwo.core.DuFileWithChildren;
 import ru.nsu.fit.sckwo.core.DuTest;
 import ru.nsu.fit.sckwo.dufile.DuFile;
 import ru.nsu.fit.sckwo.dufile.DuFileType;
 import ru.nsu.fit.sckwo.exception.JduException;
 import ru.nsu.fit.sckwo.exception.JduRuntimeException;
+import ru.nsu.fit.sckwo.metrics.DirectoryProfile;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
+import ru.nsu.fit.sckwo.tree.CompactFileTree;
+import ru.nsu.fit.sckwo.tree.CompactTreeScanner;
+import ru.nsu.fit.sckwo.utils.DirectorySizer;
+import ru.nsu.fit.sckwo.utils.FileSizeCacheCalculator;
+import ru.nsu.fit.sckwo.utils.IoDeadline;
+import ru.nsu.fit.sckwo.utils.LargestFiles;
+import ru.nsu.fit.sckwo.utils.MountBoundary;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -17,21 +33,55 @@ import java.io.PrintStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
 
 import static ru.nsu.fit.sckwo.core.DuFileHelper.*;
 
 public final class TreeWalkerTest extends DuTest {
 
+    private static void walk(@NotNull JduOptions jduOptions, @NotNull FileVisitor visitor, @NotNull Path root) {
+        try (TreeWalker walker = new TreeWalker(jduOptions, visitor)) {
+            walker.walk(root);
+        }
+    }
+
+    private static void walk(@NotNull JduOptions jduOptions, @NotNull FileVisitor visitor, @NotNull List<Path> roots) {
+        try (TreeWalker walker = new TreeWalker(jduOptions, visitor)) {
+            walker.walk(roots);
+        }
+    }
+
     private static DuFileWithChildren traverse(@NotNull JduOptions jduOptions) {
         TestVisitor visitor = new TestVisitor();
-        TreeWalker walker = new TreeWalker(jduOptions, visitor);
-        walker.walk(jduOptions.rootAbsolutePath());
+        walk(jduOptions, visitor, jduOptions.rootAbsolutePath());
         return visitor.root;
     }
 
+    private static List<String> traverseWithSizes(@NotNull JduOptions jduOptions) {
+        List<String> visitedFiles = new ArrayList<>();
+        walk(jduOptions, (curFile, depthLevel) -> visitedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()),
+                jduOptions.rootAbsolutePath());
+        return visitedFiles;
+    }
+
+    private static List<String> traverseWithSizes(@NotNull JduOptions jduOptions, @NotNull CompactFileTree tree) {
+        List<String> visitedFiles = new ArrayList<>();
+        try (TreeWalker walker = new TreeWalker(jduOptions,
+                (curFile, depthLevel) -> visitedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()))) {
+            walker.walk(tree);
+        }
+        return visitedFiles;
+    }
+
     private static void printDuFileTree(@NotNull DuFileWithChildren root, int curDepth, @NotNull PrintStream pos) {
         pos.println("  ".repeat(curDepth) + root.getAbsolutePath().getFileName());
         for (DuFileWithChildren child : root.getChildren()) {
@@ -448,5 +498,879 @@ public final class TreeWalkerTest extends DuTest {
 
         }
     }
-}
 
+    @Test
+    public void parallelSizeCalculationTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            long expectedSize = 0;
+            for (int i = 0; i < 4; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                for (int j = 0; j < 4; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    for (int k = 0; k < 4; k++) {
+                        byte[] content = new byte[100 * i + 10 * j + k];
+                        Files.write(subDirPath.resolve("file" + k), content);
+                        expectedSize += content.length;
+                    }
+                }
+            }
+
+            for (int depth = 0; depth < 4; depth++) {
+                JduOptions sequentialOptions = new JduOptions(
+                        true,
+                        depth,
+                        256,
+                        ComparatorType.SIZE_COMPARATOR,
+                        rootPath.toAbsolutePath());
+                JduOptions parallelOptions = new JduOptions(
+                        true,
+                        depth,
+                        256,
+                        ComparatorType.SIZE_COMPARATOR,
+                        rootPath.toAbsolutePath()).withThreads(4);
+                JduOptions virtualThreadsOptions = new JduOptions(
+                        true,
+                        depth,
+                        256,
+                        ComparatorType.SIZE_COMPARATOR,
+                        rootPath.toAbsolutePath()).withIoConcurrency(4);
+                List<String> expected = traverseWithSizes(sequentialOptions);
+                Assertions.assertEquals("0 root " + expectedSize, expected.get(0));
+                Assertions.assertEquals(expected, traverseWithSizes(parallelOptions));
+                Assertions.assertEquals(expected, traverseWithSizes(virtualThreadsOptions));
+                Assertions.assertEquals(expected, traverseWithSizes(sequentialOptions.withNativeBackend(true)));
+            }
+        }
+    }
+
+    @Test
+    public void nativeSizeCalculationTest(@TempDir Path tempDir) throws IOException {
+        Assumptions.assumeTrue(System.getProperty("os.name").equals("Linux"));
+        Assertions.assertNotNull(DirectorySizer.linux());
+        Path rootPath = tempDir.resolve("root");
+        Files.createDirectory(rootPath);
+        for (int i = 0; i < 3; i++) {
+            Path dirPath = rootPath.resolve("dir" + i);
+            Files.createDirectory(dirPath);
+            Files.createDirectory(dirPath.resolve("emptyDir"));
+            Files.createSymbolicLink(dirPath.resolve("symlinkToRoot"), rootPath);
+            Path deepDirPath = dirPath;
+            for (int j = 0; j < 5; j++) {
+                deepDirPath = deepDirPath.resolve("subDir" + j);
+                Files.createDirectory(deepDirPath);
+                Files.write(deepDirPath.resolve("file"), new byte[1000 * i + 100 * j]);
+                Files.createSymbolicLink(deepDirPath.resolve("symlinkToFile"), deepDirPath.resolve("file"));
+            }
+            for (int j = 0; j < 300; j++) {
+                Files.write(deepDirPath.resolve("file" + j), new byte[j]);
+            }
+        }
+
+        for (int depth = 0; depth < 4; depth++) {
+            JduOptions jduOptions = new JduOptions(
+                    false,
+                    depth,
+                    256,
+                    ComparatorType.SIZE_COMPARATOR,
+                    rootPath.toAbsolutePath());
+            Assertions.assertEquals(traverseWithSizes(jduOptions), traverseWithSizes(jduOptions.withNativeBackend(true)));
+        }
+    }
+
+    @Test
+    public void virtualThreadsWithoutPreviewTest(@TempDir Path tempDir) throws IOException, InterruptedException {
+        Path rootPath = tempDir.resolve("root");
+        Files.createDirectories(rootPath.resolve("dir"));
+        Files.write(rootPath.resolve("dir").resolve("file"), new byte[100]);
+
+        // the JVM of the tests enables the preview features, so jdu is run in a JVM of its own without them
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), Main.class.getName(),
+                "-vthreads", "4", rootPath.toString())
+                .redirectOutput(tempDir.resolve("out").toFile())
+                .redirectError(tempDir.resolve("err").toFile())
+                .start();
+        Assertions.assertEquals(0, process.waitFor());
+        String out = Files.readString(tempDir.resolve("out"));
+        String err = Files.readString(tempDir.resolve("err"));
+        Assertions.assertTrue(out.contains("dir") && out.contains("file"), out);
+        Assertions.assertTrue(err.contains("--enable-preview"), err);
+        Assertions.assertFalse(err.contains("Error") || err.contains("Exception"), err);
+    }
+
+    @Test
+    public void heaviestChildrenOfHugeDirectoryTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            long expectedSize = 0;
+            for (int i = 0; i < 2500; i++) {
+                byte[] content = new byte[i % 7];
+                Files.write(rootPath.resolve("file" + i), content);
+                expectedSize += content.length;
+            }
+            List<String> expected = new ArrayList<>();
+            expected.add("0 root " + expectedSize);
+            try (Stream<Path> childrenPaths = Files.list(rootPath)) {
+                // equal sizes keep the listing order
+                childrenPaths.sorted(Comparator.comparingLong(TreeWalkerTest::sizeOf).reversed())
+                        .limit(5)
+                        .forEach(path -> expected.add("1 " + path.getFileName() + " " + sizeOf(path)));
+            }
+
+            JduOptions jduOptions = new JduOptions(
+                    false,
+                    1,
+                    5,
+                    ComparatorType.SIZE_COMPARATOR,
+                    rootPath.toAbsolutePath());
+            Assertions.assertEquals(expected, traverseWithSizes(jduOptions));
+            Assertions.assertEquals(expected, traverseWithSizes(jduOptions.withIoConcurrency(4)));
+        }
+    }
+
+    private static long sizeOf(@NotNull Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void compactTreeWalkTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            for (int i = 0; i < 4; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                Files.createSymbolicLink(dirPath.resolve("symlinkToRoot"), rootPath.toAbsolutePath());
+                Files.createSymbolicLink(dirPath.resolve("danglingSymlink"), dirPath.resolve("nothing"));
+                for (int j = 0; j < 4; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    Files.write(subDirPath.resolve("file"), new byte[10 * i + j]);
+                    Files.write(dirPath.resolve("file" + j), new byte[j % 2]);
+                    Files.createSymbolicLink(subDirPath.resolve("symlinkToFile"), subDirPath.resolve("file").toAbsolutePath());
+                }
+            }
+
+            CompactFileTree tree = new CompactTreeScanner(false).scan(rootPath);
+            for (int depth = 0; depth < 4; depth++) {
+                for (ComparatorType comparatorType : ComparatorType.values()) {
+                    JduOptions jduOptions = new JduOptions(
+                            false,
+                            depth,
+                            3,
+                            comparatorType,
+                            rootPath.toAbsolutePath());
+                    Assertions.assertEquals(traverseWithSizes(jduOptions), traverseWithSizes(jduOptions, tree));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void everyDirectoryIsListedOnceTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            int countOfDirectories = 1;
+            for (int i = 0; i < 3; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                countOfDirectories++;
+                for (int j = 0; j < 3; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    countOfDirectories++;
+                    Files.write(subDirPath.resolve("file"), new byte[i + j]);
+                    Path subSubDirPath = subDirPath.resolve("subSubDir");
+                    Files.createDirectory(subSubDirPath);
+                    countOfDirectories++;
+                    Files.write(subSubDirPath.resolve("file"), new byte[i * j]);
+                }
+            }
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            for (int depth = 0; depth < 5; depth++) {
+                for (int threads : new int[]{1, 4}) {
+                    countingFs.counters().resetCounts();
+                    JduOptions jduOptions = new JduOptions(
+                            false,
+                            depth,
+                            2,
+                            ComparatorType.SIZE_COMPARATOR,
+                            countingFs.wrap(rootPath).toAbsolutePath()).withThreads(threads);
+                    traverse(jduOptions);
+                    Map<Path, Integer> listingCounts = countingFs.counters().getListingCounts();
+                    Assertions.assertEquals(countOfDirectories, listingCounts.size());
+                    for (Map.Entry<Path, Integer> listingCount : listingCounts.entrySet()) {
+                        Assertions.assertEquals(1, listingCount.getValue(), () -> listingCount.getKey() + " is listed more than once");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharedSymlinkTargetIsReadOnceTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path sharedPath = fs.getPath("shared");
+            Files.createDirectory(sharedPath);
+            for (int i = 0; i < 3; i++) {
+                Path subDirPath = sharedPath.resolve("subDir" + i);
+                Files.createDirectory(subDirPath);
+                Files.write(subDirPath.resolve("file"), new byte[10 * i + 1]);
+                Path subSubDirPath = subDirPath.resolve("subSubDir");
+                Files.createDirectory(subSubDirPath);
+                Files.write(subSubDirPath.resolve("file"), new byte[100 * i + 1]);
+            }
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            int[] totalListings = new int[2];
+            int[] countsOfSymlinks = {1, 5};
+            for (int k = 0; k < countsOfSymlinks.length; k++) {
+                Path rootPath = fs.getPath("root" + k);
+                Files.createDirectory(rootPath);
+                for (int i = 0; i < countsOfSymlinks[k]; i++) {
+                    Files.createSymbolicLink(rootPath.resolve("link" + i), sharedPath.toAbsolutePath());
+                }
+                JduOptions jduOptions = new JduOptions(
+                        true,
+                        3,
+                        8,
+                        ComparatorType.LEXICOGRAPHICAL_COMPARATOR,
+                        countingFs.wrap(rootPath).toAbsolutePath());
+                countingFs.counters().resetCounts();
+                List<String> visitedFiles = traverseWithSizes(jduOptions);
+                totalListings[k] = countingFs.counters().getCallCount(CountingFileSystemProvider.LISTING);
+
+                // every symlink still shows the whole target
+                int linesPerSymlink = (visitedFiles.size() - 1) / countsOfSymlinks[k];
+                Assertions.assertEquals(1 + linesPerSymlink * countsOfSymlinks[k], visitedFiles.size());
+                List<String> firstTarget = visitedFiles.subList(2, 1 + linesPerSymlink);
+                for (int i = 1; i < countsOfSymlinks[k]; i++) {
+                    int start = 1 + i * linesPerSymlink;
+                    Assertions.assertEquals(visitedFiles.get(1).replace("link0", "link" + i), visitedFiles.get(start));
+                    Assertions.assertEquals(firstTarget, visitedFiles.subList(start + 1, start + linesPerSymlink));
+                }
+            }
+            Assertions.assertEquals(totalListings[0], totalListings[1], "the target is listed again for another symlink");
+        }
+    }
+
+    @Test
+    public void scanMetricsTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            for (int i = 0; i < 3; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                for (int j = 0; j < 3; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    Files.write(subDirPath.resolve("file"), new byte[10 * i + j]);
+                }
+            }
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            for (int depth = 0; depth < 3; depth++) {
+                countingFs.counters().resetCounts();
+                JduOptions jduOptions = new JduOptions(
+                        false,
+                        depth,
+                        8,
+                        ComparatorType.SIZE_COMPARATOR,
+                        countingFs.wrap(rootPath).toAbsolutePath()).withStats(true);
+                List<String> visitedFiles = new ArrayList<>();
+                try (TreeWalker walker = new TreeWalker(jduOptions, (curFile, depthLevel) -> visitedFiles.add(curFile.toString()))) {
+                    walker.walk(jduOptions.rootAbsolutePath());
+
+                    ScanMetrics metrics = walker.getMetrics();
+                    Assertions.assertEquals(countingFs.counters().getCallCount(CountingFileSystemProvider.LISTING),
+                            metrics.getDirectoryListings());
+                    // every file but the root is an entry of a listing
+                    Assertions.assertEquals(1 + 3 + 9 + 9 - 1, metrics.getEntries());
+                    Assertions.assertEquals(visitedFiles.size(), metrics.getVisitorCallbacks());
+                    Assertions.assertTrue(metrics.getAttributeReads() >= metrics.getEntries());
+                    // a size is loaded after a miss, and only the directories below the depth limit are left to the cache
+                    Assertions.assertTrue(metrics.getCacheLoads() <= metrics.getCacheMisses());
+                    Assertions.assertEquals(depth < 2, metrics.getCacheLoads() > 0);
+                    Assertions.assertEquals(0, metrics.getErrors());
+                }
+
+                // without the statistics, nothing is counted
+                try (TreeWalker walker = new TreeWalker(jduOptions.withStats(false), (curFile, depthLevel) -> {
+                })) {
+                    walker.walk(jduOptions.rootAbsolutePath());
+                    Assertions.assertFalse(walker.getMetrics().isCounting());
+                    Assertions.assertEquals(0, walker.getMetrics().getEntries());
+                    Assertions.assertEquals(0, walker.getMetrics().getAttributeReads());
+                    Assertions.assertEquals(0, walker.getMetrics().getVisitorCallbacks());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void slowestDirectoriesTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            Map<Path, Integer> expectedEntries = new HashMap<>();
+            expectedEntries.put(rootPath.toAbsolutePath(), 3);
+            for (int i = 0; i < 3; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                expectedEntries.put(dirPath.toAbsolutePath(), i + 1);
+                for (int j = 0; j < i; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    expectedEntries.put(subDirPath.toAbsolutePath(), j);
+                    for (int k = 0; k < j; k++) {
+                        Files.write(subDirPath.resolve("file" + k), new byte[k]);
+                    }
+                }
+                Files.write(dirPath.resolve("file"), new byte[i]);
+            }
+
+            for (int depth = 0; depth < 3; depth++) {
+                for (int ioConcurrency : new int[]{0, 4}) {
+                    JduOptions jduOptions = new JduOptions(
+                            false,
+                            depth,
+                            8,
+                            ComparatorType.SIZE_COMPARATOR,
+                            rootPath.toAbsolutePath()).withIoConcurrency(ioConcurrency);
+                    // every directory is read once, either by the walker or by the size calculator
+                    try (TreeWalker walker = new TreeWalker(jduOptions.withSlowestDirectories(100), (curFile, depthLevel) -> {
+                    })) {
+                        walker.walk(jduOptions.rootAbsolutePath());
+                        Map<Path, Integer> actualEntries = new HashMap<>();
+                        for (DirectoryProfile.DirectoryCost directory : walker.getMetrics().getProfile().slowest()) {
+                            Assertions.assertNull(actualEntries.put(directory.directory(), directory.entries()));
+                        }
+                        Assertions.assertEquals(expectedEntries, actualEntries);
+                    }
+
+                    try (TreeWalker walker = new TreeWalker(jduOptions.withSlowestDirectories(2), (curFile, depthLevel) -> {
+                    })) {
+                        walker.walk(jduOptions.rootAbsolutePath());
+                        List<DirectoryProfile.DirectoryCost> slowest = walker.getMetrics().getProfile().slowest();
+                        Assertions.assertEquals(2, slowest.size());
+                        Assertions.assertTrue(slowest.get(0).nanos() >= slowest.get(1).nanos());
+                    }
+                }
+            }
+            try (TreeWalker walker = new TreeWalker(new JduOptions(
+                    false,
+                    0,
+                    8,
+                    ComparatorType.SIZE_COMPARATOR,
+                    rootPath.toAbsolutePath()), (curFile, depthLevel) -> {
+            })) {
+                Assertions.assertNull(walker.getMetrics().getProfile());
+            }
+        }
+    }
+
+    @Test
+    public void flightRecorderEventsTest(@TempDir Path tempDir) throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            for (int i = 0; i < 3; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                Files.write(dirPath.resolve("file"), new byte[i]);
+            }
+
+            JduOptions jduOptions = new JduOptions(
+                    false,
+                    0,
+                    8,
+                    ComparatorType.SIZE_COMPARATOR,
+                    rootPath.toAbsolutePath());
+            Path recordingPath = tempDir.resolve("walk.jfr");
+            try (Recording recording = new Recording()) {
+                for (String eventName : List.of("DirectoryListing", "AttributeRead", "CacheLoad", "VisitorCallback")) {
+                    recording.enable("ru.nsu.fit.sckwo." + eventName).withThreshold(Duration.ZERO);
+                }
+                recording.start();
+                traverse(jduOptions);
+                recording.stop();
+                recording.dump(recordingPath);
+            }
+
+            Map<String, List<RecordedEvent>> events = new HashMap<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+                events.computeIfAbsent(event.getEventType().getName(), name -> new ArrayList<>()).add(event);
+            }
+            RecordedEvent rootListing = events.get("ru.nsu.fit.sckwo.DirectoryListing").stream()
+                    .filter(event -> event.getString("path").equals(rootPath.toAbsolutePath().toString()))
+                    .findFirst()
+                    .orElseThrow();
+            Assertions.assertEquals(3, rootListing.getInt("entries"));
+            // the three directories below the depth limit are listed and sized by the cache
+            Assertions.assertEquals(4, events.get("ru.nsu.fit.sckwo.DirectoryListing").size());
+            Assertions.assertEquals(3, events.get("ru.nsu.fit.sckwo.CacheLoad").size());
+            Assertions.assertEquals(1, events.get("ru.nsu.fit.sckwo.VisitorCallback").size());
+            Assertions.assertTrue(events.get("ru.nsu.fit.sckwo.AttributeRead").size() >= 7);
+        }
+    }
+
+    @Test
+    public void snapshotRescanTest() throws IOException, InterruptedException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            for (int i = 0; i < 3; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                for (int j = 0; j < 3; j++) {
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    Files.write(subDirPath.resolve("file"), new byte[10 * i + j]);
+                    Path subSubDirPath = subDirPath.resolve("subSubDir");
+                    Files.createDirectory(subSubDirPath);
+                    Files.write(subSubDirPath.resolve("file"), new byte[100 * i + j]);
+                }
+            }
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            JduOptions jduOptions = new JduOptions(
+                    false,
+                    1,
+                    8,
+                    ComparatorType.SIZE_COMPARATOR,
+                    countingFs.wrap(rootPath).toAbsolutePath());
+            JduOptions snapshotOptions = jduOptions.withSnapshotPath(fs.getPath("snapshot").toAbsolutePath());
+            List<String> expected = traverseWithSizes(jduOptions);
+            Assertions.assertEquals(expected, traverseWithSizes(snapshotOptions));
+
+            countingFs.counters().resetCounts();
+            Assertions.assertEquals(expected, traverseWithSizes(snapshotOptions));
+            // only the visited directories are listed again
+            Assertions.assertEquals(4, countingFs.counters().getListingCounts().size());
+
+            // the modification time of a directory is kept with a millisecond precision
+            Thread.sleep(10);
+            Files.write(rootPath.resolve("dir1").resolve("subDir2").resolve("subSubDir").resolve("newFile"), new byte[1000]);
+            countingFs.counters().resetCounts();
+            List<String> expectedAfterChange = traverseWithSizes(jduOptions);
+            Assertions.assertNotEquals(expected, expectedAfterChange);
+            countingFs.counters().resetCounts();
+            Assertions.assertEquals(expectedAfterChange, traverseWithSizes(snapshotOptions));
+            Assertions.assertEquals(5, countingFs.counters().getListingCounts().size());
+            Assertions.assertEquals(expectedAfterChange, traverseWithSizes(snapshotOptions.withThreads(4)));
+            Assertions.assertEquals(expectedAfterChange, traverseWithSizes(snapshotOptions.withIoConcurrency(4)));
+        }
+    }
+
+    @Test
+    public void attributesAreReadOncePerEntryTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectory(rootPath);
+            int countOfEntries = 1;
+            for (int i = 0; i < 10; i++) {
+                Path dirPath = rootPath.resolve("dir" + i);
+                Files.createDirectory(dirPath);
+                countOfEntries++;
+                for (int j = 0; j < 10; j++) {
+                    Files.write(dirPath.resolve("file" + j), new byte[i * j]);
+                    countOfEntries++;
+                    Path subDirPath = dirPath.resolve("subDir" + j);
+                    Files.createDirectory(subDirPath);
+                    countOfEntries++;
+                    Files.write(subDirPath.resolve("file"), new byte[i + j]);
+                    countOfEntries++;
+                }
+            }
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            for (int depth = 0; depth < 4; depth++) {
+                countingFs.counters().resetCounts();
+                JduOptions jduOptions = new JduOptions(
+                        false,
+                        depth,
+                        4,
+                        ComparatorType.SIZE_COMPARATOR,
+                        countingFs.wrap(rootPath).toAbsolutePath());
+                traverse(jduOptions);
+                Assertions.assertEquals(countOfEntries, countingFs.counters().getCallCount(CountingFileSystemProvider.ATTRIBUTE_READ));
+                Assertions.assertEquals(0, countingFs.counters().getCallCount(CountingFileSystemProvider.ACCESS_CHECK));
+            }
+        }
+    }
+
+    @Test
+    public void excludedSubtreesAreNotListedTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("web/node_modules/package"));
+            Files.write(rootPath.resolve("web/node_modules/package/index.js"), new byte[1000]);
+            Files.write(rootPath.resolve("web/app.js"), new byte[10]);
+            Files.createDirectories(rootPath.resolve(".git/objects/ab"));
+            Files.write(rootPath.resolve(".git/objects/ab/object"), new byte[2000]);
+            Files.write(rootPath.resolve(".git/HEAD"), new byte[20]);
+            Files.createDirectories(rootPath.resolve("build/cache"));
+            Files.write(rootPath.resolve("build/cache/entry"), new byte[3000]);
+            Files.write(rootPath.resolve("build/output"), new byte[30]);
+            Files.createDirectories(rootPath.resolve("src/cache"));
+            Files.write(rootPath.resolve("src/cache/Cache.java"), new byte[40]);
+            long includedSize = 10 + 20 + 30 + 40;
+            long excludedSize = 1000 + 2000 + 3000;
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            Path countingRoot = countingFs.wrap(rootPath).toAbsolutePath();
+            JduOptions filteredOptions = new JduOptions(false, 0, 8, ComparatorType.SIZE_COMPARATOR, countingRoot)
+                    .withExcludes(List.of("node_modules/", ".git/objects", "/build/cache"));
+            for (int depth = 0; depth < 5; depth++) {
+                for (JduOptions jduOptions : List.of(filteredOptions.withDepth(depth),
+                        filteredOptions.withDepth(depth).withThreads(4),
+                        filteredOptions.withDepth(depth).withIoConcurrency(4))) {
+                    countingFs.counters().resetCounts();
+                    List<Long> rootSizes = new ArrayList<>();
+                    try (TreeWalker walker = new TreeWalker(jduOptions, (curFile, depthLevel) -> {
+                        if (depthLevel == 0) {
+                            rootSizes.add(curFile.getSize());
+                        }
+                        Assertions.assertFalse(curFile.getAbsolutePath().toString().contains("node_modules"));
+                    })) {
+                        walker.walk(countingRoot);
+                        Assertions.assertNull(walker.getExcludedTotal());
+                    }
+                    Assertions.assertEquals(List.of(includedSize), rootSizes);
+                    for (Path listedPath : countingFs.counters().getListingCounts().keySet()) {
+                        String listed = listedPath.toString();
+                        Assertions.assertFalse(listed.contains("node_modules") || listed.contains("objects")
+                                || listed.endsWith("build/cache"), () -> listed + " is excluded but listed");
+                    }
+                }
+                // the excluded directories are sized only for the total
+                try (TreeWalker walker = new TreeWalker(filteredOptions.withDepth(depth).withExcludedTotal(true), (curFile, depthLevel) -> {
+                })) {
+                    walker.walk(countingRoot);
+                    Assertions.assertNotNull(walker.getExcludedTotal());
+                    Assertions.assertEquals(3, walker.getExcludedTotal().getCount());
+                    Assertions.assertEquals(excludedSize, walker.getExcludedTotal().getSize());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void includeAndNegatedExcludeTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("logs"));
+            Files.write(rootPath.resolve("logs/app.log"), new byte[100]);
+            Files.write(rootPath.resolve("logs/keep.log"), new byte[200]);
+            Files.createDirectories(rootPath.resolve("src"));
+            Files.write(rootPath.resolve("src/Main.java"), new byte[10]);
+            Files.write(rootPath.resolve("src/notes.txt"), new byte[20]);
+
+            JduOptions jduOptions = new JduOptions(false, 2, 8, ComparatorType.SIZE_COMPARATOR, rootPath.toAbsolutePath());
+            List<String> expected = List.of(
+                    "0 root 210",
+                    "1 logs 200",
+                    "2 keep.log 200",
+                    "1 src 10",
+                    "2 Main.java 10"
+            );
+            JduOptions filteredOptions = jduOptions
+                    .withExcludes(List.of("*.log", "!keep.log"))
+                    .withIncludes(List.of("*.java", "*.log"));
+            Assertions.assertEquals(expected, traverseWithSizes(filteredOptions));
+            Assertions.assertEquals(List.of("0 root 210"), traverseWithSizes(filteredOptions.withDepth(0)));
+            Assertions.assertEquals(List.of("0 root 210", "1 logs 200", "1 src 10"),
+                    traverseWithSizes(filteredOptions.withDepth(1).withThreads(4)));
+        }
+    }
+
+    @Test
+    public void mountBoundaryTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("home/user"));
+            Files.write(rootPath.resolve("home/user/file"), new byte[10]);
+            Files.createDirectories(rootPath.resolve("proc/self"));
+            Files.write(rootPath.resolve("proc/self/status"), new byte[100]);
+            Files.createDirectories(rootPath.resolve("data/backup"));
+            Files.write(rootPath.resolve("data/backup/archive"), new byte[1000]);
+            String absoluteRoot = rootPath.toAbsolutePath().toString();
+            List<String> mountInfo = List.of(
+                    "1 0 254:0 / / rw - ext4 /dev/vda rw",
+                    "2 1 0:22 / " + absoluteRoot + "/proc rw - proc proc rw",
+                    "3 1 0:40 / " + absoluteRoot + "/data rw - nfs4 server:/data rw");
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            Path countingRoot = countingFs.wrap(rootPath).toAbsolutePath();
+            for (boolean oneFileSystem : new boolean[]{false, true}) {
+                MountBoundary boundary = MountBoundary.of(countingRoot, oneFileSystem, mountInfo);
+                long expectedSize = oneFileSystem ? 10 : 1010;
+                for (int depth = 0; depth < 4; depth++) {
+                    JduOptions jduOptions = new JduOptions(false, depth, 8, ComparatorType.SIZE_COMPARATOR, countingRoot);
+                    for (JduOptions options : List.of(jduOptions, jduOptions.withThreads(4), jduOptions.withIoConcurrency(4))) {
+                        countingFs.counters().resetCounts();
+                        List<Long> rootSizes = new ArrayList<>();
+                        try (TreeWalker walker = new TreeWalker(options, (curFile, depthLevel) -> {
+                            if (depthLevel == 0) {
+                                rootSizes.add(curFile.getSize());
+                            }
+                        }, null, boundary)) {
+                            walker.walk(countingRoot);
+                        }
+                        Assertions.assertEquals(List.of(expectedSize), rootSizes);
+                        for (Path listedPath : countingFs.counters().getListingCounts().keySet()) {
+                            String listed = listedPath.toString();
+                            Assertions.assertFalse(listed.contains("proc") || oneFileSystem && listed.contains("data"),
+                                    () -> listed + " is beyond the boundary but listed");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void directoryTimeoutTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("slow"));
+            Files.write(rootPath.resolve("slow/file"), new byte[100]);
+            Files.createDirectories(rootPath.resolve("fast/deep"));
+            Files.write(rootPath.resolve("fast/file"), new byte[10]);
+            Files.write(rootPath.resolve("fast/deep/file"), new byte[5]);
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            Path countingRoot = countingFs.wrap(rootPath).toAbsolutePath();
+            CountDownLatch release = new CountDownLatch(1);
+            countingFs.counters().hangListings(countingRoot.resolve("slow"), release);
+            countingFs.counters().hangListings(countingRoot.resolve("fast/deep"), release);
+            try {
+                JduOptions jduOptions = new JduOptions(false, 2, 8, ComparatorType.SIZE_COMPARATOR, countingRoot)
+                        .withDirectoryTimeout(100);
+                for (JduOptions options : List.of(jduOptions, jduOptions.withIoConcurrency(4))) {
+                    List<String> visitedFiles = new ArrayList<>();
+                    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                        walk(options, (curFile, depthLevel) -> visitedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName()
+                                + " " + curFile.getSize() + " " + curFile.getType().getName()), countingRoot);
+                    });
+                    Assertions.assertEquals(List.of(
+                            "0 root 10 directory",
+                            "1 fast 10 directory",
+                            "2 file 10 regular",
+                            "2 deep -1 timed out directory",
+                            "1 slow -1 timed out directory"
+                    ), visitedFiles);
+                }
+
+                try (FileSizeCacheCalculator calculator = new FileSizeCacheCalculator(new FileSizeCacheCalculator.Settings(0)
+                        .withMetrics(new ScanMetrics())
+                        .withDeadline(new IoDeadline(100)))) {
+                    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                        Assertions.assertEquals(-1, calculator.size(countingRoot.resolve("slow"), 1));
+                        Assertions.assertEquals(10, calculator.size(countingRoot.resolve("fast/file"), 2));
+                    });
+                }
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void approximateSizesTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            long wideSize = 0;
+            for (int i = 0; i < 200; i++) {
+                Path subdirectory = rootPath.resolve("wide/" + i);
+                Files.createDirectories(subdirectory.resolve("nested"));
+                Files.write(subdirectory.resolve("file"), new byte[100 + i % 10 * 20]);
+                Files.write(subdirectory.resolve("nested/file"), new byte[10]);
+                wideSize += 110 + i % 10 * 20;
+            }
+            long exactSize = wideSize + 1000;
+            Files.createDirectories(rootPath.resolve("narrow/dir"));
+            Files.write(rootPath.resolve("narrow/dir/file"), new byte[1000]);
+
+            // the visited directories are read in full, so the sampled ones are below the root
+            JduOptions jduOptions = new JduOptions(false, 0, 8, ComparatorType.SIZE_COMPARATOR, rootPath.toAbsolutePath());
+            List<DuFile> visitedFiles = new ArrayList<>();
+            walk(jduOptions.withApproxSamples(20), (curFile, depthLevel) -> visitedFiles.add(curFile), rootPath);
+            DuFile root = visitedFiles.get(0);
+            Assertions.assertTrue(root.isSizeApproximate());
+            Assertions.assertTrue(root.getSizeMargin() > 0);
+            Assertions.assertTrue(Math.abs(root.getSize() - exactSize) <= root.getSizeMargin(),
+                    () -> root.getSize() + " ±" + root.getSizeMargin() + " does not cover " + exactSize);
+
+            // the directories with few subdirectories are sized exactly
+            visitedFiles.clear();
+            walk(jduOptions.withApproxSamples(20).withRootAbsolutePath(rootPath.resolve("narrow").toAbsolutePath()),
+                    (curFile, depthLevel) -> visitedFiles.add(curFile), rootPath.resolve("narrow"));
+            Assertions.assertFalse(visitedFiles.get(0).isSizeApproximate());
+            Assertions.assertEquals(1000, visitedFiles.get(0).getSize());
+
+            // as many samples as the subdirectories give the exact size
+            visitedFiles.clear();
+            walk(jduOptions.withApproxSamples(200), (curFile, depthLevel) -> visitedFiles.add(curFile), rootPath);
+            Assertions.assertFalse(visitedFiles.get(0).isSizeApproximate());
+            Assertions.assertEquals(exactSize, visitedFiles.get(0).getSize());
+        }
+    }
+
+    @Test
+    public void topFilesTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("a/b/c"));
+            Files.createDirectories(rootPath.resolve("d"));
+            Files.write(rootPath.resolve("small"), new byte[1]);
+            Files.write(rootPath.resolve("a/medium"), new byte[50]);
+            Files.write(rootPath.resolve("a/b/c/largest"), new byte[300]);
+            Files.write(rootPath.resolve("d/large"), new byte[200]);
+            Files.write(rootPath.resolve("d/tiny"), new byte[0]);
+            Files.createSymbolicLink(rootPath.resolve("link"), rootPath.resolve("a/b/c/largest").toAbsolutePath());
+
+            // the depth and the limit of the tree do not bound the ranked files
+            JduOptions jduOptions = new JduOptions(false, 0, 1, ComparatorType.SIZE_COMPARATOR, rootPath.toAbsolutePath())
+                    .withTopFiles(3);
+            for (JduOptions options : List.of(jduOptions, jduOptions.withThreads(4), jduOptions.withIoConcurrency(4))) {
+                List<String> visitedFiles = new ArrayList<>();
+                try (TreeWalker walker = new TreeWalker(options,
+                        (curFile, depthLevel) -> visitedFiles.add(curFile.getAbsolutePath().getFileName().toString()))) {
+                    walker.walk(rootPath);
+                    Assertions.assertEquals(List.of("root"), visitedFiles);
+                    Assertions.assertEquals(List.of(
+                            new LargestFiles.FileSize(rootPath.resolve("a/b/c/largest").toAbsolutePath(), 300),
+                            new LargestFiles.FileSize(rootPath.resolve("d/large").toAbsolutePath(), 200),
+                            new LargestFiles.FileSize(rootPath.resolve("a/medium").toAbsolutePath(), 50)
+                    ), walker.getLargestFiles().largest());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void manyRootsTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path first = fs.getPath("first");
+            Files.createDirectories(first.resolve("dir"));
+            Files.write(first.resolve("dir/file"), new byte[30]);
+            Path second = fs.getPath("second");
+            Files.createDirectory(second);
+            Files.write(second.resolve("file"), new byte[50]);
+            Path file = fs.getPath("file");
+            Files.write(file, new byte[5]);
+            List<Path> roots = List.of(first.toAbsolutePath(), second.toAbsolutePath(), file.toAbsolutePath(),
+                    first.resolve("../first").toAbsolutePath());
+
+            JduOptions jduOptions = new JduOptions(false, 8, 8, ComparatorType.SIZE_COMPARATOR, first.toAbsolutePath())
+                    .withOtherRootPaths(roots.subList(1, roots.size()));
+            for (JduOptions options : List.of(jduOptions, jduOptions.withThreads(4), jduOptions.withIoConcurrency(4))) {
+                // the same root is walked once
+                List<String> visitedFiles = new ArrayList<>();
+                walk(options, (curFile, depthLevel) -> visitedFiles.add(
+                        depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()), roots);
+                Assertions.assertEquals(List.of(
+                        "0 first 30", "1 dir 30", "2 file 30",
+                        "0 second 50", "1 file 50",
+                        "0 file 5"
+                ), visitedFiles);
+
+                visitedFiles.clear();
+                walk(options.withAggregateRoots(true).withDepth(1), (curFile, depthLevel) -> visitedFiles.add(
+                        depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()), roots);
+                Assertions.assertEquals(List.of(
+                        "0 " + first.toAbsolutePath().getParent().getFileName() + " 85",
+                        "1 second 50", "1 first 30", "1 file 5"
+                ), visitedFiles);
+            }
+        }
+    }
+
+    @Test
+    public void manyRootsAreScannedConcurrentlyTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path first = fs.getPath("first");
+            Files.createDirectory(first);
+            Path second = fs.getPath("second");
+            Files.createDirectory(second);
+            Files.write(second.resolve("file"), new byte[10]);
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            List<Path> roots = List.of(countingFs.wrap(first).toAbsolutePath(), countingFs.wrap(second).toAbsolutePath());
+            CountDownLatch release = new CountDownLatch(1);
+            countingFs.counters().hangListings(roots.get(0), release);
+            // the first root is listed only after the second one has been, which needs both scans at once
+            Thread releaser = new Thread(() -> {
+                while (!countingFs.counters().getListingCounts().containsKey(second.toAbsolutePath())) {
+                    Thread.onSpinWait();
+                }
+                release.countDown();
+            });
+            releaser.setDaemon(true);
+            releaser.start();
+            try {
+                JduOptions jduOptions = new JduOptions(false, 1, 8, ComparatorType.SIZE_COMPARATOR, roots.get(0))
+                        .withOtherRootPaths(roots.subList(1, 2));
+                List<String> visitedFiles = new ArrayList<>();
+                Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> walk(jduOptions,
+                        (curFile, depthLevel) -> visitedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName()), roots));
+                Assertions.assertEquals(List.of("0 first", "0 second", "1 file"), visitedFiles);
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void nestedRootsAreScannedOnceTest() throws IOException {
+        try (FileSystem fs = fileSystem()) {
+            Path rootPath = fs.getPath("root");
+            Files.createDirectories(rootPath.resolve("a/b/c/d"));
+            Files.write(rootPath.resolve("a/b/c/d/file"), new byte[40]);
+            Files.write(rootPath.resolve("a/b/file"), new byte[20]);
+            Files.write(rootPath.resolve("file"), new byte[10]);
+            int countOfDirectories = 5;
+
+            CountingFileSystem countingFs = new CountingFileSystem(fs);
+            Path countingRoot = countingFs.wrap(rootPath).toAbsolutePath();
+            for (int depth = 0; depth < 5; depth++) {
+                for (JduOptions options : List.of(
+                        new JduOptions(false, depth, 8, ComparatorType.SIZE_COMPARATOR, countingRoot),
+                        new JduOptions(false, depth, 8, ComparatorType.SIZE_COMPARATOR, countingRoot).withThreads(4),
+                        new JduOptions(false, depth, 8, ComparatorType.SIZE_COMPARATOR, countingRoot).withIoConcurrency(4))) {
+                    List<String> separateFiles = new ArrayList<>();
+                    for (String root : List.of("", "a/b", "a/b/c")) {
+                        Path rootToWalk = countingRoot.resolve(root).normalize();
+                        walk(options.withRootAbsolutePath(rootToWalk), (curFile, depthLevel) -> separateFiles.add(
+                                depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()), rootToWalk);
+                    }
+
+                    countingFs.counters().resetCounts();
+                    List<String> visitedFiles = new ArrayList<>();
+                    List<Path> roots = List.of(countingRoot, countingRoot.resolve("a/b"), countingRoot.resolve("a/b/c"));
+                    walk(options.withOtherRootPaths(roots.subList(1, roots.size())), (curFile, depthLevel) -> visitedFiles.add(
+                            depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()), roots);
+                    Assertions.assertEquals(separateFiles, visitedFiles);
+                    Map<Path, Integer> listingCounts = countingFs.counters().getListingCounts();
+                    Assertions.assertEquals(countOfDirectories, listingCounts.size());
+                    for (Map.Entry<Path, Integer> listingCount : listingCounts.entrySet()) {
+                        Assertions.assertEquals(1, listingCount.getValue(), () -> listingCount.getKey() + " is listed more than once");
+                    }
+                }
+            }
+        }
+    }
+}
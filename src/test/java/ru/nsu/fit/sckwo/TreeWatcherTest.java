@@ -0,0 +1,75 @@
+package ru.nsu.fit.sckwo;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.fit.sckwo.comparators.ComparatorType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class TreeWatcherTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static List<String> traverseWithSizes(@NotNull JduOptions jduOptions) {
+        List<String> visitedFiles = new ArrayList<>();
+        try (TreeWalker walker = new TreeWalker(jduOptions,
+                (curFile, depthLevel) -> visitedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()))) {
+            walker.walk(jduOptions.rootAbsolutePath());
+        }
+        return visitedFiles;
+    }
+
+    private static List<String> render(@NotNull TreeWatcher treeWatcher, @NotNull List<String> renderedFiles) {
+        renderedFiles.clear();
+        treeWatcher.render();
+        return List.copyOf(renderedFiles);
+    }
+
+    @Test
+    public void watchedSizesFollowChangesTest(@TempDir Path tempDir) throws IOException, InterruptedException {
+        Path rootPath = tempDir.resolve("root");
+        for (int i = 0; i < 3; i++) {
+            Path deepDirPath = rootPath.resolve("dir" + i);
+            for (int j = 0; j < 4; j++) {
+                deepDirPath = deepDirPath.resolve("subDir" + j);
+                Files.createDirectories(deepDirPath);
+                Files.write(deepDirPath.resolve("file"), new byte[100 * i + 10 * j]);
+            }
+        }
+        JduOptions jduOptions = new JduOptions(
+                false,
+                2,
+                8,
+                ComparatorType.SIZE_COMPARATOR,
+                rootPath.toAbsolutePath()).withWatchInterval(0);
+        List<String> renderedFiles = new ArrayList<>();
+
+        try (TreeWatcher treeWatcher = new TreeWatcher(jduOptions,
+                () -> (curFile, depthLevel) -> renderedFiles.add(depthLevel + " " + curFile.getAbsolutePath().getFileName() + " " + curFile.getSize()))) {
+            treeWatcher.scan();
+            Assertions.assertEquals(traverseWithSizes(jduOptions), render(treeWatcher, renderedFiles));
+
+            Path deepDirPath = rootPath.resolve("dir1").resolve("subDir0").resolve("subDir1").resolve("subDir2");
+            Files.write(deepDirPath.resolve("file"), new byte[5000], StandardOpenOption.APPEND);
+            Path newDirPath = deepDirPath.resolve("newDir");
+            Files.createDirectory(newDirPath);
+            Files.write(newDirPath.resolve("newFile"), new byte[700]);
+            Files.createSymbolicLink(deepDirPath.resolve("symlink"), newDirPath);
+            Files.delete(rootPath.resolve("dir2").resolve("subDir0").resolve("subDir1").resolve("subDir2").resolve("subDir3").resolve("file"));
+            Files.delete(rootPath.resolve("dir2").resolve("subDir0").resolve("subDir1").resolve("subDir2").resolve("subDir3"));
+
+            List<String> expected = traverseWithSizes(jduOptions);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!expected.equals(render(treeWatcher, renderedFiles)) && System.currentTimeMillis() < deadline) {
+                treeWatcher.processEvents(100);
+            }
+            Assertions.assertEquals(expected, render(treeWatcher, renderedFiles));
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ru.nsu.fit.sckwo.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CountingFileSystemProvider extends FileSystemProvider {
+    public static final String LISTING = "listing";
+    public static final String ATTRIBUTE_READ = "attribute read";
+    public static final String ACCESS_CHECK = "access check";
+    public static final String SYMLINK_READ = "symlink read";
+
+    private final CountingFileSystem fileSystem;
+    private final FileSystemProvider delegate;
+    private final Map<String, AtomicInteger> callCounts = new ConcurrentHashMap<>();
+    private final Map<Path, AtomicInteger> listingCounts = new ConcurrentHashMap<>();
+    private final Map<Path, CountDownLatch> hungListings = new ConcurrentHashMap<>();
+
+    CountingFileSystemProvider(@NotNull CountingFileSystem fileSystem, @NotNull FileSystemProvider delegate) {
+        this.fileSystem = fileSystem;
+        this.delegate = delegate;
+    }
+
+    public int getCallCount(@NotNull String call) {
+        AtomicInteger count = callCounts.get(call);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the number of file system calls of all kinds.
+     */
+    public int getCallCount() {
+        return callCounts.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    @NotNull
+    public Map<Path, Integer> getListingCounts() {
+        Map<Path, Integer> result = new ConcurrentHashMap<>();
+        listingCounts.forEach((path, count) -> result.put(path, count.get()));
+        return result;
+    }
+
+    public void resetCounts() {
+        callCounts.clear();
+        listingCounts.clear();
+    }
+
+    /**
+     * Makes the listings of the directory hang until <code>release</code> is counted down.
+     * Like a call stuck on an unresponsive mount, a hung listing does not end when its thread is interrupted.
+     */
+    public void hangListings(@NotNull Path directory, @NotNull CountDownLatch release) {
+        hungListings.put(CountingPath.unwrap(directory).toAbsolutePath(), release);
+    }
+
+    private void count(@NotNull String call) {
+        callCounts.computeIfAbsent(call, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static void awaitUninterruptibly(@NotNull CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String getScheme() {
+        return delegate.getScheme();
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath(@NotNull URI uri) {
+        return fileSystem.wrap(delegate.getPath(uri));
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        return delegate.newByteChannel(CountingPath.unwrap(path), options, attrs);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        count(LISTING);
+        Path unwrappedDir = CountingPath.unwrap(dir);
+        listingCounts.computeIfAbsent(unwrappedDir.toAbsolutePath(), key -> new AtomicInteger()).incrementAndGet();
+        CountDownLatch release = hungListings.get(unwrappedDir.toAbsolutePath());
+        if (release != null) {
+            awaitUninterruptibly(release);
+        }
+        DirectoryStream<Path> stream = delegate.newDirectoryStream(unwrappedDir, path -> filter.accept(fileSystem.wrap(path)));
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Path> iterator() {
+                Iterator<Path> iterator = stream.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Path next() {
+                        return fileSystem.wrap(iterator.next());
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        delegate.createDirectory(CountingPath.unwrap(dir), attrs);
+    }
+
+    @Override
+    public void createSymbolicLink(Path link, Path target, FileAttribute<?>... attrs) throws IOException {
+        delegate.createSymbolicLink(CountingPath.unwrap(link), CountingPath.unwrap(target), attrs);
+    }
+
+    @Override
+    public Path readSymbolicLink(Path link) throws IOException {
+        count(SYMLINK_READ);
+        return fileSystem.wrap(delegate.readSymbolicLink(CountingPath.unwrap(link)));
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        delegate.delete(CountingPath.unwrap(path));
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        delegate.copy(CountingPath.unwrap(source), CountingPath.unwrap(target), options);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        delegate.move(CountingPath.unwrap(source), CountingPath.unwrap(target), options);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        return delegate.isSameFile(CountingPath.unwrap(path), CountingPath.unwrap(path2));
+    }
+
+    @Override
+    public boolean isHidden(Path path) throws IOException {
+        return delegate.isHidden(CountingPath.unwrap(path));
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        return delegate.getFileStore(CountingPath.unwrap(path));
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        count(ACCESS_CHECK);
+        delegate.checkAccess(CountingPath.unwrap(path), modes);
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        return delegate.getFileAttributeView(CountingPath.unwrap(path), type, options);
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        count(ATTRIBUTE_READ);
+        return delegate.readAttributes(CountingPath.unwrap(path), type, options);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        count(ATTRIBUTE_READ);
+        return delegate.readAttributes(CountingPath.unwrap(path), attributes, options);
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        delegate.setAttribute(CountingPath.unwrap(path), attribute, value, options);
+    }
+}
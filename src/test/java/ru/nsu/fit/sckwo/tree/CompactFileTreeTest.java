@@ -0,0 +1,170 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.metrics.ScanMetrics;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public final class CompactFileTreeTest {
+
+    private static CompactFileTree buildTree(int countOfDirectories, int countOfFilesInDirectory, boolean offHeap) {
+        CompactFileTree tree = new CompactFileTree(Path.of("root"), DuFileType.DIRECTORY, offHeap);
+        long rootSize = 0;
+        for (int i = 0; i < countOfDirectories; i++) {
+            int directory = tree.addChild(CompactFileTree.ROOT, "directory_" + i, DuFileType.DIRECTORY);
+            long directorySize = 0;
+            for (int j = 0; j < countOfFilesInDirectory; j++) {
+                int file = tree.addChild(directory, "file_" + j + ".dat", DuFileType.REGULAR_FILE);
+                tree.setSize(file, j);
+                directorySize += j;
+            }
+            tree.setSize(directory, directorySize);
+            rootSize += directorySize;
+        }
+        tree.setSize(CompactFileTree.ROOT, rootSize);
+        tree.trimToSize();
+        return tree;
+    }
+
+    /**
+     * Returns the bytes taken on the heap by the primitive arrays and the heap buffers reachable from the fields
+     * of the object, which are found by reflection, so the layout is measured without the arithmetic of the tree.
+     */
+    private static long retainedBytes(Object object, Set<Object> seen) throws IllegalAccessException {
+        if (object == null || object instanceof Path || !seen.add(object)) {
+            return 0;
+        }
+        Class<?> type = object.getClass();
+        if (type.isArray() && type.componentType().isPrimitive()) {
+            return arrayBytes(Array.getLength(object), elementSize(type.componentType()));
+        }
+        if (object instanceof ByteBuffer buffer) {
+            return buffer.isDirect() ? 0 : arrayBytes(buffer.capacity(), Byte.BYTES);
+        }
+        if (object instanceof Collection<?> collection) {
+            // the array of the references, which are compressed
+            long bytes = arrayBytes(collection.size(), Integer.BYTES);
+            for (Object element : collection) {
+                bytes += retainedBytes(element, seen);
+            }
+            return bytes;
+        }
+        long bytes = 0;
+        for (Class<?> declaringType = type; declaringType != Object.class; declaringType = declaringType.getSuperclass()) {
+            for (Field field : declaringType.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                    field.setAccessible(true);
+                    bytes += retainedBytes(field.get(object), seen);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long arrayBytes(int length, int elementSize) {
+        // an array header takes 16 bytes with compressed class pointers, and objects are aligned to 8 bytes
+        return (16 + (long) length * elementSize + 7) & ~7L;
+    }
+
+    private static int elementSize(Class<?> primitiveType) {
+        if (primitiveType == long.class || primitiveType == double.class) {
+            return 8;
+        }
+        if (primitiveType == int.class || primitiveType == float.class) {
+            return 4;
+        }
+        if (primitiveType == short.class || primitiveType == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    @Test
+    public void heapFootprintTest() throws IllegalAccessException {
+        CompactFileTree tree = buildTree(1000, 1000, false);
+        Assertions.assertEquals(1 + 1000 + 1000 * 1000, tree.getCount());
+        long retained = retainedBytes(tree, Collections.newSetFromMap(new IdentityHashMap<>()));
+        Assertions.assertTrue(retained < 40L * tree.getCount(),
+                () -> (double) retained / tree.getCount() + " bytes per entry");
+        Assertions.assertEquals(retained, tree.heapFootprint(), 1024);
+
+        // the names between the kept addresses are found by stepping over the names before them
+        int i = 0;
+        for (int directory = tree.getFirstChild(CompactFileTree.ROOT); directory != CompactFileTree.NO_ENTRY;
+             directory = tree.getNextSibling(directory)) {
+            Assertions.assertEquals("directory_" + i++, tree.getName(directory));
+            int j = 0;
+            for (int file = tree.getFirstChild(directory); file != CompactFileTree.NO_ENTRY; file = tree.getNextSibling(file)) {
+                Assertions.assertEquals("file_" + j++ + ".dat", tree.getName(file));
+            }
+        }
+    }
+
+    @Test
+    public void offHeapNamesTest() {
+        CompactFileTree tree = buildTree(100, 1000, true);
+        Assertions.assertTrue(tree.heapFootprint() / tree.getCount() <= 25);
+        Assertions.assertTrue(tree.offHeapFootprint() > 0);
+        int directory = tree.getFirstChild(CompactFileTree.ROOT);
+        int file = tree.getNextSibling(tree.getFirstChild(directory));
+        Assertions.assertEquals("file_1.dat", tree.getName(file));
+        Assertions.assertEquals(Path.of("root", "directory_0", "file_1.dat").toAbsolutePath(), tree.getPath(file));
+    }
+
+    @Test
+    public void treeStructureTest() {
+        CompactFileTree tree = new CompactFileTree(Path.of("root"), DuFileType.DIRECTORY, false);
+        int directory = tree.addChild(CompactFileTree.ROOT, "каталог", DuFileType.DIRECTORY);
+        int file = tree.addChild(directory, "f".repeat(300), DuFileType.REGULAR_FILE);
+        int symlink = tree.addChild(CompactFileTree.ROOT, "symlink", DuFileType.SYMLINK);
+        int unreadable = tree.addChild(CompactFileTree.ROOT, "unreadable", DuFileType.DIRECTORY);
+        tree.setSize(file, 10);
+        tree.setSize(symlink, 10);
+        tree.markUnreadable(unreadable);
+        tree.trimToSize();
+
+        Assertions.assertEquals(directory, tree.getFirstChild(CompactFileTree.ROOT));
+        Assertions.assertEquals(symlink, tree.getNextSibling(directory));
+        Assertions.assertEquals(unreadable, tree.getNextSibling(symlink));
+        Assertions.assertEquals(CompactFileTree.NO_ENTRY, tree.getNextSibling(unreadable));
+        Assertions.assertEquals(directory, tree.getParent(file));
+        Assertions.assertEquals("каталог", tree.getName(directory));
+        Assertions.assertEquals("f".repeat(300), tree.getName(file));
+        Assertions.assertEquals(0, tree.getSizeInParent(symlink));
+        Assertions.assertEquals(10, tree.getSize(symlink));
+        Assertions.assertFalse(tree.isReadable(unreadable));
+        Assertions.assertEquals(DuFileType.DIRECTORY, tree.getType(unreadable));
+        Assertions.assertEquals(-1, tree.getSizeInParent(unreadable));
+        Assertions.assertThrows(IllegalStateException.class, () -> tree.addChild(CompactFileTree.ROOT, "late", DuFileType.REGULAR_FILE));
+    }
+
+    @Test
+    public void scanMetricsTest(@TempDir Path tempDir) throws IOException {
+        Files.createDirectories(tempDir.resolve("dir/nested"));
+        Files.write(tempDir.resolve("dir/file"), new byte[10]);
+        Files.write(tempDir.resolve("dir/nested/file"), new byte[20]);
+        Files.write(tempDir.resolve("file"), new byte[30]);
+
+        ScanMetrics metrics = new ScanMetrics();
+        CompactFileTree tree = new CompactTreeScanner(false, metrics).scan(tempDir);
+        Assertions.assertEquals(60, tree.getSize(CompactFileTree.ROOT));
+        Assertions.assertEquals(3, metrics.getDirectoryListings());
+        Assertions.assertEquals(5, metrics.getEntries());
+        // the root and every entry are read once
+        Assertions.assertEquals(6, metrics.getAttributeReads());
+        Assertions.assertEquals(0, metrics.getErrors());
+    }
+}
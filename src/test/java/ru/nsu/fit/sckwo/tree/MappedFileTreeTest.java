@@ -0,0 +1,102 @@
+package ru.nsu.fit.sckwo.tree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.fit.sckwo.dufile.DuFileType;
+import ru.nsu.fit.sckwo.utils.LargestFiles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public final class MappedFileTreeTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    public void savedTreeTest() throws IOException {
+        Path rootPath = temporaryDirectory.resolve("root");
+        CompactFileTree tree = new CompactFileTree(rootPath, DuFileType.DIRECTORY, false);
+        int unreadable = tree.addChild(CompactFileTree.ROOT, "unreadable", DuFileType.DIRECTORY);
+        int directory = tree.addChild(CompactFileTree.ROOT, "directory", DuFileType.DIRECTORY);
+        long directorySize = 0;
+        // more names than a block of front-coded names, shuffled to be sorted when saved
+        for (int i = 99; i >= 0; i--) {
+            int file = tree.addChild(directory, "file_" + i + ".dat", DuFileType.REGULAR_FILE);
+            tree.setSize(file, i);
+            directorySize += i;
+        }
+        int longName = tree.addChild(directory, "f".repeat(300), DuFileType.REGULAR_FILE);
+        int unicodeName = tree.addChild(directory, "файл", DuFileType.REGULAR_FILE);
+        tree.setSize(longName, 1000);
+        tree.setSize(unicodeName, 0);
+        int symlink = tree.addChild(CompactFileTree.ROOT, "symlink", DuFileType.SYMLINK);
+        tree.setSize(symlink, 5000);
+        tree.setSize(directory, directorySize + 1000);
+        tree.markUnreadable(unreadable);
+        tree.setSize(CompactFileTree.ROOT, directorySize + 1000);
+        tree.trimToSize();
+        Path file = temporaryDirectory.resolve("tree.jdu");
+        MappedFileTree.write(tree, file);
+
+        MappedFileTree saved = MappedFileTree.open(file);
+        Assertions.assertEquals(tree.getCount(), saved.getCount());
+        Assertions.assertEquals(rootPath, saved.getRootPath());
+        Assertions.assertEquals(MappedFileTree.ROOT, saved.find(rootPath));
+        Assertions.assertEquals(directorySize + 1000, saved.getSize(MappedFileTree.ROOT));
+
+        int savedDirectory = saved.find(rootPath.resolve("directory"));
+        Assertions.assertEquals("directory", saved.getName(savedDirectory));
+        Assertions.assertEquals(DuFileType.DIRECTORY, saved.getType(savedDirectory));
+        Assertions.assertEquals(103, saved.getSubtreeLength(savedDirectory));
+        int savedFile = saved.find(rootPath.resolve("directory/file_57.dat"));
+        Assertions.assertEquals(57, saved.getSize(savedFile));
+        Assertions.assertEquals(savedDirectory, saved.getParent(savedFile));
+        Assertions.assertEquals(rootPath.resolve("directory").resolve("file_57.dat"), saved.getPath(savedFile));
+        Assertions.assertEquals("f".repeat(300), saved.getName(saved.find(rootPath.resolve("directory").resolve("f".repeat(300)))));
+        Assertions.assertEquals("файл", saved.getName(savedDirectory + 102));
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(i, saved.getSize(saved.find(rootPath.resolve("directory").resolve("file_" + i + ".dat"))));
+        }
+
+        int savedUnreadable = saved.find(rootPath.resolve("unreadable"));
+        Assertions.assertFalse(saved.isReadable(savedUnreadable));
+        Assertions.assertEquals(-1, saved.getSize(savedUnreadable));
+        Assertions.assertEquals(DuFileType.SYMLINK, saved.getType(saved.find(rootPath.resolve("symlink"))));
+        Assertions.assertEquals(MappedFileTree.NO_ENTRY, saved.find(rootPath.resolve("directory/file_100.dat")));
+        Assertions.assertEquals(MappedFileTree.NO_ENTRY, saved.find(temporaryDirectory));
+
+        // the symlink is not a regular file, however large its target is
+        Assertions.assertEquals(
+                List.of(new LargestFiles.FileSize(saved.getPath(saved.find(rootPath.resolve("directory").resolve("f".repeat(300)))), 1000),
+                        new LargestFiles.FileSize(rootPath.resolve("directory").resolve("file_99.dat"), 99),
+                        new LargestFiles.FileSize(rootPath.resolve("directory").resolve("file_98.dat"), 98)),
+                saved.largestFiles(MappedFileTree.ROOT, 3).largest());
+        Assertions.assertEquals(List.of(), saved.largestFiles(savedUnreadable, 3).largest());
+    }
+
+    @Test
+    public void rootOfFileSystemTest() throws IOException {
+        Path rootPath = temporaryDirectory.getRoot();
+        CompactFileTree tree = new CompactFileTree(rootPath, DuFileType.DIRECTORY, false);
+        tree.addChild(CompactFileTree.ROOT, "directory", DuFileType.DIRECTORY);
+        tree.trimToSize();
+        Assertions.assertEquals(rootPath.toString(), tree.getName(CompactFileTree.ROOT));
+        Path file = temporaryDirectory.resolve("tree.jdu");
+        MappedFileTree.write(tree, file);
+
+        MappedFileTree saved = MappedFileTree.open(file);
+        Assertions.assertEquals(rootPath.toString(), saved.getName(MappedFileTree.ROOT));
+        Assertions.assertEquals("directory", saved.getName(saved.find(rootPath.resolve("directory"))));
+    }
+
+    @Test
+    public void notSavedTreeTest() throws IOException {
+        Path file = temporaryDirectory.resolve("tree.jdu");
+        Files.writeString(file, "not a tree");
+        IOException thrown = Assertions.assertThrows(IOException.class, () -> MappedFileTree.open(file));
+        Assertions.assertEquals(file + " is not a saved jdu tree.", thrown.getMessage());
+    }
+}
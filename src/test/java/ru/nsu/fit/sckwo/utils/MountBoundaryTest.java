@@ -0,0 +1,97 @@
+package ru.nsu.fit.sckwo.utils;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public final class MountBoundaryTest {
+    private static final List<String> MOUNT_INFO = List.of(
+            "28 1 254:0 / / rw,relatime - ext4 /dev/vda rw",
+            "23 28 0:22 / /proc rw,relatime - proc proc rw",
+            "24 28 0:23 / /sys rw,relatime - sysfs sysfs rw",
+            "32 24 0:28 / /sys/fs/cgroup rw,relatime - tmpfs tmpfs rw,mode=755",
+            "33 32 0:29 / /sys/fs/cgroup/cpu rw,relatime - cgroup cgroup rw,cpu",
+            "40 28 0:40 / /home/user/data rw,relatime shared:1 - nfs4 server:/data rw",
+            "41 28 254:0 /srv /home/user/bind rw,relatime - ext4 /dev/vda rw",
+            "42 28 254:16 / /mnt/usb\\040disk rw,relatime - vfat /dev/sdb1 rw"
+    );
+
+    @Test
+    public void pseudoFileSystemsTest() {
+        MountBoundary boundary = MountBoundary.of(Path.of("/"), false, MOUNT_INFO);
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/proc")));
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/sys")));
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/sys/fs/cgroup")));
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/sys/fs/cgroup/cpu")));
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/home/user/data")));
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/mnt/usb disk")));
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/home")));
+        Assertions.assertTrue(boundary.hasMountsBelow(Path.of("/")));
+        Assertions.assertFalse(boundary.hasMountsBelow(Path.of("/home")));
+    }
+
+    @Test
+    public void fileSystemTypeTest() {
+        MountBoundary boundary = MountBoundary.of(Path.of("/home/user"), false, MOUNT_INFO);
+        Assertions.assertEquals("nfs4", boundary.fileSystemTypeOf(Path.of("/home/user/data/nested")));
+        Assertions.assertEquals("ext4", boundary.fileSystemTypeOf(Path.of("/home/user/database")));
+        Assertions.assertEquals("vfat", boundary.fileSystemTypeOf(Path.of("/mnt/usb disk")));
+        Assertions.assertNull(MountBoundary.none().fileSystemTypeOf(Path.of("/home/user")));
+    }
+
+    @Test
+    public void oneFileSystemTest() {
+        MountBoundary boundary = MountBoundary.of(Path.of("/"), true, MOUNT_INFO);
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/proc")));
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/sys/fs/cgroup")));
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/home/user/data")));
+        Assertions.assertTrue(boundary.stopsAt(Path.of("/mnt/usb disk")));
+        // a bind mount of the same device is the same file system
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/home/user/bind")));
+        Assertions.assertFalse(boundary.stopsAt(Path.of("/home")));
+        Assertions.assertTrue(boundary.hasMountsBelow(Path.of("/home")));
+        Assertions.assertFalse(boundary.hasMountsBelow(Path.of("/home/user/bind")));
+
+        // the root on another file system stays on it
+        MountBoundary dataBoundary = MountBoundary.of(Path.of("/home/user/data"), true, MOUNT_INFO);
+        Assertions.assertFalse(dataBoundary.stopsAt(Path.of("/home/user/data/nested")));
+        Assertions.assertFalse(dataBoundary.hasMountsBelow(Path.of("/home/user/data")));
+    }
+
+    @Test
+    public void rootSpellingTest() throws IOException {
+        try (FileSystem fs = Jimfs.newFileSystem(Configuration.unix())) {
+            Files.createDirectories(fs.getPath("/home/user"));
+            Files.createDirectories(fs.getPath("/mnt/usb disk"));
+            Files.createSymbolicLink(fs.getPath("/media"), fs.getPath("/mnt"));
+
+            MountBoundary boundary = MountBoundary.of(fs.getPath("/home/user/../.."), true, MOUNT_INFO);
+            Assertions.assertTrue(boundary.stopsAt(fs.getPath("/home/user/../../proc")));
+            Assertions.assertTrue(boundary.stopsAt(fs.getPath("/home/user/../../mnt/usb disk")));
+            Assertions.assertFalse(boundary.stopsAt(fs.getPath("/home/user/../../home")));
+
+            MountBoundary linkedBoundary = MountBoundary.of(fs.getPath("/media"), true, MOUNT_INFO);
+            Assertions.assertTrue(linkedBoundary.stopsAt(fs.getPath("/media/usb disk")));
+            Assertions.assertTrue(linkedBoundary.stopsAtTarget(fs.getPath("/media/usb disk")));
+            Assertions.assertFalse(linkedBoundary.stopsAtTarget(fs.getPath("/home/user")));
+        }
+    }
+
+    @Test
+    public void withoutMountTableTest() throws IOException {
+        try (FileSystem fs = Jimfs.newFileSystem(Configuration.unix())) {
+            Files.createDirectories(fs.getPath("/root/dir"));
+            Assertions.assertSame(MountBoundary.none(), MountBoundary.of(fs.getPath("/root"), false));
+            // the only file store of the file system is the one of the root
+            MountBoundary boundary = MountBoundary.of(fs.getPath("/root"), true);
+            Assertions.assertFalse(boundary.stopsAt(fs.getPath("/root/dir")));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class SizeCacheTest {
+
+    private static Path pathOf(int i) {
+        return Path.of("/root", "directory_" + i % 100, "file_" + i);
+    }
+
+    @Test
+    public void exactSizesTest() {
+        SizeCache cache = new SizeCache(1L << 30, 8);
+        Map<Path, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            Path path = pathOf(random.nextInt(100_000));
+            if (random.nextInt(4) == 0) {
+                cache.remove(path);
+                expected.remove(path);
+            } else {
+                long size = random.nextLong(-1, Long.MAX_VALUE);
+                cache.put(path, size, 3);
+                expected.put(path, size);
+            }
+        }
+        Assertions.assertEquals(expected.size(), cache.size());
+        for (int i = 0; i < 100_000; i++) {
+            Path path = pathOf(i);
+            Assertions.assertEquals(expected.getOrDefault(path, SizeCache.ABSENT), cache.get(path), path::toString);
+        }
+        Assertions.assertEquals(0, cache.evictions());
+        Assertions.assertEquals(expected.size(), cache.hits());
+        Assertions.assertEquals(100_000 - expected.size(), cache.misses());
+    }
+
+    @Test
+    public void heapFootprintTest() {
+        SizeCache cache = new SizeCache(1L << 30, 8);
+        for (int i = 0; i < 1_000_000; i++) {
+            cache.put(pathOf(i), i, 3);
+        }
+        Assertions.assertEquals(1_000_000, cache.size());
+        double bytesPerEntry = (double) cache.heapFootprint() / cache.size();
+        Assertions.assertTrue(bytesPerEntry < 64, () -> bytesPerEntry + " bytes per entry");
+    }
+
+    @Test
+    public void byteBudgetTest() {
+        long budget = 64 * 1024;
+        SizeCache cache = new SizeCache(budget, 2);
+        int countOfShallowEntries = 100;
+        for (int i = 0; i < countOfShallowEntries; i++) {
+            cache.put(pathOf(i), i, 1);
+        }
+        for (int i = countOfShallowEntries; i < 100_000; i++) {
+            cache.put(pathOf(i), i, 3 + i % 3);
+        }
+        Assertions.assertTrue(cache.heapFootprint() <= budget, () -> cache.heapFootprint() + " bytes");
+        Assertions.assertTrue(cache.evictions() > 0);
+        // the entries deeper than the display depth are evicted first
+        for (int i = 0; i < countOfShallowEntries; i++) {
+            Assertions.assertEquals(i, cache.get(pathOf(i)));
+        }
+        int kept = 0;
+        for (int i = countOfShallowEntries; i < 100_000; i++) {
+            long size = cache.get(pathOf(i));
+            if (size != SizeCache.ABSENT) {
+                Assertions.assertEquals(i, size);
+                kept++;
+            }
+        }
+        Assertions.assertEquals(cache.size(), countOfShallowEntries + kept);
+    }
+
+    @Test
+    public void concurrentAccessTest() throws InterruptedException, ExecutionException {
+        SizeCache cache = new SizeCache(1L << 30, 8);
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int first = t * 10_000;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < first + 10_000; i++) {
+                        cache.put(pathOf(i), i, 3);
+                        Assertions.assertEquals(i, cache.get(pathOf(i)));
+                    }
+                    for (int i = first; i < first + 10_000; i += 2) {
+                        cache.remove(pathOf(i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        Assertions.assertEquals(40_000, cache.size());
+        for (int i = 0; i < 80_000; i++) {
+            Assertions.assertEquals(i % 2 == 0 ? SizeCache.ABSENT : i, cache.get(pathOf(i)));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.nsu.fit.sckwo.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public final class TopElementsTest {
+    @Test
+    public void greatestElementsTest() {
+        List<Integer> elements = new ArrayList<>(IntStream.range(0, 1000).boxed().toList());
+        Collections.shuffle(elements, new Random(42));
+        TopElements<Integer> top = new TopElements<>(5, Comparator.naturalOrder());
+        for (int i = 0; i < elements.size(); i++) {
+            Integer least = top.offer(elements.get(i));
+            // the least kept element is returned once all five are kept
+            Assertions.assertEquals(i >= 4, least != null);
+        }
+        Assertions.assertEquals(List.of(999, 998, 997, 996, 995), top.sorted());
+        Assertions.assertEquals(995, top.offer(-1));
+    }
+
+    @Test
+    public void noRoomTest() {
+        TopElements<Integer> top = new TopElements<>(0, Comparator.naturalOrder());
+        Assertions.assertNull(top.offer(1));
+        Assertions.assertEquals(List.of(), top.sorted());
+    }
+}